@@ -0,0 +1,4 @@
+echo Check that the Quasar registerer converts the reference patch and looks up functions only once per run
+@rem ImageJ is taken from the jars folder of the Fiji installation that build.xml installs the plugin into (fiji.plugins.dir)
+if not defined FIJI_DIR set FIJI_DIR=E:\Fiji.app
+java -cp ".\build\classes;%FIJI_DIR%\jars\*" be.vib.imagej.registration.QuasarBridgeCheck
@@ -0,0 +1,4 @@
+echo Benchmark the registration engines on synthetic slices with a known shift
+@rem ImageJ and the Quasar bridge (for the "quasar" argument) are taken from the Fiji installation that build.xml installs the plugin into (fiji.plugins.dir)
+if not defined FIJI_DIR set FIJI_DIR=E:\Fiji.app
+java -cp ".\build\classes;%FIJI_DIR%\jars\*;%FIJI_DIR%\plugins\JavaQuasarBridge-1.1.0.jar" be.vib.imagej.registration.EngineBenchmark %*
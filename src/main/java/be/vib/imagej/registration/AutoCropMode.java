@@ -0,0 +1,23 @@
+package be.vib.imagej.registration;
+
+// Which rectangle the slices are cropped to if auto-cropping is on (RegistrationParameters.autoCropRect != null).
+// UNION and INTERSECTION take the non-black regions of all slices into account (see NonblackRegionIndex).
+public enum AutoCropMode
+{
+	REFERENCE("Non-black region of the reference slice"),
+	UNION("Union of the non-black regions of all slices"),                // nothing that is non-black in any slice is cropped away
+	INTERSECTION("Intersection of the non-black regions of all slices");  // no slice has black border left
+	
+	private final String description;  // shown to the user
+	
+	private AutoCropMode(String description)
+	{
+		this.description = description;
+	}
+	
+	@Override
+	public String toString()
+	{
+		return description;
+	}
+}
@@ -0,0 +1,269 @@
+package be.vib.imagej.registration;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeMap;
+
+import ij.ImagePlus;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+
+// BigTiffStackWriter streams all registered slices into a single multi-page BigTIFF file
+// (so it can grow beyond 4 GB), one page per slice, in slice order.
+// Each slice is appended to the file as soon as it is registered: first its pixels (translated while writing,
+// like TranslatedTiffWriter does) and its image file directory (IFD), then the IFD is linked into the chain of pages.
+// Slices may arrive out of order (e.g. in two-pass mode); a page is only linked once all pages before it are.
+// Links are only made every commitInterval slices, after the data written so far has been forced to disk,
+// so after a crash the IFD chain always ends in a complete page. A resumed run continues the chain.
+// Every page records its slice number in the PageName tag.
+// ImageJ 1.x has no BigTIFF reader (File > Open reports "Unsupported format or not found"): in Fiji, open the stack
+// with the Bio-Formats importer (File > Import > Bio-Formats, preferably as a virtual stack).
+public class BigTiffStackWriter implements SliceWriter
+{
+	public static final String FILENAME = "registered_stack.tif";
+
+	private static final int HEADER_SIZE = 16;
+	private static final long FIRST_IFD_POINTER = 8;  // position of the offset of the first IFD in the header
+	private static final int NUM_ENTRIES = 15;
+	private static final int ENTRY_SIZE = 20;
+	private static final int PAGE_NAME = 285;
+	private static final long SKIPPED = -1;
+
+	private final FileChannel channel;
+	private final int commitInterval;
+
+	private long end;                // end of the file, where the next page is appended
+	private long lastLinkPointer;    // position of the "next IFD" offset that will point to the next page in the chain
+	private int nextToLink;          // the slice whose page comes next in the chain
+	private final TreeMap<Integer, Long> pending = new TreeMap<Integer, Long>();  // slices written (IFD position) or skipped (SKIPPED) but not in the chain yet
+	private final Set<Integer> linked = new HashSet<Integer>();  // slices with a page in the chain
+	private int numUncommitted = 0;
+
+	// Opens the stack file for writing. If resume is true and the file exists, new pages are added to the existing ones,
+	// otherwise a new, empty stack file is created.
+	public static BigTiffStackWriter open(Path file, boolean resume, int commitInterval) throws IOException
+	{
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		BigTiffStackWriter writer = new BigTiffStackWriter(channel, commitInterval);
+		if (!(resume && writer.readChain()))
+			writer.create();
+		return writer;
+	}
+
+	private BigTiffStackWriter(FileChannel channel, int commitInterval)
+	{
+		this.channel = channel;
+		this.commitInterval = commitInterval;
+	}
+
+	@Override
+	public void write(int slice, Path inputFile, ImagePlus image, SliceShift shift) throws IOException
+	{
+		ImageProcessor ip = image.getProcessor();
+		final int bitDepth = ip.getBitDepth();
+		if (bitDepth != 8 && bitDepth != 16)
+			throw new IOException("Only 8 and 16 bit images can be written to a stack file.");
+
+		int shiftX = shift.shiftX;
+		int shiftY = shift.shiftY;
+		if (shift.isSubpixel())
+		{
+			// Needs resampling, let ImageJ do it.
+			shift.apply(ip);
+			shiftX = shiftY = 0;
+		}
+
+		byte[] description = TranslatedTiffWriter.imageDescription(image);
+		byte[] pageName = ("slice=" + slice + " " + inputFile.getFileName() + "\0").getBytes(StandardCharsets.UTF_8);
+
+		// Layout of a page: IFD | page name | description | pixels
+		final int ifdSize = 8 + NUM_ENTRIES * ENTRY_SIZE + 8;
+		final int metadataSize = ifdSize + pageName.length + description.length;
+		final long pixelBytes = (long)ip.getWidth() * ip.getHeight() * (bitDepth / 8);
+
+		long ifdPosition;
+		synchronized (this)
+		{
+			if (slice < nextToLink || pending.containsKey(slice))
+				throw new IllegalStateException("Slice " + slice + " was already written to the stack.");
+			ifdPosition = end;
+			end += (metadataSize + pixelBytes + 7) & ~7L;  // keep IFDs on word boundaries
+		}
+
+		final long pixelPosition = ifdPosition + metadataSize;
+		TranslatedTiffWriter.writePixels(channel, pixelPosition, ip, shiftX, shiftY);
+
+		ByteBuffer ifd = ByteBuffer.allocate(metadataSize).order(ByteOrder.LITTLE_ENDIAN);
+		Calibration calibration = image.getCalibration();
+		final boolean scaled = (calibration != null && calibration.scaled());
+
+		ifd.putLong(NUM_ENTRIES);
+		putEntry(ifd, 254, 4, 1, 0);                                // NewSubfileType
+		putEntry(ifd, 256, 4, 1, ip.getWidth());                    // ImageWidth
+		putEntry(ifd, 257, 4, 1, ip.getHeight());                   // ImageLength
+		putEntry(ifd, 258, 3, 1, bitDepth);                         // BitsPerSample
+		putEntry(ifd, 259, 3, 1, 1);                                // Compression: none
+		putEntry(ifd, 262, 3, 1, 1);                                // PhotometricInterpretation: black is zero
+		putEntry(ifd, 270, 2, description.length, ifdPosition + ifdSize + pageName.length);  // ImageDescription
+		putEntry(ifd, 273, 16, 1, pixelPosition);                   // StripOffsets
+		putEntry(ifd, 277, 3, 1, 1);                                // SamplesPerPixel
+		putEntry(ifd, 278, 4, 1, ip.getHeight());                   // RowsPerStrip
+		putEntry(ifd, 279, 16, 1, pixelBytes);                      // StripByteCounts
+		putRationalEntry(ifd, 282, scaled ? 1.0 / calibration.pixelWidth : 1.0);   // XResolution
+		putRationalEntry(ifd, 283, scaled ? 1.0 / calibration.pixelHeight : 1.0);  // YResolution
+		putEntry(ifd, PAGE_NAME, 2, pageName.length, ifdPosition + ifdSize);        // PageName
+		putEntry(ifd, 296, 3, 1, 1);                                // ResolutionUnit: none (the unit is in the description)
+		ifd.putLong(0);                                             // next IFD, filled in when the next page is linked
+		ifd.put(pageName);
+		ifd.put(description);
+		TranslatedTiffWriter.writeFully(channel, ifd, ifdPosition);
+
+		synchronized (this)
+		{
+			pending.put(slice, ifdPosition);
+			if (++numUncommitted >= commitInterval)
+				commit();
+		}
+	}
+
+	@Override
+	public synchronized void skip(int slice) throws IOException
+	{
+		if (slice >= nextToLink && !pending.containsKey(slice))
+			pending.put(slice, SKIPPED);  // the chain moves past it at the next commit
+	}
+
+	@Override
+	public synchronized boolean contains(int slice, Path inputFile)
+	{
+		return linked.contains(slice);
+	}
+
+	@Override
+	public synchronized void close() throws IOException
+	{
+		commit();
+		channel.force(true);
+		channel.close();
+	}
+
+	// Makes the pages written so far durable, then links as many of them into the chain as possible.
+	private synchronized void commit() throws IOException
+	{
+		channel.force(false);
+		numUncommitted = 0;
+
+		ByteBuffer pointer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+		while (pending.containsKey(nextToLink))
+		{
+			long ifdPosition = pending.remove(nextToLink);
+			if (ifdPosition != SKIPPED)
+			{
+				pointer.clear();
+				pointer.putLong(ifdPosition);
+				TranslatedTiffWriter.writeFully(channel, pointer, lastLinkPointer);
+				lastLinkPointer = ifdPosition + 8 + NUM_ENTRIES * ENTRY_SIZE;
+				linked.add(nextToLink);
+			}
+			nextToLink++;
+		}
+	}
+
+	// Starts a new, empty stack file.
+	private void create() throws IOException
+	{
+		channel.truncate(0);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		header.put((byte)'I').put((byte)'I').putShort((short)43).putShort((short)8).putShort((short)0).putLong(0);
+		TranslatedTiffWriter.writeFully(channel, header, 0);
+		end = HEADER_SIZE;
+		lastLinkPointer = FIRST_IFD_POINTER;
+		nextToLink = 0;
+	}
+
+	// Walks the IFD chain of an existing stack file written by us, to find out which slices it contains
+	// and where to link the next page. Returns false if the file is not such a stack file.
+	private boolean readChain() throws IOException
+	{
+		if (channel.size() < HEADER_SIZE)
+			return false;
+
+		ByteBuffer header = read(0, HEADER_SIZE);
+		if (header.get(0) != 'I' || header.get(1) != 'I' || header.getShort(2) != 43)
+			return false;
+
+		lastLinkPointer = FIRST_IFD_POINTER;
+		long ifdPosition = header.getLong(8);
+		while (ifdPosition != 0)
+		{
+			if (ifdPosition < HEADER_SIZE || ifdPosition + 8 + NUM_ENTRIES * ENTRY_SIZE + 8 > channel.size())
+				return false;
+
+			ByteBuffer ifd = read(ifdPosition, 8 + NUM_ENTRIES * ENTRY_SIZE + 8);
+			if (ifd.getLong(0) != NUM_ENTRIES)
+				return false;
+
+			int slice = -1;
+			for (int i = 0; i < NUM_ENTRIES; i++)
+			{
+				int entry = 8 + i * ENTRY_SIZE;
+				if ((ifd.getShort(entry) & 0xffff) == PAGE_NAME)
+				{
+					int length = (int)ifd.getLong(entry + 4);
+					ByteBuffer name = read(ifd.getLong(entry + 12), length);
+					String pageName = new String(name.array(), 0, length, StandardCharsets.UTF_8);
+					if (pageName.startsWith("slice="))
+						slice = Integer.parseInt(pageName.substring(6, pageName.indexOf(' ')));
+				}
+			}
+			if (slice < 0)
+				return false;
+
+			linked.add(slice);
+			nextToLink = Math.max(nextToLink, slice + 1);
+			lastLinkPointer = ifdPosition + 8 + NUM_ENTRIES * ENTRY_SIZE;
+			ifdPosition = ifd.getLong(8 + NUM_ENTRIES * ENTRY_SIZE);
+		}
+
+		// Pages written after the last link (by the interrupted run) are not part of the stack; they will be written again.
+		end = (channel.size() + 7) & ~7L;
+		System.out.println("Continuing stack file " + FILENAME + " with " + linked.size() + " pages");
+		return true;
+	}
+
+	private ByteBuffer read(long position, int length) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		while (buffer.hasRemaining())
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				throw new IOException("Unexpected end of stack file");
+		buffer.flip();
+		return buffer;
+	}
+
+	// Adds a BigTIFF IFD entry. SHORT, LONG and LONG8 values are stored in the entry itself;
+	// for strings (type 2, always longer than 8 bytes here) value is the position of the string in the file.
+	private static void putEntry(ByteBuffer ifd, int tag, int type, long count, long value)
+	{
+		ifd.putShort((short)tag).putShort((short)type).putLong(count);
+		if (type == 3)
+			ifd.putShort((short)value).putShort((short)0).putInt(0);  // a SHORT value is left-justified in the value field
+		else if (type == 4)
+			ifd.putInt((int)value).putInt(0);
+		else
+			ifd.putLong(value);
+	}
+
+	private static void putRationalEntry(ByteBuffer ifd, int tag, double value)
+	{
+		ifd.putShort((short)tag).putShort((short)5).putLong(1);
+		TranslatedTiffWriter.putRational(ifd, value);  // 8 bytes, fits in the entry
+	}
+}
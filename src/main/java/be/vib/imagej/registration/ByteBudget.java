@@ -0,0 +1,48 @@
+package be.vib.imagej.registration;
+
+// ByteBudget limits the number of bytes of image data that are in flight between pipeline stages.
+// A stage acquires bytes before it allocates an image, and the last stage releases them when it is done with it.
+// A single request larger than the whole budget is granted when nothing else is in flight (or, with acquireMore(),
+// nothing but the caller's own bytes), so the pipeline can never deadlock on an unexpectedly large slice.
+public class ByteBudget
+{
+	private final long capacity;
+	private long inUse = 0;
+	private long peak = 0;
+	
+	public ByteBudget(long capacity)
+	{
+		this.capacity = capacity;
+	}
+	
+	public void acquire(long bytes) throws InterruptedException
+	{
+		acquireMore(0, bytes);
+	}
+	
+	// Acquires more bytes for a caller that holds some already (e.g. when an image turns out to be larger than the bytes
+	// it reserved before loading it). Like a single request, it is granted when the caller's own bytes are all that is in flight.
+	public synchronized void acquireMore(long held, long bytes) throws InterruptedException
+	{
+		while (inUse > held && inUse + bytes > capacity)
+			wait();
+		inUse += bytes;
+		peak = Math.max(peak, inUse);
+	}
+	
+	public synchronized void release(long bytes)
+	{
+		inUse -= bytes;
+		notifyAll();
+	}
+	
+	public synchronized long inUse()
+	{
+		return inUse;
+	}
+	
+	public synchronized long peak()
+	{
+		return peak;
+	}
+}
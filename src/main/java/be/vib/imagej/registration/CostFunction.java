@@ -0,0 +1,8 @@
+package be.vib.imagej.registration;
+
+// The measure for how well a candidate patch matches the reference patch (lower is better).
+public enum CostFunction
+{
+	SAD,  // sum of absolute differences (this is what the original Quasar code uses)
+	SSD   // sum of squared differences
+}
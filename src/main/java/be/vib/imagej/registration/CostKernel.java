@@ -0,0 +1,46 @@
+package be.vib.imagej.registration;
+
+// A CostKernel computes the matching cost between the reference patch and the patch
+// with top-left corner at a given position in the search window. A kernel is bound
+// to one search window and one reference patch; use CostKernels.create() to get one.
+public abstract class CostKernel
+{
+	protected final int imageWidth;
+	protected final int patchWidth;
+	protected final int patchHeight;
+	
+	protected CostKernel(int imageWidth, int patchWidth, int patchHeight)
+	{
+		this.imageWidth = imageWidth;
+		this.patchWidth = patchWidth;
+		this.patchHeight = patchHeight;
+	}
+	
+	// Returns the cost for the candidate with top-left corner at (x, y) in the search window.
+	public long cost(int x, int y)
+	{
+		long sum = 0;
+		for (int j = 0; j < patchHeight; j++)
+		{
+			sum += rowCost((y + j) * imageWidth + x, j * patchWidth);
+		}
+		return sum;
+	}
+	
+	// Partial distortion elimination: returns the cost for the candidate with top-left corner at (x, y)
+	// if it is <= bound. Otherwise the accumulation is abandoned as soon as the partial sum over the rows
+	// seen so far exceeds bound, and that partial sum (which is > bound) is returned.
+	// This works because all rows have a non-negative cost.
+	public long cost(int x, int y, long bound)
+	{
+		long sum = 0;
+		for (int j = 0; j < patchHeight && sum <= bound; j++)
+		{
+			sum += rowCost((y + j) * imageWidth + x, j * patchWidth);
+		}
+		return sum;
+	}
+	
+	// Returns the cost for a single row of the patch, starting at the given offsets in the search window resp. reference patch pixel arrays.
+	protected abstract long rowCost(int imgOffset, int refOffset);
+}
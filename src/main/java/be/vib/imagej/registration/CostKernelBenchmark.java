@@ -0,0 +1,92 @@
+package be.vib.imagej.registration;
+
+import java.util.Random;
+
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+// A simple single-threaded benchmark that compares the scalar and the unrolled cost kernels
+// for 8 and 16 bit images, SAD and SSD. It also checks that both flavors compute identical costs.
+// Run it via kernels.bat (after building the classes).
+public class CostKernelBenchmark
+{
+	private static final int windowSize = 2 * 25 + 256;  // a 256x256 patch with the default maximum shift of 25 pixels
+	private static final int patchSize = 256;
+	private static final int warmupRounds = 3;
+	private static final int timedRounds = 5;
+
+	public static void main(String[] args)
+	{
+		for (int bitDepth : new int[] { 8, 16 })
+		{
+			ImageProcessor image = randomImage(bitDepth, windowSize, windowSize, 1);
+			ImageProcessor patch = randomImage(bitDepth, patchSize, patchSize, 2);
+
+			for (CostFunction costFunction : CostFunction.values())
+			{
+				CostKernel scalar = CostKernels.create(costFunction, image, patch, false);
+				CostKernel unrolled = CostKernels.create(costFunction, image, patch, true);
+
+				checkEquality(scalar, unrolled, bitDepth + " bit " + costFunction);
+
+				double scalarNs = nanosPerCandidate(scalar);
+				double unrolledNs = nanosPerCandidate(unrolled);
+				System.out.println(String.format("%2d bit %s: scalar %.0f ns/candidate, unrolled %.0f ns/candidate, speedup %.2fx", bitDepth, costFunction, scalarNs, unrolledNs, scalarNs / unrolledNs));
+			}
+		}
+	}
+
+	private static ImageProcessor randomImage(int bitDepth, int width, int height, long seed)
+	{
+		Random random = new Random(seed);
+		if (bitDepth == 8)
+		{
+			byte[] pixels = new byte[width * height];
+			random.nextBytes(pixels);
+			return new ByteProcessor(width, height, pixels);
+		}
+		else
+		{
+			short[] pixels = new short[width * height];
+			for (int i = 0; i < pixels.length; i++)
+				pixels[i] = (short)random.nextInt(1 << 16);
+			return new ShortProcessor(width, height, pixels, null);
+		}
+	}
+
+	private static void checkEquality(CostKernel a, CostKernel b, String testcase)
+	{
+		final int n = windowSize - patchSize;
+		for (int y = 0; y <= n; y += 7)
+			for (int x = 0; x <= n; x += 7)
+				if (a.cost(x, y) != b.cost(x, y))
+				{
+					System.out.println("FAILED: " + testcase + ": costs differ at (" + x + ", " + y + ")");
+					return;
+				}
+		System.out.println("SUCCESS: " + testcase);
+	}
+
+	private static double nanosPerCandidate(CostKernel kernel)
+	{
+		final int n = windowSize - patchSize + 1;
+
+		long sink = 0;  // keeps the JIT from optimizing away the kernel calls
+		long best = Long.MAX_VALUE;
+		for (int round = 0; round < warmupRounds + timedRounds; round++)
+		{
+			long start = System.nanoTime();
+			for (int y = 0; y < n; y++)
+				for (int x = 0; x < n; x++)
+					sink += kernel.cost(x, y);
+			long duration = System.nanoTime() - start;
+
+			if (round >= warmupRounds)
+				best = Math.min(best, duration);
+		}
+
+		if (sink == 42) System.out.println();
+		return (double)best / (n * n);
+	}
+}
@@ -0,0 +1,305 @@
+package be.vib.imagej.registration;
+
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+// CostKernels creates the inner loops for template matching: the cost (SAD or SSD)
+// between the reference patch and the patch at a candidate position in the search window.
+// There is a kernel for each combination of cost function and pixel type (8 or 16 bit).
+//
+// Each kernel comes in two flavors: a plain scalar loop (the reference implementation),
+// and an unrolled loop with four independent accumulators. The unrolled loop breaks the
+// dependency chain on a single accumulator so the JIT can keep several additions in flight
+// and use SIMD instructions for the subtractions and absolute values. We cannot use the
+// jdk.incubator.vector API because the plugin must run on the Java 8 runtime that ships with Fiji.
+//
+// All kernels accumulate in 64 bit longs, so even a 16 bit SSD over a very large patch cannot overflow
+// (8 bit kernels use int accumulators per row and widen the row sum; a row cannot overflow an int).
+// The scalar and unrolled kernels return identical costs.
+public class CostKernels
+{
+	public static CostKernel create(CostFunction costFunction, ImageProcessor image, ImageProcessor referencePatch)
+	{
+		return create(costFunction, image, referencePatch, true);
+	}
+
+	public static CostKernel create(CostFunction costFunction, ImageProcessor image, ImageProcessor referencePatch, boolean unrolled)
+	{
+		final int imageWidth = image.getWidth();
+		final int patchWidth = referencePatch.getWidth();
+		final int patchHeight = referencePatch.getHeight();
+
+		if (image instanceof ByteProcessor && referencePatch instanceof ByteProcessor)
+		{
+			byte[] img = (byte[])image.getPixels();
+			byte[] ref = (byte[])referencePatch.getPixels();
+			if (costFunction == CostFunction.SAD)
+				return unrolled ? new ByteSad(img, imageWidth, ref, patchWidth, patchHeight) : new ByteSadScalar(img, imageWidth, ref, patchWidth, patchHeight);
+			else
+				return unrolled ? new ByteSsd(img, imageWidth, ref, patchWidth, patchHeight) : new ByteSsdScalar(img, imageWidth, ref, patchWidth, patchHeight);
+		}
+		else if (image instanceof ShortProcessor && referencePatch instanceof ShortProcessor)
+		{
+			short[] img = (short[])image.getPixels();
+			short[] ref = (short[])referencePatch.getPixels();
+			if (costFunction == CostFunction.SAD)
+				return unrolled ? new ShortSad(img, imageWidth, ref, patchWidth, patchHeight) : new ShortSadScalar(img, imageWidth, ref, patchWidth, patchHeight);
+			else
+				return unrolled ? new ShortSsd(img, imageWidth, ref, patchWidth, patchHeight) : new ShortSsdScalar(img, imageWidth, ref, patchWidth, patchHeight);
+		}
+		else
+		{
+			throw new RuntimeException("Only 8 bit/pixel and 16 bit/pixel grayscale images are supported, and the image and reference patch must have the same bit depth.");
+		}
+	}
+
+	private static class ByteSad extends CostKernel
+	{
+		private final byte[] img;
+		private final byte[] ref;
+
+		public ByteSad(byte[] img, int imageWidth, byte[] ref, int patchWidth, int patchHeight)
+		{
+			super(imageWidth, patchWidth, patchHeight);
+			this.img = img;
+			this.ref = ref;
+		}
+
+		@Override
+		protected long rowCost(int imgOffset, int refOffset)
+		{
+			final int n = patchWidth & ~3;
+			int s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+			int i = 0;
+			for (; i < n; i += 4)
+			{
+				s0 += Math.abs((img[imgOffset + i    ] & 0xff) - (ref[refOffset + i    ] & 0xff));
+				s1 += Math.abs((img[imgOffset + i + 1] & 0xff) - (ref[refOffset + i + 1] & 0xff));
+				s2 += Math.abs((img[imgOffset + i + 2] & 0xff) - (ref[refOffset + i + 2] & 0xff));
+				s3 += Math.abs((img[imgOffset + i + 3] & 0xff) - (ref[refOffset + i + 3] & 0xff));
+			}
+			for (; i < patchWidth; i++)
+			{
+				s0 += Math.abs((img[imgOffset + i] & 0xff) - (ref[refOffset + i] & 0xff));
+			}
+			return (long)s0 + s1 + s2 + s3;
+		}
+	}
+
+	private static class ByteSadScalar extends CostKernel
+	{
+		private final byte[] img;
+		private final byte[] ref;
+
+		public ByteSadScalar(byte[] img, int imageWidth, byte[] ref, int patchWidth, int patchHeight)
+		{
+			super(imageWidth, patchWidth, patchHeight);
+			this.img = img;
+			this.ref = ref;
+		}
+
+		@Override
+		protected long rowCost(int imgOffset, int refOffset)
+		{
+			long s = 0;
+			for (int i = 0; i < patchWidth; i++)
+			{
+				s += Math.abs((img[imgOffset + i] & 0xff) - (ref[refOffset + i] & 0xff));
+			}
+			return s;
+		}
+	}
+
+	private static class ByteSsd extends CostKernel
+	{
+		private final byte[] img;
+		private final byte[] ref;
+
+		public ByteSsd(byte[] img, int imageWidth, byte[] ref, int patchWidth, int patchHeight)
+		{
+			super(imageWidth, patchWidth, patchHeight);
+			this.img = img;
+			this.ref = ref;
+		}
+
+		@Override
+		protected long rowCost(int imgOffset, int refOffset)
+		{
+			// A squared 8 bit difference is < 2^16, so an int accumulator overflows only for rows longer than 2^15 pixels.
+			// We widen to long every 2^14 pixels to be safe.
+			long s = 0;
+			for (int start = 0; start < patchWidth; start += 1 << 14)
+			{
+				final int end = Math.min(patchWidth, start + (1 << 14));
+				final int n = start + ((end - start) & ~3);
+				int s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+				int i = start;
+				for (; i < n; i += 4)
+				{
+					int d0 = (img[imgOffset + i    ] & 0xff) - (ref[refOffset + i    ] & 0xff);
+					int d1 = (img[imgOffset + i + 1] & 0xff) - (ref[refOffset + i + 1] & 0xff);
+					int d2 = (img[imgOffset + i + 2] & 0xff) - (ref[refOffset + i + 2] & 0xff);
+					int d3 = (img[imgOffset + i + 3] & 0xff) - (ref[refOffset + i + 3] & 0xff);
+					s0 += d0 * d0;
+					s1 += d1 * d1;
+					s2 += d2 * d2;
+					s3 += d3 * d3;
+				}
+				for (; i < end; i++)
+				{
+					int d = (img[imgOffset + i] & 0xff) - (ref[refOffset + i] & 0xff);
+					s0 += d * d;
+				}
+				s += (long)s0 + s1 + s2 + s3;
+			}
+			return s;
+		}
+	}
+
+	private static class ByteSsdScalar extends CostKernel
+	{
+		private final byte[] img;
+		private final byte[] ref;
+
+		public ByteSsdScalar(byte[] img, int imageWidth, byte[] ref, int patchWidth, int patchHeight)
+		{
+			super(imageWidth, patchWidth, patchHeight);
+			this.img = img;
+			this.ref = ref;
+		}
+
+		@Override
+		protected long rowCost(int imgOffset, int refOffset)
+		{
+			long s = 0;
+			for (int i = 0; i < patchWidth; i++)
+			{
+				long d = (img[imgOffset + i] & 0xff) - (ref[refOffset + i] & 0xff);
+				s += d * d;
+			}
+			return s;
+		}
+	}
+
+	private static class ShortSad extends CostKernel
+	{
+		private final short[] img;
+		private final short[] ref;
+
+		public ShortSad(short[] img, int imageWidth, short[] ref, int patchWidth, int patchHeight)
+		{
+			super(imageWidth, patchWidth, patchHeight);
+			this.img = img;
+			this.ref = ref;
+		}
+
+		@Override
+		protected long rowCost(int imgOffset, int refOffset)
+		{
+			final int n = patchWidth & ~3;
+			long s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+			int i = 0;
+			for (; i < n; i += 4)
+			{
+				s0 += Math.abs((img[imgOffset + i    ] & 0xffff) - (ref[refOffset + i    ] & 0xffff));
+				s1 += Math.abs((img[imgOffset + i + 1] & 0xffff) - (ref[refOffset + i + 1] & 0xffff));
+				s2 += Math.abs((img[imgOffset + i + 2] & 0xffff) - (ref[refOffset + i + 2] & 0xffff));
+				s3 += Math.abs((img[imgOffset + i + 3] & 0xffff) - (ref[refOffset + i + 3] & 0xffff));
+			}
+			for (; i < patchWidth; i++)
+			{
+				s0 += Math.abs((img[imgOffset + i] & 0xffff) - (ref[refOffset + i] & 0xffff));
+			}
+			return s0 + s1 + s2 + s3;
+		}
+	}
+
+	private static class ShortSadScalar extends CostKernel
+	{
+		private final short[] img;
+		private final short[] ref;
+
+		public ShortSadScalar(short[] img, int imageWidth, short[] ref, int patchWidth, int patchHeight)
+		{
+			super(imageWidth, patchWidth, patchHeight);
+			this.img = img;
+			this.ref = ref;
+		}
+
+		@Override
+		protected long rowCost(int imgOffset, int refOffset)
+		{
+			long s = 0;
+			for (int i = 0; i < patchWidth; i++)
+			{
+				s += Math.abs((img[imgOffset + i] & 0xffff) - (ref[refOffset + i] & 0xffff));
+			}
+			return s;
+		}
+	}
+
+	private static class ShortSsd extends CostKernel
+	{
+		private final short[] img;
+		private final short[] ref;
+
+		public ShortSsd(short[] img, int imageWidth, short[] ref, int patchWidth, int patchHeight)
+		{
+			super(imageWidth, patchWidth, patchHeight);
+			this.img = img;
+			this.ref = ref;
+		}
+
+		@Override
+		protected long rowCost(int imgOffset, int refOffset)
+		{
+			// A squared 16 bit difference does not fit in an int, so square in longs.
+			final int n = patchWidth & ~3;
+			long s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+			int i = 0;
+			for (; i < n; i += 4)
+			{
+				long d0 = (img[imgOffset + i    ] & 0xffff) - (ref[refOffset + i    ] & 0xffff);
+				long d1 = (img[imgOffset + i + 1] & 0xffff) - (ref[refOffset + i + 1] & 0xffff);
+				long d2 = (img[imgOffset + i + 2] & 0xffff) - (ref[refOffset + i + 2] & 0xffff);
+				long d3 = (img[imgOffset + i + 3] & 0xffff) - (ref[refOffset + i + 3] & 0xffff);
+				s0 += d0 * d0;
+				s1 += d1 * d1;
+				s2 += d2 * d2;
+				s3 += d3 * d3;
+			}
+			for (; i < patchWidth; i++)
+			{
+				long d = (img[imgOffset + i] & 0xffff) - (ref[refOffset + i] & 0xffff);
+				s0 += d * d;
+			}
+			return s0 + s1 + s2 + s3;
+		}
+	}
+
+	private static class ShortSsdScalar extends CostKernel
+	{
+		private final short[] img;
+		private final short[] ref;
+
+		public ShortSsdScalar(short[] img, int imageWidth, short[] ref, int patchWidth, int patchHeight)
+		{
+			super(imageWidth, patchWidth, patchHeight);
+			this.img = img;
+			this.ref = ref;
+		}
+
+		@Override
+		protected long rowCost(int imgOffset, int refOffset)
+		{
+			long s = 0;
+			for (int i = 0; i < patchWidth; i++)
+			{
+				long d = (img[imgOffset + i] & 0xffff) - (ref[refOffset + i] & 0xffff);
+				s += d * d;
+			}
+			return s;
+		}
+	}
+}
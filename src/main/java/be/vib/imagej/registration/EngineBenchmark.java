@@ -0,0 +1,142 @@
+package be.vib.imagej.registration;
+
+import java.util.Random;
+
+import be.vib.bits.QExecutor;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+// A benchmark of all registration engines (see MatchingEngine) on synthetic EM-like slices:
+// the texture of SyntheticStack (grain with some larger structures) plus noise, in which the next slice is shifted by a known amount.
+// For every bit depth, patch size and search window size it reports the time per candidate position
+// and the number of slices per second that an engine can register, and it checks that every engine finds the planted shift.
+// The Quasar engine is only included with the "quasar" argument (it needs a GPU).
+// Run it via engines.bat (after building the classes); it exits with status 1 if an engine finds a wrong shift.
+public class EngineBenchmark
+{
+	private static final int[] bitDepths = { 8, 16 };
+	private static final int[] patchSizes = { 64, 128, 256 };
+	private static final int[] maxShifts = { 16, 48 };  // the search window is patchSize + 2 * maxShift pixels wide and high
+	private static final int warmupRounds = 2;
+	private static final int timedRounds = 3;
+
+	public static void main(String[] args) throws Exception
+	{
+		final boolean includeQuasar = args.length > 0 && args[0].equalsIgnoreCase("quasar");
+		if (includeQuasar)
+			QuasarStartup.start();
+
+		int numFailed = 0;
+		for (int bitDepth : bitDepths)
+			for (int patchSize : patchSizes)
+				for (int maxShift : maxShifts)
+				{
+					final int shiftX = maxShift / 3;
+					final int shiftY = -maxShift / 2;
+					Slices slices = new Slices(bitDepth, patchSize, maxShift, shiftX, shiftY, 1000 * bitDepth + patchSize + maxShift);
+					final int numCandidates = (2 * maxShift + 1) * (2 * maxShift + 1);
+
+					for (MatchingEngine engine : MatchingEngine.values())
+					{
+						if (engine == MatchingEngine.QUASAR && !includeQuasar)
+							continue;
+
+						String testcase = String.format("%2d bit, patch %3d, window %3d, %-8s", bitDepth, patchSize, patchSize + 2 * maxShift, engine.name());
+						RegistrationEngine registerer = engine.create(new RegistrationParameters(null, null, null, maxShift, maxShift, false, 0.0, false, null));
+						try
+						{
+							RegistrationResult result = register(registerer, slices);
+							if (result.posX != maxShift + shiftX || result.posY != maxShift + shiftY)
+							{
+								System.out.println(String.format("FAILED: %s: found the patch at (%d, %d) instead of (%d, %d)", testcase, result.posX, result.posY, maxShift + shiftX, maxShift + shiftY));
+								numFailed++;
+								continue;
+							}
+
+							long best = Long.MAX_VALUE;
+							for (int round = 0; round < warmupRounds + timedRounds; round++)
+							{
+								long start = System.nanoTime();
+								register(registerer, slices);
+								long duration = System.nanoTime() - start;
+
+								if (round >= warmupRounds)
+									best = Math.min(best, duration);
+							}
+							System.out.println(String.format("%s: %8.2f ns/candidate, %8.1f slices/s", testcase, (double)best / numCandidates, 1e9 / best));
+						}
+						finally
+						{
+							dispose(registerer);
+						}
+					}
+				}
+
+		System.out.println(numFailed == 0 ? "SUCCESS: all engines found the planted shifts" : "FAILED: " + numFailed + " wrong shifts");
+		System.exit(numFailed == 0 ? 0 : 1);
+	}
+
+	// A reference patch, and the search window in the next slice (which is shifted by (shiftX, shiftY))
+	// centered on the position of the patch in the reference slice, as ShiftEstimator would crop it.
+	private static class Slices
+	{
+		public final ImageProcessor referencePatch;
+		public final ImageProcessor searchWindow;
+		public final int maxShift;
+
+		public Slices(int bitDepth, int patchSize, int maxShift, int shiftX, int shiftY, long seed)
+		{
+			final int windowSize = patchSize + 2 * maxShift;
+			final int margin = 2 * maxShift;  // room for the shift
+			final int size = windowSize + 2 * margin;
+			Random random = new Random(seed);
+
+			float[] texture = SyntheticStack.texture(size, size, random);  // the texture of the slices of StackBenchmark
+			this.referencePatch = toImage(bitDepth, texture, size, margin + maxShift, margin + maxShift, patchSize, noise(patchSize, random));
+			this.searchWindow = toImage(bitDepth, texture, size, margin - shiftX, margin - shiftY, windowSize, noise(windowSize, random));
+			this.maxShift = maxShift;
+		}
+
+		private static float[] noise(int size, Random random)
+		{
+			float[] noise = new float[size * size];
+			for (int i = 0; i < noise.length; i++)
+				noise[i] = (float)(0.03 * random.nextGaussian());
+			return noise;
+		}
+
+		// The square (x0, y0, size, size) of the texture, plus noise
+		private static ImageProcessor toImage(int bitDepth, float[] texture, int textureSize, int x0, int y0, int size, float[] noise)
+		{
+			final int maxValue = (bitDepth == 8) ? 255 : 65535;
+			ImageProcessor image = (bitDepth == 8) ? new ByteProcessor(size, size) : new ShortProcessor(size, size);
+			for (int y = 0; y < size; y++)
+				for (int x = 0; x < size; x++)
+				{
+					float value = texture[(y0 + y) * textureSize + (x0 + x)] + noise[y * size + x];
+					image.set(x, y, Math.max(0, Math.min(maxValue, Math.round(value * maxValue))));
+				}
+			return image;
+		}
+	}
+
+	private static RegistrationResult register(RegistrationEngine registerer, Slices slices) throws Exception
+	{
+		final int n = 2 * slices.maxShift;
+		registerer.setParameters(slices.searchWindow, slices.referencePatch, 0, n, 0, n);
+		registerer.setPredictedPosition(slices.maxShift, slices.maxShift);  // the position of the patch in the reference slice
+		if (registerer.runsOnQuasarThread())
+			return QExecutor.getInstance().submit(registerer).get();
+		else
+			return registerer.call();
+	}
+
+	private static void dispose(RegistrationEngine registerer) throws Exception
+	{
+		if (registerer.runsOnQuasarThread())
+			QExecutor.getInstance().submit(() -> { registerer.dispose(); return null; }).get();
+		else
+			registerer.dispose();
+	}
+}
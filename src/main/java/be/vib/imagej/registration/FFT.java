@@ -0,0 +1,96 @@
+package be.vib.imagej.registration;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+// A plan for an in-place radix-2 complex fast Fourier transform of a fixed size n (a power of two).
+// The plan holds the precomputed twiddle factors and the bit reversal permutation.
+// Plans are immutable and cached, so use FFT.plan(n) to get one; they can be shared between threads.
+public class FFT
+{
+	private static final ConcurrentHashMap<Integer, FFT> plans = new ConcurrentHashMap<Integer, FFT>();
+
+	private final int n;
+	private final int[] bitReversed;
+	private final double[] cos;  // cos(2 pi k / n) for k = 0 .. n/2-1
+	private final double[] sin;  // sin(2 pi k / n) for k = 0 .. n/2-1
+
+	public static FFT plan(int n)
+	{
+		return plans.computeIfAbsent(n, FFT::new);
+	}
+
+	// Returns the smallest power of two >= n (and >= 2).
+	public static int nextPowerOfTwo(int n)
+	{
+		int p = 2;
+		while (p < n)
+			p <<= 1;
+		return p;
+	}
+
+	private FFT(int n)
+	{
+		if (n < 2 || Integer.bitCount(n) != 1)
+			throw new IllegalArgumentException("FFT size must be a power of two, got " + n);
+
+		this.n = n;
+
+		final int bits = Integer.numberOfTrailingZeros(n);
+		bitReversed = new int[n];
+		for (int i = 0; i < n; i++)
+			bitReversed[i] = Integer.reverse(i) >>> (32 - bits);
+
+		cos = new double[n / 2];
+		sin = new double[n / 2];
+		for (int k = 0; k < n / 2; k++)
+		{
+			double angle = 2.0 * Math.PI * k / n;
+			cos[k] = Math.cos(angle);
+			sin[k] = Math.sin(angle);
+		}
+	}
+
+	public int size()
+	{
+		return n;
+	}
+
+	// Transforms the complex signal (re[k], im[k]), k = 0 .. n-1, in place.
+	// The forward transform uses exp(-2 pi i jk / n), the inverse transform exp(+2 pi i jk / n).
+	// Neither direction is normalized.
+	public void transform(double[] re, double[] im, boolean inverse)
+	{
+		for (int i = 0; i < n; i++)
+		{
+			int j = bitReversed[i];
+			if (j > i)
+			{
+				double t = re[i]; re[i] = re[j]; re[j] = t;
+				t = im[i]; im[i] = im[j]; im[j] = t;
+			}
+		}
+
+		final double sign = inverse ? 1.0 : -1.0;
+		for (int size = 2; size <= n; size <<= 1)
+		{
+			final int half = size >> 1;
+			final int step = n / size;
+			for (int start = 0; start < n; start += size)
+			{
+				for (int k = 0; k < half; k++)
+				{
+					final double wr = cos[k * step];
+					final double wi = sign * sin[k * step];
+					final int a = start + k;
+					final int b = a + half;
+					final double tr = re[b] * wr - im[b] * wi;
+					final double ti = re[b] * wi + im[b] * wr;
+					re[b] = re[a] - tr;
+					im[b] = im[a] - ti;
+					re[a] += tr;
+					im[a] += ti;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,435 @@
+package be.vib.imagej.registration;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+// FFTRegisterer computes the cost for all candidate positions at once, in the frequency domain.
+// Brute force template matching costs O(#candidates x #patch pixels) per slice, which becomes
+// prohibitive for large search windows and large patches; here the cost is O(N log N) with N the
+// number of pixels in the search window.
+//
+// Two measures are supported:
+// - SSD: the sum of squared differences, expanded as
+//          SSD(x,y) = sum I^2 - 2 sum I*T + sum T^2
+//   where the cross-correlation term sum I*T is computed via FFT and the local energy sum I^2
+//   via a summed-area table.
+// - NCC: zero-mean normalized cross-correlation,
+//          NCC(x,y) = sum I*(T - mean T) / sqrt((sum I^2 - (sum I)^2/n) * sum (T - mean T)^2)
+//   which is maximized (we minimize -NCC).
+//
+// Pixel values are offset by the mean of the reference patch before transforming; this does not change
+// SSD or NCC but keeps the magnitude of the correlation (and hence the round-off error) small.
+// The candidate with the lowest cost wins, with ties broken like the Quasar code (smallest y, then smallest x).
+// Because the costs are computed in floating point, candidates whose exact costs differ by less than
+// the round-off error may be ranked differently than in an exhaustive integer search.
+//
+// The spectrum of the reference patch is computed only once per padded window size and is reused
+// for all subsequent slices, as long as the same reference patch is passed in.
+//
+// Optionally the best position is refined to subpixel accuracy, either by a parabola or Gaussian fit
+// through the costs around the minimum, or by evaluating the cost on a fine grid (1/upsamplingFactor pixel)
+// within +/- 0.5 pixel of the best position. For the latter the cross-correlation term is interpolated by a local
+// inverse DFT of the cross-power spectrum, computed separably, so it costs only O(upsamplingFactor x N);
+// the local sums of the image (for the energy and normalization terms) are interpolated bilinearly.
+public class FFTRegisterer implements RegistrationEngine
+{
+	public enum Measure
+	{
+		SSD,
+		NCC
+	}
+
+	private ImageProcessor referencePatch;
+	private ImageProcessor image;
+	private int xmin;
+	private int ymin;
+	private int xmax;
+	private int ymax;
+
+	private Measure measure;
+	private SubpixelRefinement subpixelRefinement;
+	private static final int upsamplingFactor = 20;  // for SubpixelRefinement.UPSAMPLED_DFT; positions are refined to 1/upsamplingFactor pixel
+
+	// The cross-power spectrum and the summed-area tables of the most recent search window (only kept for SubpixelRefinement.UPSAMPLED_DFT)
+	private RealFFT2D.Spectrum crossSpectrum = null;
+	private double[] sumTable = null;
+	private double[] sumSquaresTable = null;
+
+	// Cached information on the reference patch
+	private ImageProcessor cachedReferencePatch = null;
+	private double referenceMean;
+	private double referenceEnergy;  // sum of (T - mean T)^2
+	private Map<Long, RealFFT2D.Spectrum> referenceSpectra = new HashMap<Long, RealFFT2D.Spectrum>();  // key: padded width << 32 | padded height
+
+	public FFTRegisterer(Measure measure)
+	{
+		this(measure, SubpixelRefinement.NONE);
+	}
+
+	public FFTRegisterer(Measure measure, SubpixelRefinement subpixelRefinement)
+	{
+		this.measure = measure;
+		this.subpixelRefinement = subpixelRefinement;
+		this.xmin = this.ymin = this.xmax = this.ymax = 0;
+	}
+
+	@Override
+	public void setParameters(ImageProcessor image, ImageProcessor referencePatch, int xmin, int xmax, int ymin, int ymax)
+	{
+		this.image = image;
+		this.referencePatch = referencePatch;
+		this.xmin = xmin;
+		this.ymin = ymin;
+		this.xmax = xmax;
+		this.ymax = ymax;
+	}
+
+	@Override
+	public boolean runsOnQuasarThread()
+	{
+		return false;
+	}
+
+	@Override
+	public RegistrationResult call()
+	{
+		if (xmin > xmax || ymin > ymax)
+			throw new IllegalArgumentException("The search window is too small to contain the reference patch.");
+
+		if (xmax + referencePatch.getWidth() > image.getWidth() || ymax + referencePatch.getHeight() > image.getHeight() || xmin < 0 || ymin < 0)
+			throw new IllegalArgumentException("The search range for the reference patch extends beyond the image.");
+
+		double[] costs = costSurface();
+
+		// costs[] holds the cost for candidate (x, y) at index (y - ymin) * (xmax - xmin + 1) + (x - xmin).
+		int bestIndex = 0;
+		for (int i = 1; i < costs.length; i++)
+		{
+			if (costs[i] < costs[bestIndex])  // strict < keeps the first (smallest y, then x) of equal costs
+				bestIndex = i;
+		}
+
+		final int numCandidatesX = xmax - xmin + 1;
+		final int numCandidatesY = ymax - ymin + 1;
+		RegistrationResult result = new RegistrationResult(xmin + bestIndex % numCandidatesX, ymin + bestIndex / numCandidatesX);
+		result.cost = costs[bestIndex];
+
+		if (subpixelRefinement != SubpixelRefinement.NONE)
+		{
+			final int cx = result.posX - xmin;
+			final int cy = result.posY - ymin;
+			double[] neighborhood = new double[9];
+			for (int dy = -1; dy <= 1; dy++)
+				for (int dx = -1; dx <= 1; dx++)
+				{
+					final boolean inside = (cx + dx >= 0 && cx + dx < numCandidatesX && cy + dy >= 0 && cy + dy < numCandidatesY);
+					neighborhood[(dy + 1) * 3 + (dx + 1)] = inside ? costs[(cy + dy) * numCandidatesX + (cx + dx)] : Double.NaN;
+				}
+			if (subpixelRefinement == SubpixelRefinement.UPSAMPLED_DFT)
+				refineUpsampled(result, neighborhood);
+			else
+				subpixelRefinement.refine(result, neighborhood);
+		}
+		crossSpectrum = null;
+		sumTable = null;
+		sumSquaresTable = null;
+
+		return result;
+	}
+
+	// Refines result by evaluating the cost on a grid of 1/upsamplingFactor pixel within +/- 0.5 pixel of the best integer position.
+	// It is the same SSD or NCC cost as costSurface() computes, not just the cross-correlation, so the refined position
+	// minimizes the same measure as the integer search. Like the other refinement methods, it does no refinement
+	// along an axis with a missing neighbor (NaN in neighborhood, see SubpixelRefinement.refine()).
+	// The peak sharpness is computed from the costs at the refined position and one pixel left, right, above and below it.
+	private void refineUpsampled(RegistrationResult result, double[] neighborhood)
+	{
+		final boolean refineX = !Double.isNaN(neighborhood[3]) && !Double.isNaN(neighborhood[5]);
+		final boolean refineY = !Double.isNaN(neighborhood[1]) && !Double.isNaN(neighborhood[7]);
+		final double[] dx = gridOffsets(refineX ? upsamplingFactor / 2 : 0);
+		final double[] dy = gridOffsets(refineY ? upsamplingFactor / 2 : 0);
+
+		final double[][] cross = interpolatedCrossCorrelation(result.posX, result.posY, dx, dy);
+		double best = Double.POSITIVE_INFINITY;
+		for (int j = 0; j < dy.length; j++)
+		{
+			for (int i = 0; i < dx.length; i++)
+			{
+				final double cost = interpolatedCost(result.posX + dx[i], result.posY + dy[j], cross[j][i]);
+				if (cost < best)
+				{
+					best = cost;
+					result.subX = dx[i];
+					result.subY = dy[j];
+				}
+			}
+		}
+
+		final double[] sx = { result.subX - 1.0, result.subX, result.subX + 1.0 };
+		final double[] sy = { result.subY - 1.0, result.subY, result.subY + 1.0 };
+		final double[][] around = interpolatedCrossCorrelation(result.posX, result.posY, sx, sy);
+		final double x = result.posX + result.subX;
+		final double y = result.posY + result.subY;
+		final double center = interpolatedCost(x, y, around[1][1]);
+		final double left = refineX ? interpolatedCost(x - 1.0, y, around[1][0]) : Double.NaN;
+		final double right = refineX ? interpolatedCost(x + 1.0, y, around[1][2]) : Double.NaN;
+		final double up = refineY ? interpolatedCost(x, y - 1.0, around[0][1]) : Double.NaN;
+		final double down = refineY ? interpolatedCost(x, y + 1.0, around[2][1]) : Double.NaN;
+		result.peakSharpness = SubpixelRefinement.peakSharpness(center, left, right, up, down);
+	}
+
+	// Returns the offsets -h/f, ..., 0, ..., h/f with f the upsampling factor.
+	private static double[] gridOffsets(int h)
+	{
+		double[] offsets = new double[2 * h + 1];
+		for (int k = 0; k < offsets.length; k++)
+			offsets[k] = (double)(k - h) / upsamplingFactor;
+		return offsets;
+	}
+
+	// Returns the cross-correlation of costSurface() at (x + dx[i], y + dy[j]) in element [j][i],
+	// by a direct inverse DFT of the cross-power spectrum (which interpolates it for fractional positions).
+	// The inverse DFT is done separably: first over the spectrum columns for all x positions, then over the rows for all y positions.
+	private double[][] interpolatedCrossCorrelation(int x, int y, double[] dx, double[] dy)
+	{
+		final RealFFT2D.Spectrum spectrum = crossSpectrum;
+		final int paddedWidth = FFT.nextPowerOfTwo(image.getWidth());
+		final int paddedHeight = FFT.nextPowerOfTwo(image.getHeight());
+		final int halfWidth = paddedWidth / 2 + 1;
+		final double scale = 1.0 / ((double)paddedWidth * paddedHeight);  // like RealFFT2D.inverse()
+
+		// partial[i][ky] = sum over kx of weight(kx) * X[ky][kx] * exp(2 pi i kx px / paddedWidth), for px = x + dx[i]
+		// (the weight is 2 for the columns whose mirror image is not stored in the half spectrum, and 1 otherwise)
+		final double[][] partialRe = new double[dx.length][paddedHeight];
+		final double[][] partialIm = new double[dx.length][paddedHeight];
+		for (int i = 0; i < dx.length; i++)
+		{
+			final double px = x + dx[i];
+			for (int kx = 0; kx < halfWidth; kx++)
+			{
+				final double weight = (kx == 0 || 2 * kx == paddedWidth) ? 1.0 : 2.0;
+				final double angle = 2.0 * Math.PI * kx * px / paddedWidth;
+				final double c = weight * Math.cos(angle);
+				final double s = weight * Math.sin(angle);
+				for (int ky = 0; ky < paddedHeight; ky++)
+				{
+					final double re = spectrum.re[ky * halfWidth + kx];
+					final double im = spectrum.im[ky * halfWidth + kx];
+					partialRe[i][ky] += re * c - im * s;
+					partialIm[i][ky] += re * s + im * c;
+				}
+			}
+		}
+
+		final double[][] correlation = new double[dy.length][dx.length];
+		final double[] cos = new double[paddedHeight];
+		final double[] sin = new double[paddedHeight];
+		for (int j = 0; j < dy.length; j++)
+		{
+			final double py = y + dy[j];
+			for (int ky = 0; ky < paddedHeight; ky++)
+			{
+				final int signedKy = (2 * ky < paddedHeight) ? ky : ky - paddedHeight;  // use the lowest frequencies for band-limited interpolation
+				final double angle = 2.0 * Math.PI * signedKy * py / paddedHeight;
+				cos[ky] = Math.cos(angle);
+				sin[ky] = Math.sin(angle);
+			}
+
+			for (int i = 0; i < dx.length; i++)
+			{
+				double sum = 0.0;  // real part
+				for (int ky = 0; ky < paddedHeight; ky++)
+					sum += partialRe[i][ky] * cos[ky] - partialIm[i][ky] * sin[ky];
+				correlation[j][i] = sum * scale;
+			}
+		}
+		return correlation;
+	}
+
+	// Returns the cost at the fractional position (px, py), given the cross-correlation there.
+	// The local sum and energy of the image under the patch are interpolated bilinearly from those at the surrounding integer positions.
+	private double interpolatedCost(double px, double py, double cross)
+	{
+		final int patchWidth = referencePatch.getWidth();
+		final int patchHeight = referencePatch.getHeight();
+		final int maxX = image.getWidth() - patchWidth;
+		final int maxY = image.getHeight() - patchHeight;
+		final int sw = image.getWidth() + 1;
+
+		final int x0 = (int)Math.floor(px);
+		final int y0 = (int)Math.floor(py);
+		final double fx = px - x0;
+		final double fy = py - y0;
+
+		double localSum = 0.0;
+		double localEnergy = 0.0;
+		for (int j = 0; j <= 1; j++)
+		{
+			for (int i = 0; i <= 1; i++)
+			{
+				final double w = (i == 0 ? 1.0 - fx : fx) * (j == 0 ? 1.0 - fy : fy);
+				if (w == 0.0)
+					continue;
+				final int bx = Math.max(0, Math.min(maxX, x0 + i));
+				final int by = Math.max(0, Math.min(maxY, y0 + j));
+				localSum += w * boxSum(sumTable, sw, bx, by, patchWidth, patchHeight);
+				localEnergy += w * boxSum(sumSquaresTable, sw, bx, by, patchWidth, patchHeight);
+			}
+		}
+		return cost(localSum, localEnergy, cross);
+	}
+
+	// Returns the cost (lower is better) for all candidates (x, y) with xmin <= x <= xmax and ymin <= y <= ymax, row-major.
+	public double[] costSurface()
+	{
+		final int imageWidth = image.getWidth();
+		final int imageHeight = image.getHeight();
+		final int patchWidth = referencePatch.getWidth();
+		final int patchHeight = referencePatch.getHeight();
+
+		final int paddedWidth = FFT.nextPowerOfTwo(imageWidth);
+		final int paddedHeight = FFT.nextPowerOfTwo(imageHeight);
+		RealFFT2D fft = new RealFFT2D(paddedWidth, paddedHeight);
+
+		RealFFT2D.Spectrum referenceSpectrum = getReferenceSpectrum(fft);
+
+		// Cross-correlation of the (offset) image with the zero-mean reference patch
+		final double[] offsetImage = toPaddedDoubles(image, paddedWidth, paddedHeight, referenceMean);
+		final RealFFT2D.Spectrum product = RealFFT2D.multiplyConjugate(fft.forward(offsetImage), referenceSpectrum);
+		if (subpixelRefinement == SubpixelRefinement.UPSAMPLED_DFT)
+			crossSpectrum = product.copy();  // inverse() overwrites its argument
+		final double[] correlation = fft.inverse(product);
+
+		// Summed-area tables of the offset image values and their squares, for the local sums over each candidate patch.
+		final int sw = imageWidth + 1;
+		final double[] sum = new double[sw * (imageHeight + 1)];
+		final double[] sumSquares = new double[sw * (imageHeight + 1)];
+		for (int y = 0; y < imageHeight; y++)
+		{
+			double rowSum = 0, rowSumSquares = 0;
+			for (int x = 0; x < imageWidth; x++)
+			{
+				double v = offsetImage[y * paddedWidth + x];
+				rowSum += v;
+				rowSumSquares += v * v;
+				sum[(y + 1) * sw + x + 1] = sum[y * sw + x + 1] + rowSum;
+				sumSquares[(y + 1) * sw + x + 1] = sumSquares[y * sw + x + 1] + rowSumSquares;
+			}
+		}
+		if (subpixelRefinement == SubpixelRefinement.UPSAMPLED_DFT)
+		{
+			sumTable = sum;
+			sumSquaresTable = sumSquares;
+		}
+
+		final int numCandidatesX = xmax - xmin + 1;
+		final int numCandidatesY = ymax - ymin + 1;
+		final double[] costs = new double[numCandidatesX * numCandidatesY];
+		for (int y = ymin; y <= ymax; y++)
+		{
+			for (int x = xmin; x <= xmax; x++)
+			{
+				final double localSum = boxSum(sum, sw, x, y, patchWidth, patchHeight);
+				final double localEnergy = boxSum(sumSquares, sw, x, y, patchWidth, patchHeight);
+				final double cross = correlation[y * paddedWidth + x];  // = sum (I - mean T) * (T - mean T)
+				costs[(y - ymin) * numCandidatesX + (x - xmin)] = cost(localSum, localEnergy, cross);
+			}
+		}
+		return costs;
+	}
+
+	// Returns the cost of a candidate from the sum and the energy (sum of squares) of the offset image under the patch,
+	// and the cross-correlation of the offset image with the zero-mean reference patch.
+	private double cost(double localSum, double localEnergy, double cross)
+	{
+		if (measure == Measure.SSD)
+		{
+			// sum ((I - m) - (T - m))^2 = sum (I - m)^2 - 2 sum (I - m)(T - m) + sum (T - m)^2
+			return localEnergy - 2.0 * cross + referenceEnergy;
+		}
+		else
+		{
+			final int n = referencePatch.getWidth() * referencePatch.getHeight();
+			final double localVariance = localEnergy - localSum * localSum / n;
+			final double denominator = Math.sqrt(Math.max(localVariance, 0.0) * referenceEnergy);
+			return (denominator > 0.0) ? -cross / denominator : 0.0;  // flat patches do not correlate with anything
+		}
+	}
+
+	private RealFFT2D.Spectrum getReferenceSpectrum(RealFFT2D fft)
+	{
+		if (referencePatch != cachedReferencePatch)
+		{
+			referenceSpectra.clear();
+			cachedReferencePatch = referencePatch;
+
+			double[] values = toPaddedDoubles(referencePatch, referencePatch.getWidth(), referencePatch.getHeight(), 0.0);
+			double total = 0;
+			for (double v : values)
+				total += v;
+			referenceMean = total / values.length;
+
+			double energy = 0;
+			for (double v : values)
+				energy += (v - referenceMean) * (v - referenceMean);
+			referenceEnergy = energy;
+		}
+
+		final long key = ((long)fft.getWidth() << 32) | fft.getHeight();
+		RealFFT2D.Spectrum spectrum = referenceSpectra.get(key);
+		if (spectrum == null)
+		{
+			double[] zeroMeanPatch = toPaddedDoubles(referencePatch, fft.getWidth(), fft.getHeight(), referenceMean);
+			// Only the patch area must be zero-mean, the padding must stay zero.
+			final int patchWidth = referencePatch.getWidth();
+			final int patchHeight = referencePatch.getHeight();
+			for (int y = 0; y < fft.getHeight(); y++)
+				for (int x = 0; x < fft.getWidth(); x++)
+					if (x >= patchWidth || y >= patchHeight)
+						zeroMeanPatch[y * fft.getWidth() + x] = 0.0;
+
+			spectrum = fft.forward(zeroMeanPatch);
+			referenceSpectra.put(key, spectrum);
+		}
+		return spectrum;
+	}
+
+	// Returns the sum of the values in the summed-area table over the w x h box with top-left corner (x, y).
+	private static double boxSum(double[] table, int tableWidth, int x, int y, int w, int h)
+	{
+		return table[(y + h) * tableWidth + x + w] - table[y * tableWidth + x + w] - table[(y + h) * tableWidth + x] + table[y * tableWidth + x];
+	}
+
+	// Returns the pixel values minus the given offset, in the top-left corner of a paddedWidth x paddedHeight array
+	// (which is zero elsewhere).
+	private static double[] toPaddedDoubles(ImageProcessor image, int paddedWidth, int paddedHeight, double offset)
+	{
+		final int width = image.getWidth();
+		final int height = image.getHeight();
+		double[] values = new double[paddedWidth * paddedHeight];
+
+		if (image instanceof ByteProcessor)
+		{
+			byte[] pixels = (byte[])image.getPixels();
+			for (int y = 0; y < height; y++)
+				for (int x = 0; x < width; x++)
+					values[y * paddedWidth + x] = (pixels[y * width + x] & 0xff) - offset;
+		}
+		else if (image instanceof ShortProcessor)
+		{
+			short[] pixels = (short[])image.getPixels();
+			for (int y = 0; y < height; y++)
+				for (int x = 0; x < width; x++)
+					values[y * paddedWidth + x] = (pixels[y * width + x] & 0xffff) - offset;
+		}
+		else
+		{
+			throw new RuntimeException("Only 8 bit/pixel and 16 bit/pixel grayscale images are supported.");
+		}
+		return values;
+	}
+}
@@ -0,0 +1,36 @@
+package be.vib.imagej.registration;
+
+import java.util.function.Function;
+
+// FlightRecording creates the Java Flight Recorder events of the registration (see JfrStageEvents):
+// one event per stage (load, crop, match, translate, save) per slice, with the slice index, input file and byte counts,
+// so a recording of a production run shows them next to the GC pauses and I/O of the JVM in JDK Mission Control.
+// Record with e.g. -XX:StartFlightRecording=filename=registration.jfr (the events are in the "EM Registration" category).
+// JFR needs Java 11 or later (or 8u262 or later); on older Java versions, or if JfrStageEvents was not built,
+// begin() returns an event that does nothing.
+public class FlightRecording
+{
+	private static final StageEvent NONE = (slice, inputFile, bytes) -> {};
+	
+	private static final Function<RegistrationMetrics.Stage, StageEvent> events = loadEvents();
+	
+	// Starts the event of a stage.
+	public static StageEvent begin(RegistrationMetrics.Stage stage)
+	{
+		return (events == null) ? NONE : events.apply(stage);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static Function<RegistrationMetrics.Stage, StageEvent> loadEvents()
+	{
+		try
+		{
+			Class.forName("jdk.jfr.Event");
+			return (Function<RegistrationMetrics.Stage, StageEvent>)Class.forName("be.vib.imagej.registration.JfrStageEvents").getDeclaredConstructor().newInstance();
+		}
+		catch (Throwable e)  // ClassNotFoundException, NoClassDefFoundError, ...
+		{
+			return null;
+		}
+	}
+}
@@ -0,0 +1,164 @@
+package be.vib.imagej.registration;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import ij.process.ImageProcessor;
+
+// JavaRegisterer is a pure Java alternative to the Quasar registration() function
+// in registration_templatematching.q. It does an exhaustive search over all candidate positions
+// and returns the position with the smallest sum of absolute differences (SAD) with the reference patch
+// (or the smallest sum of squared differences, if so requested). The cost itself is computed by a CostKernel.
+// The candidate positions are distributed over the threads of a ForkJoin pool, so unlike the Quasar
+// implementation it does not need a GPU, and it uses all CPU cores.
+//
+// The result is identical to the Quasar implementation: if several candidates have the same cost,
+// the one with the smallest y wins, and for equal y the one with the smallest x.
+// (This is what find_index_min() on the row-major cost array in Quasar does.)
+public class JavaRegisterer implements RegistrationEngine
+{
+	// Below this number of pixel operations (#candidates x #patch pixels) we stop splitting the work into smaller tasks.
+	private static final long sequentialThreshold = 1 << 18;
+
+	private ImageProcessor referencePatch;
+	private ImageProcessor image;
+	private int xmin;
+	private int ymin;
+	private int xmax;
+	private int ymax;
+
+	private ForkJoinPool pool;
+	private CostFunction costFunction;
+	private CostKernel kernel;  // only valid during call()
+
+	public JavaRegisterer()
+	{
+		this(CostFunction.SAD);
+	}
+
+	public JavaRegisterer(CostFunction costFunction)
+	{
+		this(costFunction, ForkJoinPool.commonPool());
+	}
+
+	public JavaRegisterer(CostFunction costFunction, ForkJoinPool pool)
+	{
+		this.costFunction = costFunction;
+		this.pool = pool;
+		this.xmin = this.ymin = this.xmax = this.ymax = 0;
+	}
+
+	@Override
+	public void setParameters(ImageProcessor image, ImageProcessor referencePatch, int xmin, int xmax, int ymin, int ymax)
+	{
+		this.image = image;
+		this.referencePatch = referencePatch;
+		this.xmin = xmin;
+		this.ymin = ymin;
+		this.xmax = xmax;
+		this.ymax = ymax;
+	}
+
+	@Override
+	public boolean runsOnQuasarThread()
+	{
+		return false;
+	}
+
+	@Override
+	public RegistrationResult call()
+	{
+		if (xmin > xmax || ymin > ymax)
+			throw new IllegalArgumentException("The search window is too small to contain the reference patch.");
+
+		if (xmax + referencePatch.getWidth() > image.getWidth() || ymax + referencePatch.getHeight() > image.getHeight() || xmin < 0 || ymin < 0)
+			throw new IllegalArgumentException("The search range for the reference patch extends beyond the image.");
+
+		kernel = CostKernels.create(costFunction, image, referencePatch);
+		try
+		{
+			Candidate best = pool.invoke(new SearchTask(ymin, ymax + 1));
+			RegistrationResult result = new RegistrationResult(best.x, best.y);
+			result.cost = best.cost;
+			return result;
+		}
+		finally
+		{
+			kernel = null;  // do not hold on to the image
+		}
+	}
+
+	// The best candidate position found in some part of the search range.
+	private static class Candidate
+	{
+		public final int x;
+		public final int y;
+		public final long cost;
+
+		public Candidate(int x, int y, long cost)
+		{
+			this.x = x;
+			this.y = y;
+			this.cost = cost;
+		}
+
+		// Returns the better of two candidates, breaking ties the same way as the Quasar code does.
+		public static Candidate best(Candidate a, Candidate b)
+		{
+			if (a.cost != b.cost)
+				return a.cost < b.cost ? a : b;
+			if (a.y != b.y)
+				return a.y < b.y ? a : b;
+			return a.x <= b.x ? a : b;
+		}
+	}
+
+	// Searches candidate rows y0 <= y < y1, splitting the rows over subtasks if there is enough work.
+	@SuppressWarnings("serial")
+	private class SearchTask extends RecursiveTask<Candidate>
+	{
+		private final int y0;
+		private final int y1;
+
+		public SearchTask(int y0, int y1)
+		{
+			this.y0 = y0;
+			this.y1 = y1;
+		}
+
+		@Override
+		protected Candidate compute()
+		{
+			final long work = (long)(y1 - y0) * (xmax - xmin + 1) * referencePatch.getWidth() * referencePatch.getHeight();
+			if (y1 - y0 == 1 || work <= sequentialThreshold)
+			{
+				return searchRows(y0, y1);
+			}
+			else
+			{
+				int mid = (y0 + y1) >>> 1;
+				SearchTask top = new SearchTask(y0, mid);
+				SearchTask bottom = new SearchTask(mid, y1);
+				top.fork();
+				Candidate b = bottom.compute();
+				Candidate a = top.join();
+				return Candidate.best(a, b);
+			}
+		}
+	}
+
+	private Candidate searchRows(int y0, int y1)
+	{
+		Candidate best = null;
+		for (int y = y0; y < y1; y++)
+		{
+			for (int x = xmin; x <= xmax; x++)
+			{
+				long cost = kernel.cost(x, y);
+				if (best == null || cost < best.cost)  // strict < keeps the first (smallest y, then x) of equal costs
+					best = new Candidate(x, y, cost);
+			}
+		}
+		return best;
+	}
+}
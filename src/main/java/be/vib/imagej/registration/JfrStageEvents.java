@@ -0,0 +1,128 @@
+package be.vib.imagej.registration;
+
+import java.nio.file.Path;
+import java.util.function.Function;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// The Java Flight Recorder events of the registration stages. This is the only class that needs jdk.jfr,
+// so the build leaves it out if the JDK does not have it; use it via FlightRecording.
+public class JfrStageEvents implements Function<RegistrationMetrics.Stage, StageEvent>
+{
+	@Category("EM Registration")
+	@StackTrace(false)
+	private static abstract class SliceStageEvent extends Event implements StageEvent
+	{
+		@Label("Slice")
+		@Description("Index of the slice in the stack being registered")
+		int slice;
+		
+		@Label("Input File")
+		String inputFile;
+		
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+		
+		@Override
+		public void commit(int slice, Path inputFile, long bytes)
+		{
+			end();
+			if (shouldCommit())
+			{
+				this.slice = slice;
+				this.inputFile = inputFile.toString();
+				this.bytes = bytes;
+				commit();
+			}
+		}
+	}
+	
+	@Name("be.vib.imagej.registration.Load")
+	@Label("Slice Load")
+	@Description("Reading a slice (or only its search window) from disk")
+	private static class LoadEvent extends SliceStageEvent
+	{
+	}
+	
+	@Name("be.vib.imagej.registration.Crop")
+	@Label("Search Window Crop")
+	@Description("Copying the search window out of a loaded slice")
+	private static class CropEvent extends SliceStageEvent
+	{
+	}
+	
+	@Name("be.vib.imagej.registration.Match")
+	@Label("Match")
+	@Description("Finding the reference patch in the search window")
+	private static class MatchEvent extends SliceStageEvent
+	{
+		@Label("Window Width")
+		int windowWidth;
+		
+		@Label("Window Height")
+		int windowHeight;
+		
+		@Label("Candidates")
+		@Description("Number of candidate positions in the search window")
+		long candidates;
+		
+		@Label("Engine")
+		String engine;
+		
+		@Override
+		public void setSearch(int windowWidth, int windowHeight, long candidates, String engine)
+		{
+			this.windowWidth = windowWidth;
+			this.windowHeight = windowHeight;
+			this.candidates = candidates;
+			this.engine = engine;
+		}
+	}
+	
+	@Name("be.vib.imagej.registration.Translate")
+	@Label("Translate")
+	@Description("Resampling a slice for a subpixel shift (integer shifts are applied while saving)")
+	private static class TranslateEvent extends SliceStageEvent
+	{
+	}
+	
+	@Name("be.vib.imagej.registration.Save")
+	@Label("Slice Save")
+	@Description("Writing a registered slice")
+	private static class SaveEvent extends SliceStageEvent
+	{
+	}
+	
+	@Override
+	public StageEvent apply(RegistrationMetrics.Stage stage)
+	{
+		SliceStageEvent event;
+		switch (stage)
+		{
+			case LOAD:
+				event = new LoadEvent();
+				break;
+			case CROP:
+				event = new CropEvent();
+				break;
+			case MATCH:
+				event = new MatchEvent();
+				break;
+			case TRANSLATE:
+				event = new TranslateEvent();
+				break;
+			default:
+				event = new SaveEvent();
+				break;
+		}
+		event.begin();
+		return event;
+	}
+}
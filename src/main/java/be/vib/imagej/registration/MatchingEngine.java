@@ -0,0 +1,65 @@
+package be.vib.imagej.registration;
+
+// The different implementations available for finding the reference patch in each slice.
+public enum MatchingEngine
+{
+	QUASAR("Quasar (GPU)"),
+	JAVA("Java (CPU, multithreaded)"),
+	JAVA_SSD("Java, sum of squared differences (CPU, multithreaded)"),
+	FFT_SSD("FFT, sum of squared differences (CPU, for large search windows)"),
+	FFT_NCC("FFT, normalized cross-correlation (CPU, for large search windows)"),
+	PYRAMID("Java, coarse-to-fine image pyramid (CPU, for large search windows)"),
+	SPIRAL("Java, spiral search with early termination (CPU)"),
+	SEA("Java, spiral search with successive elimination (CPU)");
+	
+	private final String description;  // shown to the user
+	
+	private MatchingEngine(String description)
+	{
+		this.description = description;
+	}
+	
+	public RegistrationEngine create(RegistrationParameters params)
+	{
+		// The FFT engines do their own subpixel refinement (they already have the costs around the minimum),
+		// the other engines get wrapped in a SubpixelRegisterer if subpixel accuracy is requested.
+		RegistrationEngine engine;
+		switch (this)
+		{
+			case FFT_SSD:
+				return new FFTRegisterer(FFTRegisterer.Measure.SSD, params.subpixelRefinement);
+			case FFT_NCC:
+				return new FFTRegisterer(FFTRegisterer.Measure.NCC, params.subpixelRefinement);
+			case JAVA:
+				engine = new JavaRegisterer(CostFunction.SAD);
+				break;
+			case JAVA_SSD:
+				engine = new JavaRegisterer(CostFunction.SSD);
+				break;
+			case PYRAMID:
+				engine = new PyramidRegisterer(new JavaRegisterer(CostFunction.SAD), CostFunction.SAD, params.pyramidLevels, params.pyramidFinalRefinement);
+				break;
+			case SPIRAL:
+				engine = new SpiralRegisterer(CostFunction.SAD);
+				break;
+			case SEA:
+				engine = new SEARegisterer(params.seaLevels);
+				break;
+			case QUASAR:
+			default:
+				engine = new Registerer();
+				break;
+		}
+		
+		if (params.subpixelRefinement != SubpixelRefinement.NONE)
+			return new SubpixelRegisterer(engine, params.subpixelRefinement);
+		else
+			return engine;
+	}
+	
+	@Override
+	public String toString()
+	{
+		return description;
+	}
+}
@@ -0,0 +1,113 @@
+package be.vib.imagej.registration;
+
+import javax.swing.BorderFactory;
+import javax.swing.GroupLayout;
+import javax.swing.JComboBox;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+
+@SuppressWarnings("serial")
+class MatchingEnginePanel extends JPanel
+{
+	private MatchingEngine engine = MatchingEngine.QUASAR;
+	private JComboBox<MatchingEngine> engineComboBox;
+	private SubpixelRefinement subpixelRefinement = SubpixelRefinement.NONE;
+	private JComboBox<SubpixelRefinement> subpixelComboBox;
+	private RegistrationMode mode = RegistrationMode.PIPELINED;
+	private JComboBox<RegistrationMode> modeComboBox;
+	private OutputFormat outputFormat = OutputFormat.SLICE_FILES;
+	private JComboBox<OutputFormat> outputFormatComboBox;
+	
+	public MatchingEnginePanel()
+	{		
+		buildUI();
+	}
+
+	private void buildUI()
+	{
+		setBorder(BorderFactory.createTitledBorder("Registration Engine"));
+		
+		engineComboBox = new JComboBox<MatchingEngine>(MatchingEngine.values());
+		engineComboBox.setSelectedItem(engine);
+		engineComboBox.addActionListener(e -> { engine = (MatchingEngine)engineComboBox.getSelectedItem(); });
+		
+		subpixelComboBox = new JComboBox<SubpixelRefinement>(SubpixelRefinement.values());
+		subpixelComboBox.setSelectedItem(subpixelRefinement);
+		subpixelComboBox.addActionListener(e -> { subpixelRefinement = (SubpixelRefinement)subpixelComboBox.getSelectedItem(); });
+		
+		modeComboBox = new JComboBox<RegistrationMode>(RegistrationMode.values());
+		modeComboBox.setSelectedItem(mode);
+		modeComboBox.addActionListener(e -> { mode = (RegistrationMode)modeComboBox.getSelectedItem(); });
+		
+		outputFormatComboBox = new JComboBox<OutputFormat>(OutputFormat.values());
+		outputFormatComboBox.setSelectedItem(outputFormat);
+		outputFormatComboBox.addActionListener(e -> { outputFormat = (OutputFormat)outputFormatComboBox.getSelectedItem(); });
+		
+		JLabel engineLabel = new JLabel("Engine:");
+		JLabel subpixelLabel = new JLabel("Subpixel refinement:");
+		JLabel modeLabel = new JLabel("Processing:");
+		JLabel outputFormatLabel = new JLabel("Output:");
+		
+		GroupLayout layout = new GroupLayout(this);
+		layout.setAutoCreateGaps(true);
+		layout.setAutoCreateContainerGaps(true);
+		
+		layout.setHorizontalGroup(
+		   layout.createSequentialGroup()
+		      .addGroup(layout.createParallelGroup(GroupLayout.Alignment.TRAILING, false)
+		    		   .addComponent(engineLabel)
+		    		   .addComponent(subpixelLabel)
+		    		   .addComponent(modeLabel)
+		    		   .addComponent(outputFormatLabel))
+		      .addGroup(layout.createParallelGroup(GroupLayout.Alignment.LEADING, false)
+		    		   .addComponent(engineComboBox, GroupLayout.PREFERRED_SIZE, GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE)
+		    		   .addComponent(subpixelComboBox, GroupLayout.PREFERRED_SIZE, GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE)
+		    		   .addComponent(modeComboBox, GroupLayout.PREFERRED_SIZE, GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE)
+		    		   .addComponent(outputFormatComboBox, GroupLayout.PREFERRED_SIZE, GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE)));
+		
+		layout.setVerticalGroup(
+		   layout.createSequentialGroup()
+		      .addGroup(layout.createParallelGroup(GroupLayout.Alignment.BASELINE)
+		    		   .addComponent(engineLabel)
+		    		   .addComponent(engineComboBox))
+		      .addGroup(layout.createParallelGroup(GroupLayout.Alignment.BASELINE)
+		    		   .addComponent(subpixelLabel)
+		    		   .addComponent(subpixelComboBox))
+		      .addGroup(layout.createParallelGroup(GroupLayout.Alignment.BASELINE)
+		    		   .addComponent(modeLabel)
+		    		   .addComponent(modeComboBox))
+		      .addGroup(layout.createParallelGroup(GroupLayout.Alignment.BASELINE)
+		    		   .addComponent(outputFormatLabel)
+		    		   .addComponent(outputFormatComboBox)));
+		
+		setLayout(layout);
+	}
+	
+	public MatchingEngine getEngine()
+	{
+		return engine;
+	}
+	
+	public SubpixelRefinement getSubpixelRefinement()
+	{
+		return subpixelRefinement;
+	}
+	
+	public RegistrationMode getMode()
+	{
+		return mode;
+	}
+	
+	public OutputFormat getOutputFormat()
+	{
+		return outputFormat;
+	}
+	
+	public void setEditable(boolean editable)
+	{
+		engineComboBox.setEnabled(editable);
+		subpixelComboBox.setEnabled(editable);
+		modeComboBox.setEnabled(editable);
+		outputFormatComboBox.setEnabled(editable);
+	}
+}
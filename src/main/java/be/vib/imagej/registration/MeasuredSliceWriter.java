@@ -0,0 +1,69 @@
+package be.vib.imagej.registration;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import ij.ImagePlus;
+
+// A SliceWriter that records the translate and save times and the bytes written in RegistrationMetrics
+// (and as flight recorder events, see FlightRecording), and passes the slices on to another SliceWriter.
+// Subpixel shifts are applied (resampled) here, so that the translation is measured separately;
+// integer shifts cost no more than a copy and are applied while saving.
+// A slice is done (see RegistrationMetrics.sliceDone() and ProgressTracker.sliceDone()) once it is written or skipped.
+public class MeasuredSliceWriter implements SliceWriter
+{
+	private SliceWriter output;
+	private RegistrationMetrics metrics;
+	private ProgressTracker progress;
+
+	public MeasuredSliceWriter(SliceWriter output, RegistrationMetrics metrics, ProgressTracker progress)
+	{
+		this.output = output;
+		this.metrics = metrics;
+		this.progress = progress;
+	}
+
+	@Override
+	public void write(int slice, Path inputFile, ImagePlus image, SliceShift shift) throws IOException
+	{
+		if (shift.isSubpixel())
+		{
+			long start = System.nanoTime();
+			StageEvent translateEvent = FlightRecording.begin(RegistrationMetrics.Stage.TRANSLATE);
+			shift.apply(image.getProcessor());
+			translateEvent.commit(slice, inputFile, SliceFiles.pixelBytes(image));
+			metrics.record(slice, inputFile, RegistrationMetrics.Stage.TRANSLATE, System.nanoTime() - start);
+			shift = new SliceShift(0, 0, 0.0, 0.0, shift.peakSharpness);  // the image is registered already
+		}
+
+		long start = System.nanoTime();
+		StageEvent saveEvent = FlightRecording.begin(RegistrationMetrics.Stage.SAVE);
+		output.write(slice, inputFile, image, shift);
+		final long bytes = SliceFiles.pixelBytes(image);
+		saveEvent.commit(slice, inputFile, bytes);
+		metrics.record(slice, inputFile, RegistrationMetrics.Stage.SAVE, System.nanoTime() - start);
+		metrics.addBytesWritten(slice, inputFile, bytes);
+		metrics.sliceDone(slice);
+		progress.sliceDone(slice);
+	}
+
+	@Override
+	public void skip(int slice) throws IOException
+	{
+		output.skip(slice);
+		metrics.sliceDone(slice);
+		progress.sliceDone(slice);
+	}
+
+	@Override
+	public boolean contains(int slice, Path inputFile) throws IOException
+	{
+		return output.contains(slice, inputFile);
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		output.close();
+	}
+}
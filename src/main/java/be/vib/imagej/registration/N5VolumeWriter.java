@@ -0,0 +1,439 @@
+package be.vib.imagej.registration;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+import ij.ImagePlus;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+
+// N5VolumeWriter writes the registered slices as a chunked 3D volume in the N5 format (a directory tree on the local
+// file system, see https://github.com/saalfeldlab/n5), which Fiji and most segmentation tools read directly.
+// The volume has one z-plane per slice, and is cut into chunks of chunkSize^3 voxels, optionally gzip compressed.
+// Slices are collected in a buffer per layer of chunks (chunkSize slices deep). As soon as a layer is complete,
+// all of its chunks are compressed and written concurrently by a thread pool, while the next layer fills up.
+// A layer buffer holds chunkSize complete slices, and is not part of the pipeline's memory budget; so at most two layers
+// are kept: a slice of a new layer waits until the layer before it is complete, and a complete layer waits until the
+// chunks of the one before it are written. The volume fails right away if two layers do not fit in the heap.
+// Every chunk file is written under a temporary name and then renamed, so a resumed run can tell which layers are done.
+public class N5VolumeWriter implements SliceWriter
+{
+	public static final String CONTAINER = "registered.n5";
+	public static final String DATASET = "volume";
+
+	public enum Compression
+	{
+		RAW("raw"),
+		GZIP("gzip");
+
+		private final String n5Type;
+
+		private Compression(String n5Type)
+		{
+			this.n5Type = n5Type;
+		}
+	}
+
+	private final Path datasetFolder;
+	private final int numSlices;
+	private final int chunkSize;
+	private final Compression compression;
+	private final ExecutorService executor;
+
+	// Known after the first slice (or read from the dataset attributes when resuming)
+	private int width = -1;
+	private int height = -1;
+	private int bitDepth;
+
+	private final Map<Integer, Layer> layers = new HashMap<Integer, Layer>();  // layers being filled
+	private final Set<Integer> earlySkips = new HashSet<Integer>();  // slices skipped before the volume size was known
+	private final Map<Integer, Boolean> layerDone = new HashMap<Integer, Boolean>();  // cache for contains()
+	private final List<Future<?>> chunkWrites = new ArrayList<Future<?>>();
+	private ShiftTable shiftTable = null;
+
+	// Slices chunkSize * layer up to chunkSize * (layer + 1), or less for the last layer
+	private class Layer
+	{
+		public final int index;
+		public final int depth;
+		public final Object pixels;  // byte[] or short[], depth x height x width
+		public final boolean[] filled;
+		public int numFilled = 0;
+
+		public Layer(int index)
+		{
+			this.index = index;
+			this.depth = Math.min(chunkSize, numSlices - index * chunkSize);
+			this.pixels = (bitDepth == 8) ? new byte[depth * width * height] : new short[depth * width * height];
+			this.filled = new boolean[depth];
+		}
+	}
+
+	// Opens an N5 container in the output folder for a volume of numSlices slices.
+	// If resume is false any existing volume is overwritten.
+	public N5VolumeWriter(Path outputFolder, int numSlices, int chunkSize, Compression compression, int numThreads, boolean resume) throws IOException
+	{
+		Path container = outputFolder.resolve(CONTAINER);
+		this.datasetFolder = container.resolve(DATASET);
+		this.numSlices = numSlices;
+		this.chunkSize = chunkSize;
+		this.compression = compression;
+		this.executor = Executors.newFixedThreadPool(numThreads);
+
+		if (!resume && Files.exists(datasetFolder))
+			deleteRecursively(datasetFolder);  // a volume from another run; its chunks must not be mistaken for ours
+		Files.createDirectories(datasetFolder);
+		writeAttributes(container.resolve("attributes.json"), "{\"n5\":\"2.0.0\"}");
+
+		if (resume)
+			readDatasetAttributes();
+	}
+
+	// If set, skip() refuses slices that are not in the shift table yet. A skipped plane is written as zeros and its layer
+	// may be marked done, after which the real slice would be dropped; so only a slice whose registration is known to
+	// have failed may be skipped.
+	public void setShiftTable(ShiftTable shiftTable)
+	{
+		this.shiftTable = shiftTable;
+	}
+
+	@Override
+	public void write(int slice, Path inputFile, ImagePlus image, SliceShift shift) throws IOException
+	{
+		ImageProcessor ip = image.getProcessor();
+		if (shift.isSubpixel())
+			shift.apply(ip);  // needs resampling, let ImageJ do it
+
+		Layer layer = layerOf(slice, image);
+		if (layer == null)
+			return;  // written completely by an earlier run
+
+		final int z = slice - layer.index * chunkSize;
+		final int shiftX = shift.isSubpixel() ? 0 : shift.shiftX;
+		final int shiftY = shift.isSubpixel() ? 0 : shift.shiftY;
+
+		// Copy the translated slice into its plane of the layer; the exposed borders stay zero.
+		final int srcX0 = Math.max(0, shiftX);
+		final int srcX1 = Math.min(width, width + shiftX);
+		final int numCopied = srcX1 - srcX0;
+		final Object pixels = ip.getPixels();
+		for (int y = 0; y < height && numCopied > 0; y++)
+		{
+			final int srcY = y + shiftY;
+			if (srcY >= 0 && srcY < height)
+				System.arraycopy(pixels, srcY * width + srcX0, layer.pixels, (z * height + y) * width + (srcX0 - shiftX), numCopied);
+		}
+
+		filled(layer, z);
+	}
+
+	@Override
+	public void skip(int slice) throws IOException
+	{
+		if (shiftTable != null && slice >= shiftTable.numRecorded())
+			throw new IllegalStateException("Slice " + slice + " cannot be skipped: only " + shiftTable.numRecorded() + " slices have been registered so far");
+		
+		synchronized (this)
+		{
+			if (width < 0)
+			{
+				earlySkips.add(slice);
+				return;
+			}
+		}
+		
+		Layer layer = layerOf(slice, null);
+		if (layer != null)
+			filled(layer, slice - layer.index * chunkSize);  // the plane stays zero
+	}
+
+	@Override
+	public synchronized boolean contains(int slice, Path inputFile)
+	{
+		if (width < 0)
+			return false;
+		return layerDone.computeIfAbsent(slice / chunkSize, this::layerWritten);
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		// Layers that are not complete (e.g. because the run was cancelled) are not written:
+		// a resumed run will fill them up and write them then.
+		executor.shutdown();
+		try
+		{
+			waitForChunkWrites(true);
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+
+	// Returns the layer that the slice goes into, creating it if needed, or null if the layer was written already.
+	private synchronized Layer layerOf(int slice, ImagePlus image) throws IOException
+	{
+		waitForChunkWrites(false);  // report failed chunk writes as soon as possible
+
+		if (width < 0)
+		{
+			width = image.getWidth();
+			height = image.getHeight();
+			bitDepth = image.getProcessor().getBitDepth();
+			if (bitDepth != 8 && bitDepth != 16)
+				throw new IOException("Only 8 and 16 bit images can be written to an N5 volume.");
+			checkLayerMemory();
+			writeDatasetAttributes(image.getCalibration());
+		}
+		else if (image != null && (image.getWidth() != width || image.getHeight() != height || image.getProcessor().getBitDepth() != bitDepth))
+		{
+			throw new IOException("All slices of a volume must have the same size and bit depth.");
+		}
+
+		final int index = slice / chunkSize;
+		Layer layer = layers.get(index);
+		if (layer == null)
+		{
+			if (layerDone.computeIfAbsent(index, this::layerWritten))
+				return null;
+			waitForOtherLayers(index);
+			layer = layers.get(index);  // may have been created by another thread meanwhile
+		}
+		if (layer == null)
+		{
+			layer = new Layer(index);
+			layers.put(index, layer);
+			for (int s : earlySkips)
+				if (s / chunkSize == index)
+					filled(layer, s - index * chunkSize);
+		}
+		return layer;
+	}
+
+	private synchronized void filled(Layer layer, int z) throws IOException
+	{
+		if (layer.filled[z])
+			return;
+		layer.filled[z] = true;
+		layer.numFilled++;
+
+		if (layer.numFilled == layer.depth)
+		{
+			// Complete: once the previous layer is written (and can be collected), write all its chunks in parallel.
+			waitForChunkWrites(true);
+			layers.remove(layer.index);
+			layerDone.put(layer.index, true);
+			notifyAll();  // the next layer can start filling
+			final int chunksAcross = (width + chunkSize - 1) / chunkSize;
+			final int chunksDown = (height + chunkSize - 1) / chunkSize;
+			for (int cy = 0; cy < chunksDown; cy++)
+				for (int cx = 0; cx < chunksAcross; cx++)
+				{
+					final int chunkX = cx, chunkY = cy;
+					chunkWrites.add(executor.submit(() -> { writeChunk(layer, chunkX, chunkY); return null; }));
+				}
+		}
+	}
+
+	// Writes one chunk of a complete layer as an N5 block: a header with the block size, followed by the
+	// (compressed) big-endian voxel values, x varying fastest.
+	private void writeChunk(Layer layer, int cx, int cy) throws IOException
+	{
+		final int x0 = cx * chunkSize;
+		final int y0 = cy * chunkSize;
+		final int sizeX = Math.min(chunkSize, width - x0);
+		final int sizeY = Math.min(chunkSize, height - y0);
+		final int sizeZ = layer.depth;
+		final int bytesPerVoxel = bitDepth / 8;
+
+		ByteBuffer data = ByteBuffer.allocate(sizeX * sizeY * sizeZ * bytesPerVoxel).order(ByteOrder.BIG_ENDIAN);
+		for (int z = 0; z < sizeZ; z++)
+			for (int y = y0; y < y0 + sizeY; y++)
+			{
+				final int offset = (z * height + y) * width + x0;
+				if (bitDepth == 8)
+					data.put((byte[])layer.pixels, offset, sizeX);
+				else
+				{
+					data.asShortBuffer().put((short[])layer.pixels, offset, sizeX);
+					data.position(data.position() + sizeX * 2);
+				}
+			}
+
+		ByteBuffer header = ByteBuffer.allocate(2 + 2 + 3 * 4).order(ByteOrder.BIG_ENDIAN);
+		header.putShort((short)0);  // mode: default
+		header.putShort((short)3);  // number of dimensions
+		header.putInt(sizeX).putInt(sizeY).putInt(sizeZ);
+
+		Path file = chunkFile(cx, cy, layer.index);
+		Files.createDirectories(file.getParent());
+		Path tempFile = file.resolveSibling(file.getFileName() + ".part");
+		try (OutputStream out = Files.newOutputStream(tempFile))
+		{
+			out.write(header.array());
+			if (compression == Compression.GZIP)
+			{
+				GZIPOutputStream gzip = new GZIPOutputStream(out, 1 << 16);
+				gzip.write(data.array());
+				gzip.finish();
+			}
+			else
+			{
+				out.write(data.array());
+			}
+		}
+		Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	// Chunk files are in datasetFolder/x/y/z
+	private Path chunkFile(int cx, int cy, int cz)
+	{
+		return datasetFolder.resolve(Integer.toString(cx)).resolve(Integer.toString(cy)).resolve(Integer.toString(cz));
+	}
+
+	private boolean layerWritten(int layer)
+	{
+		final int chunksAcross = (width + chunkSize - 1) / chunkSize;
+		final int chunksDown = (height + chunkSize - 1) / chunkSize;
+		for (int cy = 0; cy < chunksDown; cy++)
+			for (int cx = 0; cx < chunksAcross; cx++)
+				if (!Files.exists(chunkFile(cx, cy, layer)))
+					return false;
+		return true;
+	}
+
+	// Waits while another layer than the given one is being filled. Slices are saved roughly in order,
+	// so the slices that complete that layer are being saved already.
+	private synchronized void waitForOtherLayers(int index) throws IOException
+	{
+		while (!layers.isEmpty() && !layers.containsKey(index))
+		{
+			try
+			{
+				wait();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while writing the N5 volume", e);
+			}
+		}
+	}
+
+	// Fails if the layer being filled and the layer being written do not fit in the heap together.
+	private void checkLayerMemory() throws IOException
+	{
+		final long layerBytes = (long)Math.min(chunkSize, numSlices) * width * height * (bitDepth / 8);
+		final int numLayers = (numSlices > chunkSize) ? 2 : 1;
+		final long maxMemory = Runtime.getRuntime().maxMemory();
+		if (numLayers * layerBytes > maxMemory)
+			throw new IOException(String.format("An N5 volume of %dx%d %d-bit slices with chunkSize=%d needs %d layer(s) of %d MB in memory, but the heap is only %d MB. Use a smaller chunk size or a larger heap (-Xmx).",
+			                                    width, height, bitDepth, chunkSize, numLayers, layerBytes >> 20, maxMemory >> 20));
+	}
+
+	// Rethrows the exception of the first chunk write that failed. If wait is true, waits for all chunk writes first.
+	private synchronized void waitForChunkWrites(boolean wait) throws IOException
+	{
+		List<Future<?>> remaining = new ArrayList<Future<?>>();
+		for (Future<?> future : chunkWrites)
+		{
+			if (!wait && !future.isDone())
+			{
+				remaining.add(future);
+				continue;
+			}
+			try
+			{
+				future.get();
+			}
+			catch (ExecutionException e)
+			{
+				throw (e.getCause() instanceof IOException) ? (IOException)e.getCause() : new IOException(e.getCause());
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while writing the N5 volume", e);
+			}
+		}
+		chunkWrites.clear();
+		chunkWrites.addAll(remaining);
+	}
+
+	private void writeDatasetAttributes(Calibration calibration) throws IOException
+	{
+		StringBuilder json = new StringBuilder();
+		json.append("{\"dimensions\":[").append(width).append(',').append(height).append(',').append(numSlices).append("],");
+		json.append("\"blockSize\":[").append(chunkSize).append(',').append(chunkSize).append(',').append(chunkSize).append("],");
+		json.append("\"dataType\":\"").append(bitDepth == 8 ? "uint8" : "uint16").append("\",");
+		json.append("\"compression\":{\"type\":\"").append(compression.n5Type).append('"');
+		if (compression == Compression.GZIP)
+			json.append(",\"level\":-1,\"useZlib\":false");
+		json.append('}');
+		if (calibration != null && calibration.scaled())
+		{
+			json.append(",\"pixelResolution\":{\"dimensions\":[").append(calibration.pixelWidth).append(',').append(calibration.pixelHeight).append(',').append(calibration.pixelDepth).append("],");
+			json.append("\"unit\":\"").append(calibration.getUnit().replace("\\", "\\\\").replace("\"", "\\\"")).append("\"}");
+		}
+		json.append('}');
+		writeAttributes(datasetFolder.resolve("attributes.json"), json.toString());
+	}
+
+	// Picks up the volume size from the attributes of an existing dataset with the same number of slices and chunk size.
+	private void readDatasetAttributes() throws IOException
+	{
+		Path file = datasetFolder.resolve("attributes.json");
+		if (!Files.exists(file))
+			return;
+
+		String json = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+		Matcher dimensions = Pattern.compile("\"dimensions\":\\[(\\d+),(\\d+),(\\d+)\\]").matcher(json);
+		Matcher blockSize = Pattern.compile("\"blockSize\":\\[(\\d+),").matcher(json);
+		Matcher dataType = Pattern.compile("\"dataType\":\"uint(8|16)\"").matcher(json);
+		if (dimensions.find() && blockSize.find() && dataType.find()
+			&& Integer.parseInt(dimensions.group(3)) == numSlices && Integer.parseInt(blockSize.group(1)) == chunkSize)
+		{
+			width = Integer.parseInt(dimensions.group(1));
+			height = Integer.parseInt(dimensions.group(2));
+			bitDepth = Integer.parseInt(dataType.group(1));
+			checkLayerMemory();
+		}
+	}
+
+	private static void deleteRecursively(Path folder) throws IOException
+	{
+		List<Path> paths = new ArrayList<Path>();
+		try (Stream<Path> walk = Files.walk(folder))
+		{
+			walk.forEach(paths::add);
+		}
+		for (int i = paths.size() - 1; i >= 0; i--)  // children before their parents
+			Files.delete(paths.get(i));
+	}
+
+	private static void writeAttributes(Path file, String json) throws IOException
+	{
+		Files.write(file, json.getBytes(StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,292 @@
+package be.vib.imagej.registration;
+
+import java.awt.Rectangle;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.function.BooleanSupplier;
+
+// NonblackRegionIndex holds the non-black region (see AutoCropper) of every slice of a stack.
+// The black border changes over a run as the milling front moves, so the region of the reference slice does not fit all slices.
+// The regions are found in a parallel pre-pass over every k-th slice (and the last one); a slice in between gets the union
+// of the regions of the sampled slices on either side of it. Of TIFFs that TiffRegionReader can read, only bands along
+// the border are read, up to the first band with non-black pixels; other files are decoded completely.
+// The index is kept in a file in the output folder, so an interrupted run does not have to redo the pre-pass.
+// All rectangles are in original (not auto-cropped) image coordinates; an empty rectangle means the slice is completely black.
+public class NonblackRegionIndex
+{
+	public static final String FILENAME = "nonblack_regions.tsv";
+
+	private static final String HEADER = "# slice\tx\ty\twidth\theight\tinputFile";
+	private static final int BAND = 256;  // the border is read in bands of this many rows or columns
+
+	private final int sampleStep;
+	private final Rectangle[] regions;  // of the sampled slices; null for the others
+
+	// Returns the index of the given slices, sampling every sampleStep-th slice. It is read from the output folder
+	// if an earlier run with the same slices and sampleStep left it there; otherwise it is computed by numThreads threads
+	// of our own, or on the given executor if it is not null, and saved. Returns null if cancelled.
+	public static NonblackRegionIndex open(Path outputFolder, List<Path> slices, int sampleStep, Executor executor, int numThreads, BooleanSupplier isCancelled) throws Exception
+	{
+		final Path file = outputFolder.resolve(FILENAME);
+		final String description = describe(slices, sampleStep);
+
+		NonblackRegionIndex index = new NonblackRegionIndex(slices.size(), sampleStep);
+		if (Files.exists(file) && index.read(file, description))
+		{
+			System.out.println("Non-black regions of " + index.numSampled() + " slices read from " + file);
+			return index;
+		}
+
+		index = new NonblackRegionIndex(slices.size(), sampleStep);  // without what a stale or broken file left in it
+		long start = System.nanoTime();
+		if (!index.compute(slices, executor, numThreads, isCancelled))
+			return null;
+		System.out.println(String.format("Non-black regions of %d slices found in %d ms: union %s, intersection %s", index.numSampled(), (System.nanoTime() - start) / 1000000, index.union(), index.intersection()));
+
+		index.write(file, description, slices);
+		return index;
+	}
+
+	private NonblackRegionIndex(int numSlices, int sampleStep)
+	{
+		this.sampleStep = sampleStep;
+		this.regions = new Rectangle[numSlices];
+	}
+
+	private static boolean isSampled(int slice, int numSlices, int sampleStep)
+	{
+		return slice % sampleStep == 0 || slice == numSlices - 1;
+	}
+
+	public int numSampled()
+	{
+		int n = 0;
+		for (Rectangle region : regions)
+			if (region != null)
+				n++;
+		return n;
+	}
+
+	// Returns the non-black region of the given slice: the region found for the slice itself if it was sampled,
+	// otherwise the union of those of the nearest sampled slices before and after it.
+	public Rectangle regionOf(int slice)
+	{
+		if (regions[slice] != null)
+			return new Rectangle(regions[slice]);
+
+		final int before = slice - slice % sampleStep;
+		final int after = Math.min(before + sampleStep, regions.length - 1);
+		return union(regions[before], regions[after]);
+	}
+
+	// Returns the smallest rectangle that contains the non-black region of every sampled slice;
+	// nothing that is non-black in any of them is cropped away.
+	public Rectangle union()
+	{
+		Rectangle union = new Rectangle();
+		for (Rectangle region : regions)
+			if (region != null)
+				union = union(union, region);
+		return union;
+	}
+
+	// Returns the part that is non-black in all sampled slices (except the completely black ones);
+	// none of them has black border left after cropping to it. The result is empty if they do not overlap.
+	public Rectangle intersection()
+	{
+		Rectangle intersection = null;
+		for (Rectangle region : regions)
+			if (region != null && !region.isEmpty())
+				intersection = (intersection == null) ? new Rectangle(region) : intersection.intersection(region);
+		return (intersection == null || intersection.isEmpty()) ? new Rectangle() : intersection;
+	}
+
+	// Rectangle.union() would include the origin of an empty rectangle.
+	private static Rectangle union(Rectangle a, Rectangle b)
+	{
+		if (a.isEmpty())
+			return new Rectangle(b);
+		if (b.isEmpty())
+			return new Rectangle(a);
+		return a.union(b);
+	}
+
+	private boolean compute(List<Path> slices, Executor executor, int numThreads, BooleanSupplier isCancelled) throws Exception
+	{
+		ExecutorService ownPool = (executor == null) ? Executors.newFixedThreadPool(numThreads) : null;
+		Executor pool = (executor == null) ? ownPool : executor;
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		try
+		{
+			for (int i = 0; i < regions.length; i++)
+			{
+				if (!isSampled(i, regions.length, sampleStep))
+					continue;
+
+				final int slice = i;
+				FutureTask<Void> task = new FutureTask<Void>(() -> {
+					if (!isCancelled.getAsBoolean())
+						regions[slice] = findRegion(slices.get(slice));
+					return null;
+				});
+				futures.add(task);
+				pool.execute(task);
+			}
+
+			for (Future<?> future : futures)
+			{
+				try
+				{
+					future.get();
+				}
+				catch (ExecutionException e)
+				{
+					throw (e.getCause() instanceof Exception) ? (Exception)e.getCause() : e;
+				}
+			}
+		}
+		finally
+		{
+			if (ownPool != null)
+				ownPool.shutdownNow();
+			else
+				for (Future<?> future : futures)
+					future.cancel(true);  // after a failure: don't leave our remaining tasks in the shared executor
+		}
+		return !isCancelled.getAsBoolean();
+	}
+
+	// Returns the non-black region of the given slice file.
+	static Rectangle findRegion(Path file) throws Exception
+	{
+		try (TiffRegionReader tiff = TiffRegionReader.open(file))
+		{
+			if (tiff == null)
+				return AutoCropper.getNonblackRegion(SliceFiles.loadImage(file.toString(), null));
+
+			final int width = tiff.getWidth();
+			final int height = tiff.getHeight();
+
+			// Bands of rows from the top down and from the bottom up, until one has non-black pixels.
+			int top = -1;
+			for (int y = 0; y < height && top < 0; y += BAND)
+			{
+				Rectangle r = getNonblackRegion(tiff, new Rectangle(0, y, width, Math.min(BAND, height - y)));
+				if (!r.isEmpty())
+					top = r.y;
+			}
+			if (top < 0)
+				return new Rectangle();  // completely black
+
+			int bottom = top;  // the last non-black row; there is at least one non-black row from top on
+			for (int y = height; y > top; y -= BAND)
+			{
+				Rectangle r = getNonblackRegion(tiff, new Rectangle(0, Math.max(top, y - BAND), width, Math.min(BAND, y - top)));
+				if (!r.isEmpty())
+				{
+					bottom = r.y + r.height - 1;
+					break;
+				}
+			}
+
+			// Bands of columns (only the rows from top to bottom) from the left and from the right.
+			final int numRows = bottom - top + 1;
+			int left = 0;
+			for (int x = 0; x < width; x += BAND)
+			{
+				Rectangle r = getNonblackRegion(tiff, new Rectangle(x, top, Math.min(BAND, width - x), numRows));
+				if (!r.isEmpty())
+				{
+					left = r.x;
+					break;
+				}
+			}
+
+			int right = left;  // the last non-black column
+			for (int x = width; x > left; x -= BAND)
+			{
+				Rectangle r = getNonblackRegion(tiff, new Rectangle(Math.max(left, x - BAND), top, Math.min(BAND, x - left), numRows));
+				if (!r.isEmpty())
+				{
+					right = r.x + r.width - 1;
+					break;
+				}
+			}
+
+			return new Rectangle(left, top, right - left + 1, numRows);
+		}
+	}
+
+	// Returns the non-black region within the given region of the image, in image coordinates.
+	private static Rectangle getNonblackRegion(TiffRegionReader tiff, Rectangle region) throws IOException
+	{
+		Rectangle r = AutoCropper.getNonblackRegion(tiff.readRegion(region));
+		if (!r.isEmpty())
+			r.translate(region.x, region.y);
+		return r;
+	}
+
+	private static String describe(List<Path> slices, int sampleStep)
+	{
+		return String.format("sampleStep=%d slices=%d,%08x", sampleStep, slices.size(), slices.hashCode());
+	}
+
+	// Reads the regions from the given file. Returns false if it was written for other slices or another sampleStep.
+	private boolean read(Path file, String description) throws IOException
+	{
+		List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+		if (lines.size() < 2 || !lines.get(0).equals("# parameters: " + description))
+			return false;
+
+		try
+		{
+			for (String line : lines.subList(2, lines.size()))
+			{
+				String[] fields = line.split("\t");
+				regions[Integer.parseInt(fields[0])] = new Rectangle(Integer.parseInt(fields[1]), Integer.parseInt(fields[2]), Integer.parseInt(fields[3]), Integer.parseInt(fields[4]));
+			}
+		}
+		catch (RuntimeException e)
+		{
+			return false;  // e.g. a half-written file; we find the regions again
+		}
+
+		for (int i = 0; i < regions.length; i++)
+			if (isSampled(i, regions.length, sampleStep) && regions[i] == null)
+				return false;
+		return true;
+	}
+
+	private void write(Path file, String description, List<Path> slices) throws IOException
+	{
+		Path tempFile = file.resolveSibling(FILENAME + ".part");
+		try (BufferedWriter out = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8))
+		{
+			out.write("# parameters: " + description);
+			out.newLine();
+			out.write(HEADER);
+			out.newLine();
+			for (int i = 0; i < regions.length; i++)
+			{
+				Rectangle r = regions[i];
+				if (r == null)
+					continue;
+				out.write(i + "\t" + r.x + "\t" + r.y + "\t" + r.width + "\t" + r.height + "\t" + slices.get(i));
+				out.newLine();
+			}
+		}
+		Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+	}
+}
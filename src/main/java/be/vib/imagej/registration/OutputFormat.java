@@ -0,0 +1,22 @@
+package be.vib.imagej.registration;
+
+// How the registered slices are stored in the output folder.
+public enum OutputFormat
+{
+	SLICE_FILES("One TIFF file per slice"),                           // see SliceFilesWriter
+	BIGTIFF_STACK("One multi-page BigTIFF (open it with Bio-Formats)"),  // see BigTiffStackWriter; ImageJ 1.x itself cannot read BigTIFF
+	N5_VOLUME("N5 chunked volume");                                   // see N5VolumeWriter
+	
+	private final String description;  // shown to the user
+	
+	private OutputFormat(String description)
+	{
+		this.description = description;
+	}
+	
+	@Override
+	public String toString()
+	{
+		return description;
+	}
+}
@@ -0,0 +1,159 @@
+package be.vib.imagej.registration;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.function.Consumer;
+
+// ProgressTracker turns the progress of a registration run into RegistrationProgress events for a listener.
+// It is told when slices are done (saved or skipped, see MeasuredSliceWriter), and keeps an exponential moving
+// average of the throughput in bytes per second, from which it estimates the remaining time.
+// During the first minute (shorter than the time constant) it uses the plain average since the first slice instead.
+// A run in two passes (see TwoPassRegistration) also reports every slice whose shift the first pass found;
+// each pass then counts for half of the bytes of a slice, so the estimate is available from the first slice on.
+public class ProgressTracker
+{
+	private static final double SMOOTHING_SECONDS = 60.0;  // time constant of the moving average
+	private static final double MIN_UPDATE_SECONDS = 1.0;  // the rates are updated at most this often
+
+	private final int firstSlice;
+	private final int numPasses;      // over the slices: 2 in two-pass mode, 1 otherwise
+	private final long[] sliceBytes;  // input file size per slice, 0 if unknown
+	private final long totalBytes;    // of the slices from firstSlice on
+	private final RegistrationMetrics metrics;  // for the bottleneck; null if unknown
+	private final Consumer<RegistrationProgress> listener;
+
+	private final long startNs;
+	private int slicesDone;           // by this run
+	private long bytesDone;           // by this run
+	private int stepsDone;            // slices done by any of the passes of this run
+	private long stepBytesDone;       // their bytes
+	private long firstDoneNs = -1;    // when the first step was done, -1 if none yet
+	private long bytesAtFirstDone;
+	private long lastUpdateNs;        // when the rates were last updated
+	private int stepsAtLastUpdate;
+	private long bytesAtLastUpdate;
+	private double slicesPerSecond = Double.NaN;  // moving averages of whole slices (all passes), NaN until the first step is done
+	private double bytesPerSecond = Double.NaN;
+
+	// Tracks the registration of the given slices from firstSlice on (the earlier ones were done by an earlier run),
+	// in the given number of passes over them.
+	// A slice whose size cannot be read counts as 0 bytes; the run will record and skip it.
+	public ProgressTracker(List<Path> slices, int firstSlice, int numPasses, RegistrationMetrics metrics, Consumer<RegistrationProgress> listener)
+	{
+		this.firstSlice = firstSlice;
+		this.numPasses = numPasses;
+		this.metrics = metrics;
+		this.listener = listener;
+
+		sliceBytes = new long[slices.size()];
+		long total = 0;
+		for (int i = firstSlice; i < slices.size(); i++)
+		{
+			try
+			{
+				sliceBytes[i] = Files.size(slices.get(i));
+			}
+			catch (IOException e)
+			{
+				sliceBytes[i] = 0;
+			}
+			total += sliceBytes[i];
+		}
+		totalBytes = total;
+
+		startNs = System.nanoTime();
+		lastUpdateNs = startNs;
+	}
+
+	// The slice was saved or skipped. Slices of an earlier run (that are saved when it is resumed) are not counted.
+	public synchronized void sliceDone(int slice)
+	{
+		if (slice < firstSlice)
+			return;
+		slicesDone++;
+		bytesDone += sliceBytes[slice];
+		stepDone(slice);
+	}
+
+	// The first pass of a two-pass run is done with the slice (its shift was found, or it failed).
+	public synchronized void firstPassDone(int slice)
+	{
+		if (slice >= firstSlice)
+			stepDone(slice);
+	}
+
+	private void stepDone(int slice)
+	{
+		stepsDone++;
+		stepBytesDone += sliceBytes[slice];
+		if (firstDoneNs < 0)
+		{
+			firstDoneNs = System.nanoTime();
+			bytesAtFirstDone = stepBytesDone;
+		}
+	}
+
+	// Passes the progress, with the given percentage of the work done, to the listener.
+	public void progress(double percentage)
+	{
+		listener.accept(snapshot(percentage));
+	}
+
+	private synchronized RegistrationProgress snapshot(double percentage)
+	{
+		final long now = System.nanoTime();
+		if (firstDoneNs >= 0 && (now - firstDoneNs) / 1e9 < SMOOTHING_SECONDS)
+		{
+			// Until we have seen the run for a while, use the average since the first step was done
+			// (the first slice also took the time to fill the pipeline), or since the start if there is only one step yet.
+			final double seconds = (now - firstDoneNs) / 1e9;
+			if (stepsDone > 1 && seconds > 0)
+			{
+				slicesPerSecond = (stepsDone - 1) / seconds / numPasses;
+				bytesPerSecond = (stepBytesDone - bytesAtFirstDone) / seconds / numPasses;
+			}
+			else
+			{
+				slicesPerSecond = stepsDone / ((now - startNs) / 1e9) / numPasses;
+				bytesPerSecond = stepBytesDone / ((now - startNs) / 1e9) / numPasses;
+			}
+			updated(now);
+		}
+		else if (firstDoneNs >= 0 && (now - lastUpdateNs) / 1e9 >= MIN_UPDATE_SECONDS)
+		{
+			// Then a moving average over time (rather than over slices), so slices that are saved in bursts
+			// (e.g. by parallel threads) do not make the rate jump around.
+			final double seconds = (now - lastUpdateNs) / 1e9;
+			final double alpha = 1.0 - Math.exp(-seconds / SMOOTHING_SECONDS);
+			slicesPerSecond = alpha * (stepsDone - stepsAtLastUpdate) / seconds / numPasses + (1.0 - alpha) * slicesPerSecond;
+			bytesPerSecond = alpha * (stepBytesDone - bytesAtLastUpdate) / seconds / numPasses + (1.0 - alpha) * bytesPerSecond;
+			updated(now);
+		}
+
+		final double etaSeconds = (bytesPerSecond > 0) ? (numPasses * totalBytes - stepBytesDone) / (numPasses * bytesPerSecond) : Double.NaN;
+
+		double[] stageSeconds = new double[RegistrationMetrics.Stage.values().length];
+		RegistrationMetrics.Stage bottleneck = null;
+		if (metrics != null)
+		{
+			for (RegistrationMetrics.Stage stage : RegistrationMetrics.Stage.values())
+			{
+				stageSeconds[stage.ordinal()] = metrics.totalSeconds(stage);
+				if (stageSeconds[stage.ordinal()] > 0 && (bottleneck == null || stageSeconds[stage.ordinal()] > stageSeconds[bottleneck.ordinal()]))
+					bottleneck = stage;
+			}
+		}
+
+		return new RegistrationProgress(percentage, firstSlice + slicesDone, sliceBytes.length, bytesDone, totalBytes,
+		                                slicesPerSecond, bytesPerSecond, etaSeconds, bottleneck, stageSeconds);
+	}
+
+	private void updated(long now)
+	{
+		lastUpdateNs = now;
+		stepsAtLastUpdate = stepsDone;
+		bytesAtLastUpdate = stepBytesDone;
+	}
+}
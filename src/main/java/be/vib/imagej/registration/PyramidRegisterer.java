@@ -0,0 +1,251 @@
+package be.vib.imagej.registration;
+
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+// PyramidRegisterer does a coarse-to-fine search for the reference patch.
+// It builds 2x downsampled versions of the search window and the reference patch,
+// searches the coarsest level exhaustively (with another RegistrationEngine, typically a JavaRegisterer),
+// and then refines the position within +/- refinementRadius pixels at each finer level.
+// For large search windows this costs only a small fraction of an exhaustive search at full resolution.
+//
+// At full resolution the position is refined either exhaustively (all candidates within +/- refinementRadius
+// of the upsampled coarse estimate), or locally (greedy descent from the estimate to the neighbor with the lowest
+// cost, until no neighbor is better). Local refinement evaluates fewer candidates but can stop in a local minimum.
+//
+// Note that the coarse-to-fine search can miss the global optimum that an exhaustive search would find,
+// for example in images with fine periodic texture.
+public class PyramidRegisterer implements RegistrationEngine
+{
+	public enum FinalRefinement
+	{
+		EXHAUSTIVE,
+		LOCAL
+	}
+
+	private static final int refinementRadius = 2;  // in pixels, at each level
+	private static final int minimumPatchSize = 8;  // we stop downsampling before the reference patch gets smaller than this (in pixels)
+
+	private ImageProcessor referencePatch;
+	private ImageProcessor image;
+	private int xmin;
+	private int ymin;
+	private int xmax;
+	private int ymax;
+
+	private RegistrationEngine coarseEngine;
+	private CostFunction costFunction;
+	private int levels;  // number of downsampled levels (0 means: no pyramid, exhaustive search at full resolution)
+	private FinalRefinement finalRefinement;
+
+	// Downsampled reference patches; they are reused for as long as the same reference patch is passed in.
+	private ImageProcessor cachedReferencePatch = null;
+	private ImageProcessor[] referencePyramid = null;
+
+	public PyramidRegisterer(RegistrationEngine coarseEngine, CostFunction costFunction, int levels, FinalRefinement finalRefinement)
+	{
+		if (levels < 0)
+			throw new IllegalArgumentException("The number of pyramid levels cannot be negative.");
+
+		this.coarseEngine = coarseEngine;
+		this.costFunction = costFunction;
+		this.levels = levels;
+		this.finalRefinement = finalRefinement;
+		this.xmin = this.ymin = this.xmax = this.ymax = 0;
+	}
+
+	@Override
+	public void setParameters(ImageProcessor image, ImageProcessor referencePatch, int xmin, int xmax, int ymin, int ymax)
+	{
+		this.image = image;
+		this.referencePatch = referencePatch;
+		this.xmin = xmin;
+		this.ymin = ymin;
+		this.xmax = xmax;
+		this.ymax = ymax;
+	}
+
+	@Override
+	public boolean runsOnQuasarThread()
+	{
+		return coarseEngine.runsOnQuasarThread();
+	}
+	
+	@Override
+	public void dispose()
+	{
+		coarseEngine.dispose();
+	}
+
+	@Override
+	public RegistrationResult call() throws Exception
+	{
+		if (xmin > xmax || ymin > ymax)
+			throw new IllegalArgumentException("The search window is too small to contain the reference patch.");
+
+		ImageProcessor[] patches = getReferencePyramid();
+		final int numLevels = Math.min(levels, patches.length - 1);
+
+		ImageProcessor[] images = new ImageProcessor[numLevels + 1];
+		images[0] = image;
+		for (int level = 1; level <= numLevels; level++)
+			images[level] = downsample(images[level - 1]);
+
+		// Exhaustive search at the coarsest level
+		ImageProcessor coarseImage = images[numLevels];
+		ImageProcessor coarsePatch = patches[numLevels];
+		int bestX, bestY;
+		{
+			int[] range = searchRange(numLevels, coarseImage, coarsePatch);
+			coarseEngine.setParameters(coarseImage, coarsePatch, range[0], range[1], range[2], range[3]);
+			RegistrationResult coarse = coarseEngine.call();
+			bestX = coarse.posX;
+			bestY = coarse.posY;
+		}
+
+		// Refinement at each finer level
+		for (int level = numLevels - 1; level >= 0; level--)
+		{
+			int[] range = searchRange(level, images[level], patches[level]);
+			CostKernel kernel = CostKernels.create(costFunction, images[level], patches[level]);
+
+			final int centerX = clamp(2 * bestX, range[0], range[1]);
+			final int centerY = clamp(2 * bestY, range[2], range[3]);
+
+			int[] best;
+			if (level == 0 && finalRefinement == FinalRefinement.LOCAL)
+				best = descend(kernel, centerX, centerY, range);
+			else
+				best = searchNeighborhood(kernel, centerX, centerY, refinementRadius, range);
+			bestX = best[0];
+			bestY = best[1];
+		}
+
+		return new RegistrationResult(bestX, bestY);
+	}
+
+	// Returns {xmin, xmax, ymin, ymax} for the given pyramid level,
+	// restricted so that the (downsampled) patch stays inside the (downsampled) image.
+	private int[] searchRange(int level, ImageProcessor levelImage, ImageProcessor levelPatch)
+	{
+		final int maxX = levelImage.getWidth() - levelPatch.getWidth();
+		final int maxY = levelImage.getHeight() - levelPatch.getHeight();
+		final int x1 = Math.min(xmax >> level, maxX);
+		final int y1 = Math.min(ymax >> level, maxY);
+		final int x0 = Math.min(xmin >> level, x1);
+		final int y0 = Math.min(ymin >> level, y1);
+		return new int[] { x0, x1, y0, y1 };
+	}
+
+	// Exhaustive search over all candidates within +/- radius of (centerX, centerY), inside the given range.
+	// Returns {x, y} of the best candidate; ties are broken like the Quasar code (smallest y, then smallest x).
+	private static int[] searchNeighborhood(CostKernel kernel, int centerX, int centerY, int radius, int[] range)
+	{
+		long bestCost = Long.MAX_VALUE;
+		int bestX = centerX;
+		int bestY = centerY;
+		for (int y = Math.max(range[2], centerY - radius); y <= Math.min(range[3], centerY + radius); y++)
+		{
+			for (int x = Math.max(range[0], centerX - radius); x <= Math.min(range[1], centerX + radius); x++)
+			{
+				long cost = kernel.cost(x, y);
+				if (cost < bestCost)
+				{
+					bestCost = cost;
+					bestX = x;
+					bestY = y;
+				}
+			}
+		}
+		return new int[] { bestX, bestY };
+	}
+
+	// Greedy descent: repeatedly move to the best candidate in the 3x3 neighborhood until the current position is the best.
+	private static int[] descend(CostKernel kernel, int x, int y, int[] range)
+	{
+		while (true)
+		{
+			int[] best = searchNeighborhood(kernel, x, y, 1, range);
+			if (best[0] == x && best[1] == y)
+				return best;
+
+			// Only move if the neighbor is strictly better; searchNeighborhood() may return an equally good neighbor with smaller y or x.
+			if (kernel.cost(best[0], best[1]) >= kernel.cost(x, y))
+				return new int[] { x, y };
+
+			x = best[0];
+			y = best[1];
+		}
+	}
+
+	private ImageProcessor[] getReferencePyramid()
+	{
+		if (referencePatch != cachedReferencePatch)
+		{
+			int n = 0;
+			while (n < levels && (referencePatch.getWidth() >> (n + 1)) >= minimumPatchSize && (referencePatch.getHeight() >> (n + 1)) >= minimumPatchSize)
+				n++;
+
+			referencePyramid = new ImageProcessor[n + 1];
+			referencePyramid[0] = referencePatch;
+			for (int level = 1; level <= n; level++)
+				referencePyramid[level] = downsample(referencePyramid[level - 1]);
+
+			cachedReferencePatch = referencePatch;
+		}
+		return referencePyramid;
+	}
+
+	private static int clamp(int v, int min, int max)
+	{
+		return Math.max(min, Math.min(max, v));
+	}
+
+	// Returns a copy of the image, downsampled by a factor 2 in x and y by averaging 2x2 blocks (rounded to nearest).
+	// An odd last row or column is dropped.
+	public static ImageProcessor downsample(ImageProcessor image)
+	{
+		final int width = image.getWidth();
+		final int height = image.getHeight();
+		final int w = width / 2;
+		final int h = height / 2;
+
+		if (image instanceof ByteProcessor)
+		{
+			byte[] src = (byte[])image.getPixels();
+			byte[] dst = new byte[w * h];
+			for (int y = 0; y < h; y++)
+			{
+				final int row0 = 2 * y * width;
+				final int row1 = row0 + width;
+				for (int x = 0; x < w; x++)
+				{
+					int sum = (src[row0 + 2 * x] & 0xff) + (src[row0 + 2 * x + 1] & 0xff) + (src[row1 + 2 * x] & 0xff) + (src[row1 + 2 * x + 1] & 0xff);
+					dst[y * w + x] = (byte)((sum + 2) >> 2);
+				}
+			}
+			return new ByteProcessor(w, h, dst);
+		}
+		else if (image instanceof ShortProcessor)
+		{
+			short[] src = (short[])image.getPixels();
+			short[] dst = new short[w * h];
+			for (int y = 0; y < h; y++)
+			{
+				final int row0 = 2 * y * width;
+				final int row1 = row0 + width;
+				for (int x = 0; x < w; x++)
+				{
+					int sum = (src[row0 + 2 * x] & 0xffff) + (src[row0 + 2 * x + 1] & 0xffff) + (src[row1 + 2 * x] & 0xffff) + (src[row1 + 2 * x + 1] & 0xffff);
+					dst[y * w + x] = (short)((sum + 2) >> 2);
+				}
+			}
+			return new ShortProcessor(w, h, dst, null);
+		}
+		else
+		{
+			throw new RuntimeException("Only 8 bit/pixel and 16 bit/pixel grayscale images are supported.");
+		}
+	}
+}
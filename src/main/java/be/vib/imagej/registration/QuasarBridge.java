@@ -0,0 +1,109 @@
+package be.vib.imagej.registration;
+
+import be.vib.bits.QFunction;
+import be.vib.bits.QValue;
+import ij.process.ImageProcessor;
+
+// The calls that Registerer makes into Quasar to create data and look up functions.
+// Registerer only uses Quasar through this interface, and only holds the Value and Function handles it returns,
+// so a stub that does not need a running Quasar can be substituted, e.g. to count how many image conversions
+// and function lookups a registration run performs (see QuasarBridgeCheck).
+public interface QuasarBridge
+{
+	// A Quasar value (scalar, vector or cube)
+	public interface Value
+	{
+		public Value at(int index);
+		
+		public int getInt();
+		
+		public void dispose();
+	}
+	
+	// A Quasar function
+	public interface Function
+	{
+		public Value apply(Value... arguments);
+		
+		public void dispose();
+	}
+	
+	public Value newCubeFromImage(ImageProcessor image);
+	
+	public Value newScalar(int value);
+	
+	public Function lookupFunction(String signature);
+	
+	// The real thing
+	public static final QuasarBridge DEFAULT = new QuasarBridge()
+	{
+		@Override
+		public Value newCubeFromImage(ImageProcessor image)
+		{
+			return wrap(ImageUtils.newCubeFromImage(image));
+		}
+
+		@Override
+		public Value newScalar(int value)
+		{
+			return wrap(new QValue(value));
+		}
+
+		@Override
+		public Function lookupFunction(String signature)
+		{
+			final QFunction function = new QFunction(signature);
+			return new Function()
+			{
+				@Override
+				public Value apply(Value... arguments)
+				{
+					QValue[] values = new QValue[arguments.length];
+					for (int i = 0; i < arguments.length; i++)
+						values[i] = ((QuasarValue)arguments[i]).value;
+					return wrap(function.apply(values));
+				}
+
+				@Override
+				public void dispose()
+				{
+					function.dispose();
+				}
+			};
+		}
+	};
+	
+	static Value wrap(QValue value)
+	{
+		return (value == null) ? null : new QuasarValue(value);
+	}
+	
+	// A Value of the real bridge
+	static class QuasarValue implements Value
+	{
+		final QValue value;
+		
+		QuasarValue(QValue value)
+		{
+			this.value = value;
+		}
+		
+		@Override
+		public Value at(int index)
+		{
+			return wrap(value.at(index));
+		}
+
+		@Override
+		public int getInt()
+		{
+			return value.getInt();
+		}
+
+		@Override
+		public void dispose()
+		{
+			value.dispose();
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package be.vib.imagej.registration;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+
+// Checks that Registerer keeps its Quasar objects for the whole run: it registers a number of slices
+// against a stub QuasarBridge that counts the image conversions and function lookups, without a running Quasar.
+// The reference patch must be converted once per run (and again only when another patch is passed in),
+// each function looked up once, and everything that was created must be disposed by Registerer.dispose().
+// Run it via bridgecheck.bat (after building the classes); the exit code is 1 if a check fails.
+public class QuasarBridgeCheck
+{
+	private static final int numSlices = 10;
+
+	public static void main(String[] args) throws Exception
+	{
+		CountingBridge bridge = new CountingBridge();
+		Registerer registerer = new Registerer(bridge);
+
+		ImageProcessor referencePatch = new ByteProcessor(16, 16);
+		for (int i = 0; i < numSlices; i++)
+		{
+			registerer.setParameters(new ByteProcessor(48, 48), referencePatch, 0, 32, 0, 32);
+			registerer.call();
+		}
+
+		boolean ok = true;
+		ok &= check("image conversions", bridge.conversions, numSlices + 1);  // every slice, and the reference patch once
+		ok &= check("function lookups", bridge.lookups, 2);                   // registration() and zeros()
+
+		// Another reference patch must be converted again, but nothing else.
+		registerer.setParameters(new ByteProcessor(48, 48), new ByteProcessor(16, 16), 0, 32, 0, 32);
+		registerer.call();
+		ok &= check("image conversions after a new reference patch", bridge.conversions, numSlices + 3);
+		ok &= check("function lookups after a new reference patch", bridge.lookups, 2);
+
+		registerer.dispose();
+		ok &= check("cubes and functions not disposed", bridge.live(), 0);
+
+		System.out.println(ok ? "All checks passed" : "Some checks FAILED");
+		System.exit(ok ? 0 : 1);
+	}
+
+	private static boolean check(String what, int actual, int expected)
+	{
+		System.out.println(String.format("%s: %d (expected %d)%s", what, actual, expected, (actual == expected) ? "" : "  <-- FAILED"));
+		return actual == expected;
+	}
+
+	// A QuasarBridge whose values are plain Java arrays. The registration function returns position (xmin, ymin).
+	// Only the scalars are not counted as live objects: Registerer passes them to a function and forgets them.
+	private static class CountingBridge implements QuasarBridge
+	{
+		int conversions = 0;
+		int lookups = 0;
+		private final List<StubObject> created = new ArrayList<StubObject>();
+
+		int live()
+		{
+			int n = 0;
+			for (StubObject object : created)
+				if (!object.disposed)
+					n++;
+			return n;
+		}
+
+		@Override
+		public Value newCubeFromImage(ImageProcessor image)
+		{
+			conversions++;
+			return track(new StubValue(new int[image.getWidth() * image.getHeight()]));
+		}
+
+		@Override
+		public Value newScalar(int value)
+		{
+			return new StubValue(new int[] { value });
+		}
+
+		@Override
+		public Function lookupFunction(String signature)
+		{
+			lookups++;
+			if (signature.startsWith("zeros"))
+				return track(new StubFunction(arguments -> track(new StubValue(new int[((StubValue)arguments[0]).data[0] * ((StubValue)arguments[1]).data[0]]))));
+			else if (signature.startsWith("registration"))
+				return track(new StubFunction(arguments -> {
+					// registration(img, ref_patch, xmin, xmax, ymin, ymax, best_pos): best_pos = [y, x]
+					int[] bestPos = ((StubValue)arguments[6]).data;
+					bestPos[0] = ((StubValue)arguments[4]).data[0];
+					bestPos[1] = ((StubValue)arguments[2]).data[0];
+					return null;
+				}));
+			else
+				throw new IllegalArgumentException("Unexpected lookup of " + signature);
+		}
+
+		private <T extends StubObject> T track(T object)
+		{
+			created.add(object);
+			return object;
+		}
+	}
+
+	private static class StubObject
+	{
+		boolean disposed = false;
+
+		public void dispose()
+		{
+			if (disposed)
+				throw new IllegalStateException("Disposed twice");
+			disposed = true;
+		}
+	}
+
+	private static class StubValue extends StubObject implements QuasarBridge.Value
+	{
+		final int[] data;
+
+		StubValue(int[] data)
+		{
+			this.data = data;
+		}
+
+		@Override
+		public QuasarBridge.Value at(int index)
+		{
+			return new StubValue(new int[] { data[index] });
+		}
+
+		@Override
+		public int getInt()
+		{
+			return data[0];
+		}
+	}
+
+	private static class StubFunction extends StubObject implements QuasarBridge.Function
+	{
+		private final java.util.function.Function<QuasarBridge.Value[], QuasarBridge.Value> body;
+
+		StubFunction(java.util.function.Function<QuasarBridge.Value[], QuasarBridge.Value> body)
+		{
+			this.body = body;
+		}
+
+		@Override
+		public QuasarBridge.Value apply(QuasarBridge.Value... arguments)
+		{
+			return body.apply(arguments);
+		}
+	}
+}
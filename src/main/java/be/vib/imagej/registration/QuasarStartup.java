@@ -0,0 +1,44 @@
+package be.vib.imagej.registration;
+
+import be.vib.bits.JavaQuasarBridge;
+import ij.IJ;
+
+// Starts the Quasar host and loads our registration module into it.
+// Used by the wizard (via QuasarInitializationSwingWorker) and by the headless RegistrationBatch.
+public class QuasarStartup
+{
+	// Throws a RuntimeException on failure. Quasar can only be started once per Java VM.
+	public static void start()
+	{
+		// Use the QUASAR_HOST environment variable to specify where to find the Quasar runtime.
+		// If this variable is set, then Quasar will be started from there.
+		// If this variable is not set, then set it to point to the Fiji.app\Quasar folder. A minimal Quasar should have been installed there.
+		String quasarPath = JavaQuasarBridge.getQuasarPath();
+		System.out.println("Querying: QUASAR_PATH=" + quasarPath);
+		if (quasarPath == null)
+		{
+			JavaQuasarBridge.setQuasarPath(getFijiQuasarPath());
+			System.out.println("QUASAR_PATH environment variable was not set, so using " + getFijiQuasarPath());
+		}
+		else
+		{
+			System.out.println("Using Quasar pointed to by existing environment variable QUASAR_PATH=" + quasarPath);
+		}
+
+		// Start the Quasar host
+		JavaQuasarBridge.startQuasar("cuda", false);
+		
+		// Schedule Quasar release for later, when the Java VM shuts down. This is ugly, but
+		// there doesn't seem to be any other obvious way to release Quasar "at the very end".
+		// (And Quasar can only be initialized and released a single time.)
+		JavaQuasarBridge.addQuasarShutdownHook();
+		
+		// Extract the .qlib file with our denoising Quasar code from our jar file into a temporary folder, and ask Quasar to load it.
+		JavaQuasarBridge.extractAndLoadModule("be.vib.imagej.registration.QuasarStartup", "qlib/registration.qlib", "registration.qlib", "vib_em_registration_");
+	}
+	
+	private static String getFijiQuasarPath()
+	{
+		return IJ.getDir("imagej") + java.io.File.separator + "Quasar";
+	}
+}
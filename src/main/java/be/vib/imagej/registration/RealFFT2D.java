@@ -0,0 +1,175 @@
+package be.vib.imagej.registration;
+
+import java.util.stream.IntStream;
+
+// 2D real-to-complex and complex-to-real Fourier transforms of a width x height image
+// (both powers of two). Because the spectrum of a real image is Hermitian, only the
+// width/2+1 leftmost columns of the spectrum are stored. The row transforms pack two real rows
+// into one complex FFT, so both directions cost about half of a full complex 2D FFT.
+// Rows and columns are transformed in parallel.
+public class RealFFT2D
+{
+	private final int width;
+	private final int height;
+	private final int halfWidth;  // width/2 + 1 = number of stored spectrum columns
+	private final FFT rowFFT;
+	private final FFT columnFFT;
+
+	// A half spectrum: halfWidth columns x height rows, row-major.
+	public static class Spectrum
+	{
+		public final double[] re;
+		public final double[] im;
+
+		public Spectrum(int size)
+		{
+			re = new double[size];
+			im = new double[size];
+		}
+
+		public Spectrum copy()
+		{
+			Spectrum s = new Spectrum(re.length);
+			System.arraycopy(re, 0, s.re, 0, re.length);
+			System.arraycopy(im, 0, s.im, 0, im.length);
+			return s;
+		}
+	}
+
+	public RealFFT2D(int width, int height)
+	{
+		this.width = width;
+		this.height = height;
+		this.halfWidth = width / 2 + 1;
+		this.rowFFT = FFT.plan(width);
+		this.columnFFT = FFT.plan(height);
+	}
+
+	public int getWidth()
+	{
+		return width;
+	}
+
+	public int getHeight()
+	{
+		return height;
+	}
+
+	// Forward transform of a real width x height image (row-major).
+	public Spectrum forward(double[] image)
+	{
+		assert(image.length == width * height);
+
+		final Spectrum s = new Spectrum(halfWidth * height);
+
+		// Transform pairs of rows: z = row r + i * row r+1.
+		IntStream.range(0, (height + 1) / 2).parallel().forEach(pair -> {
+			final int r = 2 * pair;
+			final double[] zr = new double[width];
+			final double[] zi = new double[width];
+			System.arraycopy(image, r * width, zr, 0, width);
+			if (r + 1 < height)
+				System.arraycopy(image, (r + 1) * width, zi, 0, width);
+
+			rowFFT.transform(zr, zi, false);
+
+			// Untangle the spectra A (of row r) and B (of row r+1) from Z:
+			// A[k] = (Z[k] + conj(Z[n-k])) / 2 and B[k] = (Z[k] - conj(Z[n-k])) / 2i
+			for (int k = 0; k < halfWidth; k++)
+			{
+				final int m = (width - k) & (width - 1);
+				final double a = zr[k], b = zi[k];
+				final double c = zr[m], d = -zi[m];
+				s.re[r * halfWidth + k] = 0.5 * (a + c);
+				s.im[r * halfWidth + k] = 0.5 * (b + d);
+				if (r + 1 < height)
+				{
+					s.re[(r + 1) * halfWidth + k] = 0.5 * (b - d);
+					s.im[(r + 1) * halfWidth + k] = -0.5 * (a - c);
+				}
+			}
+		});
+
+		transformColumns(s, false);
+		return s;
+	}
+
+	// Inverse transform of a half spectrum of a real image, normalized so that inverse(forward(x)) == x.
+	// The spectrum is overwritten.
+	public double[] inverse(Spectrum s)
+	{
+		transformColumns(s, true);
+
+		final double[] image = new double[width * height];
+		final double scale = 1.0 / ((double)width * height);
+
+		// Inverse transform pairs of rows: Z = A + i * B, with A and B expanded to full Hermitian spectra.
+		IntStream.range(0, (height + 1) / 2).parallel().forEach(pair -> {
+			final int r = 2 * pair;
+			final double[] zr = new double[width];
+			final double[] zi = new double[width];
+			for (int k = 0; k < width; k++)
+			{
+				final boolean mirrored = k >= halfWidth;
+				final int kk = mirrored ? width - k : k;
+				final double conj = mirrored ? -1.0 : 1.0;
+
+				final double ar = s.re[r * halfWidth + kk];
+				final double ai = conj * s.im[r * halfWidth + kk];
+				double br = 0, bi = 0;
+				if (r + 1 < height)
+				{
+					br = s.re[(r + 1) * halfWidth + kk];
+					bi = conj * s.im[(r + 1) * halfWidth + kk];
+				}
+				zr[k] = ar - bi;
+				zi[k] = ai + br;
+			}
+
+			rowFFT.transform(zr, zi, true);
+
+			for (int i = 0; i < width; i++)
+			{
+				image[r * width + i] = zr[i] * scale;
+				if (r + 1 < height)
+					image[(r + 1) * width + i] = zi[i] * scale;
+			}
+		});
+
+		return image;
+	}
+
+	// Returns a * conj(b), element-wise.
+	public static Spectrum multiplyConjugate(Spectrum a, Spectrum b)
+	{
+		final int n = a.re.length;
+		Spectrum c = new Spectrum(n);
+		for (int i = 0; i < n; i++)
+		{
+			c.re[i] = a.re[i] * b.re[i] + a.im[i] * b.im[i];
+			c.im[i] = a.im[i] * b.re[i] - a.re[i] * b.im[i];
+		}
+		return c;
+	}
+
+	private void transformColumns(Spectrum s, boolean inverse)
+	{
+		IntStream.range(0, halfWidth).parallel().forEach(k -> {
+			final double[] cr = new double[height];
+			final double[] ci = new double[height];
+			for (int j = 0; j < height; j++)
+			{
+				cr[j] = s.re[j * halfWidth + k];
+				ci[j] = s.im[j * halfWidth + k];
+			}
+
+			columnFFT.transform(cr, ci, inverse);
+
+			for (int j = 0; j < height; j++)
+			{
+				s.re[j * halfWidth + k] = cr[j];
+				s.im[j * halfWidth + k] = ci[j];
+			}
+		});
+	}
+}
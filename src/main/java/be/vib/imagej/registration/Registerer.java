@@ -1,13 +1,15 @@
 package be.vib.imagej.registration;
 
-import java.util.concurrent.Callable;
+import ij.process.ImageProcessor;  // IMPROVEME: move the Quasar code to be.vib.bits.quasar (or be.vib.quasar).
 
-import be.vib.bits.QFunction;   // IMPROVEME: move the Quasar code to be.vib.bits.quasar (or be.vib.quasar).
-import be.vib.bits.QValue;
-import ij.process.ImageProcessor;
-
-public class Registerer implements Callable<RegistrationResult>
+// Registerer finds the reference patch with the Quasar registration() function.
+// It is meant to be used for a whole registration run: the reference patch is converted to a Quasar cube
+// only once (and again only if a different patch is passed in), the Quasar functions are looked up once,
+// and the output vector is reused for every slice. Call dispose() at the end of the run to release them.
+public class Registerer implements RegistrationEngine
 {
+	private final QuasarBridge bridge;
+	
 	private ImageProcessor referencePatch;
 	private ImageProcessor image;
 	private int xmin;
@@ -15,11 +17,24 @@ public class Registerer implements Callable<RegistrationResult>
 	private int xmax;
 	private int ymax;
 	
+	// Quasar objects kept across slices, created lazily on the Quasar thread
+	private ImageProcessor uploadedReferencePatch;  // the patch that quasarReferencePatch was converted from
+	private QuasarBridge.Value quasarReferencePatch;
+	private QuasarBridge.Function registration;
+	private QuasarBridge.Value bestPos;
+	
 	public Registerer()
 	{
+		this(QuasarBridge.DEFAULT);
+	}
+	
+	public Registerer(QuasarBridge bridge)
+	{
+		this.bridge = bridge;
 		this.xmin = this.ymin = this.xmax = this.ymax = 0;
 	}
 	
+	@Override
 	public void setParameters(ImageProcessor image, ImageProcessor referencePatch, int xmin, int xmax, int ymin, int ymax)
 	{
 		this.image = image;
@@ -30,29 +45,61 @@ public class Registerer implements Callable<RegistrationResult>
 		this.ymax = ymax;
 	}
 	
+	@Override
+	public boolean runsOnQuasarThread()
+	{
+		return true;
+	}
+	
 	// Important: call() *must* be run on the Quasar thread!
 	@Override
 	public RegistrationResult call()
 	{		
-		QValue quasarImage = ImageUtils.newCubeFromImage(image);
-		QValue quasarReferencePatch = ImageUtils.newCubeFromImage(referencePatch);   // TODO: avoid repeatedly converting the (currently fixed) reference patch to a Quasar cube
+		if (registration == null)
+		{
+			// Quasar function registration(img, ref_patch, xmin, xmax, ymin, ymax, best_pos)
+			registration = bridge.lookupFunction("registration(mat,mat,int,int,int,int,mat)");
+			
+			QuasarBridge.Function zeros = bridge.lookupFunction("zeros(...)");
+			bestPos = zeros.apply(bridge.newScalar(1), bridge.newScalar(2));  // a 1x2 placeholder vector for returning the position [y, x] of the best matching patch
+			zeros.dispose();
+		}
 		
-		// Quasar function registration(img, ref_patch, xmin, xmax, ymin, ymax, best_pos)
-		QFunction registration = new QFunction("registration(mat,mat,int,int,int,int,mat)"); 
+		if (referencePatch != uploadedReferencePatch)
+		{
+			if (quasarReferencePatch != null)
+				quasarReferencePatch.dispose();
+			quasarReferencePatch = bridge.newCubeFromImage(referencePatch);
+			uploadedReferencePatch = referencePatch;
+		}
 		
-		QFunction zeros = new QFunction("zeros(...)");
-		QValue bestPos = zeros.apply(new QValue(1), new QValue(2));  // a 1x2 placeholder vector for returning the position [y, x] of the best matching patch
+		QuasarBridge.Value quasarImage = bridge.newCubeFromImage(image);
 
-		registration.apply(quasarImage, quasarReferencePatch, new QValue(xmin), new QValue(xmax), new QValue(ymin), new QValue(ymax), bestPos);
+		registration.apply(quasarImage, quasarReferencePatch, bridge.newScalar(xmin), bridge.newScalar(xmax), bridge.newScalar(ymin), bridge.newScalar(ymax), bestPos);
 
 		int posX = bestPos.at(1).getInt();
 		int posY = bestPos.at(0).getInt();
 		
 		quasarImage.dispose();
-		quasarReferencePatch.dispose();
-		bestPos.dispose();
 		
 		return new RegistrationResult(posX, posY);
 	}
+	
+	// Important: dispose() *must* be run on the Quasar thread too.
+	@Override
+	public void dispose()
+	{
+		if (quasarReferencePatch != null)
+			quasarReferencePatch.dispose();
+		if (bestPos != null)
+			bestPos.dispose();
+		if (registration != null)
+			registration.dispose();
+		
+		quasarReferencePatch = null;
+		uploadedReferencePatch = null;
+		bestPos = null;
+		registration = null;
+	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,417 @@
+package be.vib.imagej.registration;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import ij.ImagePlus;
+
+// RegistrationBatch registers one or more stacks without user interface, e.g. on a cluster node.
+// It does the same as the wizard, but takes the parameters from the command line:
+//
+//   java -cp <plugin jar, ij.jar, JavaQuasarBridge.jar> be.vib.imagej.registration.RegistrationBatch [parameter file]... [key=value]...
+//
+// A parameter file is a Java properties file with the same keys as the command line (see usage());
+// key=value arguments override the values from the parameter files.
+// Every parameter file is a separate job (stack); the jobs run concurrently on a RegistrationScheduler.
+// When done, the throughput (slices and megabytes of input per second) of every job is printed.
+// With phase=... a single stack is registered in shards by several processes, see ShardedRegistration.
+public class RegistrationBatch
+{
+	private static final String[] keys = { "input", "pattern", "output", "patch", "maxShiftX", "maxShiftY", "sliceThickness", "preserveSliceOrder", "autoCrop", "nonblackStep",
+	                                       "engine", "subpixel", "pyramidLevels", "seaLevels", "mode", "threads", "budgetMB",
+	                                       "format", "stackCommitInterval", "chunkSize", "chunkCompression", "priority", "jobs",
+	                                       "phase", "shard", "shards", "overlap" };
+
+	public static void main(String[] args)
+	{
+		if (System.getProperty("java.awt.headless") == null)
+			System.setProperty("java.awt.headless", "true");  // there is no display on cluster nodes
+
+		try
+		{
+			Properties overrides = new Properties();
+			List<Path> parameterFiles = new ArrayList<Path>();
+			for (String arg : args)
+			{
+				int equals = arg.indexOf('=');
+				if (equals > 0)
+					overrides.setProperty(arg.substring(0, equals).trim(), arg.substring(equals + 1).trim());
+				else
+					parameterFiles.add(Paths.get(arg));
+			}
+
+			List<Properties> jobs = new ArrayList<Properties>();
+			if (parameterFiles.isEmpty())
+				jobs.add(overrides);
+			for (Path parameterFile : parameterFiles)
+				jobs.add(readParameters(parameterFile, overrides));
+
+			List<RegistrationParameters> params = new ArrayList<RegistrationParameters>();
+			for (Properties job : jobs)
+				params.add(parseParameters(job));
+
+			if (overrides.containsKey("phase"))
+			{
+				if (params.size() != 1)
+					throw new IllegalArgumentException("Sharded registration takes a single stack");
+				runSharded(args, params.get(0), overrides);
+				System.exit(0);
+			}
+
+			if (params.stream().anyMatch(p -> p.engine == MatchingEngine.QUASAR))
+				QuasarStartup.start();
+
+			int maxConcurrentJobs = parseInt(overrides, "jobs", Math.min(jobs.size(), 2));
+			long budgetBytes = parseInt(overrides, "budgetMB", (int)(Runtime.getRuntime().maxMemory() / 4 >> 20)) * (1L << 20);
+			int[] priorities = jobs.stream().mapToInt(job -> parseInt(job, "priority", 0)).toArray();
+			boolean ok = run(params, priorities, maxConcurrentJobs, budgetBytes);
+			System.exit(ok ? 0 : 1);
+		}
+		catch (IllegalArgumentException e)
+		{
+			System.err.println("Error: " + e.getMessage());
+			usage();
+			System.exit(2);
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+			System.err.println("Registration failed: " + e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	// Runs the jobs and returns true if all of them succeeded.
+	private static boolean run(List<RegistrationParameters> params, int[] priorities, int maxConcurrentJobs, long budgetBytes) throws Exception
+	{
+		final int numWorkerThreads = params.stream().mapToInt(p -> p.numThreads).max().getAsInt();
+		final Map<RegistrationScheduler.Job, Integer> lastPercentages = new ConcurrentHashMap<RegistrationScheduler.Job, Integer>();
+
+		RegistrationScheduler scheduler = new RegistrationScheduler(maxConcurrentJobs, numWorkerThreads, budgetBytes, job -> {
+			int percentage = (int)job.getProgress();
+			Integer last = lastPercentages.put(job, percentage);
+			if (last == null || last != percentage || job.isFinished())
+			{
+				RegistrationProgress progress = job.getLatestProgress();
+				System.out.println(String.format("Job %s: %s %d%%%s", job, job.getState(), percentage, (progress != null && !job.isFinished()) ? " (" + progress + ")" : ""));
+			}
+		});
+
+		final long start = System.nanoTime();
+		for (int i = 0; i < params.size(); i++)
+			scheduler.submit(params.get(i), priorities[i]);
+		scheduler.awaitAll();
+		scheduler.shutdown();
+		final double seconds = (System.nanoTime() - start) / 1e9;
+
+		boolean ok = true;
+		int totalSlices = 0;
+		long totalBytes = 0;
+		for (RegistrationScheduler.Job job : scheduler.getJobs())
+		{
+			if (job.getState() != RegistrationScheduler.State.DONE)
+			{
+				System.out.println(String.format("Job %s: %s %s", job, job.getState(), job.getError() != null ? job.getError() : ""));
+				ok = false;
+				continue;
+			}
+
+			List<Path> slices = job.getSlices();
+			long bytes = 0;
+			for (Path slice : slices)
+				bytes += Files.size(slice);
+			totalSlices += slices.size();
+			totalBytes += bytes;
+			System.out.println(String.format("Job %s: registered %d slices (%.1f MB) in %.1f s: %.2f slices/s, %.1f MB/s",
+			                                 job, slices.size(), bytes / 1e6, job.getSeconds(), slices.size() / job.getSeconds(), bytes / 1e6 / job.getSeconds()));
+		}
+
+		if (params.size() > 1)
+			System.out.println(String.format("All jobs: registered %d slices (%.1f MB) in %.1f s: %.2f slices/s, %.1f MB/s",
+			                                 totalSlices, totalBytes / 1e6, seconds, totalSlices / seconds, totalBytes / 1e6 / seconds));
+		return ok;
+	}
+
+	// Runs one phase of a sharded registration (see ShardedRegistration), or all of them with one local process per shard.
+	private static void runSharded(String[] args, RegistrationParameters params, Properties overrides) throws Exception
+	{
+		final String phase = overrides.getProperty("phase");
+		final int numShards = parseInt(overrides, "shards", 0);
+		if (numShards < 1)
+			throw new IllegalArgumentException("Parameter 'shards' is missing");
+		final int overlap = parseInt(overrides, "overlap", 3);
+		if (overrides.containsKey("budgetMB"))
+			params.pipelineBudgetBytes = parseInt(overrides, "budgetMB", 0) * (1L << 20);
+
+		ShardedRegistration sharded = new ShardedRegistration(params, numShards, overlap);
+
+		final long start = System.nanoTime();
+		switch (phase)
+		{
+			case "estimate":
+				if (params.engine == MatchingEngine.QUASAR)
+					QuasarStartup.start();
+				sharded.estimate(parseShard(overrides, numShards), () -> false);
+				break;
+			case "reconcile":
+				sharded.reconcile();
+				break;
+			case "apply":
+				sharded.apply(parseShard(overrides, numShards), () -> false);
+				break;
+			case "local":
+				runShardProcesses(args, "estimate", numShards);
+				sharded.reconcile();
+				runShardProcesses(args, "apply", numShards);
+				break;
+			default:
+				throw new IllegalArgumentException("Parameter 'phase' must be estimate, reconcile, apply or local, not '" + phase + "'");
+		}
+		final double seconds = (System.nanoTime() - start) / 1e9;
+
+		if (phase.equals("local"))
+			System.out.println(String.format("Registered %d slices with %d processes in %.1f s: %.2f slices/s", sharded.getNumSlices(), numShards, seconds, sharded.getNumSlices() / seconds));
+		else
+			System.out.println(String.format("Phase %s done in %.1f s", phase, seconds));
+	}
+
+	private static int parseShard(Properties overrides, int numShards)
+	{
+		final int shard = parseInt(overrides, "shard", -1);
+		if (shard < 0 || shard >= numShards)
+			throw new IllegalArgumentException("Parameter 'shard' must be 0 up to " + (numShards - 1));
+		return shard;
+	}
+
+	// Runs the phase for all shards at the same time, in child processes with the same Java VM and command line.
+	private static void runShardProcesses(String[] args, String phase, int numShards) throws IOException, InterruptedException
+	{
+		List<Process> processes = new ArrayList<Process>();
+		for (int shard = 0; shard < numShards; shard++)
+		{
+			List<String> command = new ArrayList<String>();
+			command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+			command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());  // e.g. -Xmx
+			command.add("-cp");
+			command.add(System.getProperty("java.class.path"));
+			command.add(RegistrationBatch.class.getName());
+			command.addAll(Arrays.asList(args));
+			command.add("phase=" + phase);  // later arguments win
+			command.add("shard=" + shard);
+			processes.add(new ProcessBuilder(command).inheritIO().start());
+		}
+
+		for (int shard = 0; shard < numShards; shard++)
+			if (processes.get(shard).waitFor() != 0)
+				throw new IOException("The " + phase + " phase of shard " + shard + " failed");
+	}
+
+	// Reads a parameter file; the overrides replace its values.
+	private static Properties readParameters(Path file, Properties overrides) throws IOException
+	{
+		Properties properties = new Properties();
+		try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8))
+		{
+			properties.load(reader);
+		}
+		for (String key : properties.stringPropertyNames())
+			properties.setProperty(key, properties.getProperty(key).trim());
+		properties.putAll(overrides);
+		return properties;
+	}
+
+	private static RegistrationParameters parseParameters(Properties properties) throws IOException
+	{
+		Set<String> known = new HashSet<String>(Arrays.asList(keys));
+		for (String key : properties.stringPropertyNames())
+			if (!known.contains(key))
+				throw new IllegalArgumentException("Unknown parameter '" + key + "'");
+
+		Path inputFolder = Paths.get(required(properties, "input"));
+		Path outputFolder = Paths.get(required(properties, "output"));
+		List<Path> inputFiles = listFiles(inputFolder, properties.getProperty("pattern", "*.tif"));
+		if (inputFiles.isEmpty())
+			throw new IllegalArgumentException("No input files in " + inputFolder + " match the pattern");
+
+		Rectangle templatePatchRect = parseRectangle(required(properties, "patch"));
+
+		int maxShiftX = parseInt(properties, "maxShiftX", 25);
+		int maxShiftY = parseInt(properties, "maxShiftY", 25);
+
+		boolean sliceThicknessCorrection = properties.containsKey("sliceThickness");
+		double sliceThicknessNM = sliceThicknessCorrection ? parseDouble(properties, "sliceThickness") : 0.0;
+		boolean preserveSliceOrder = Boolean.parseBoolean(properties.getProperty("preserveSliceOrder", "true"));
+
+		// Like the wizard, the non-black region of the first slice determines the auto-crop rectangle,
+		// unless it is to be derived from the non-black regions of all slices (when the registration starts).
+		String autoCrop = properties.getProperty("autoCrop", "true");
+		AutoCropMode autoCropMode = AutoCropMode.REFERENCE;
+		if (autoCrop.equalsIgnoreCase("union"))
+			autoCropMode = AutoCropMode.UNION;
+		else if (autoCrop.equalsIgnoreCase("intersection"))
+			autoCropMode = AutoCropMode.INTERSECTION;
+		else if (!autoCrop.equalsIgnoreCase("true") && !autoCrop.equalsIgnoreCase("false"))
+			throw new IllegalArgumentException("Parameter 'autoCrop' must be true, false, union or intersection, not '" + autoCrop + "'");
+
+		Rectangle autoCropRect = null;
+		if (!autoCrop.equalsIgnoreCase("false"))
+		{
+			try
+			{
+				ImagePlus firstImage = SliceFiles.loadImage(inputFiles.get(0).toString(), null);
+				autoCropRect = AutoCropper.getNonblackRegion(firstImage);
+			}
+			catch (Exception e)
+			{
+				throw new IOException("Failed to determine the auto-crop region of " + inputFiles.get(0), e);
+			}
+		}
+
+		RegistrationParameters params = new RegistrationParameters(inputFiles, outputFolder, templatePatchRect, maxShiftX, maxShiftY,
+		                                                           sliceThicknessCorrection, sliceThicknessNM, preserveSliceOrder, autoCropRect);
+
+		params.autoCropMode = autoCropMode;
+		params.nonblackSampleStep = parseInt(properties, "nonblackStep", (autoCropMode != AutoCropMode.REFERENCE) ? 10 : 0);
+		params.engine = parseEnum(properties, "engine", MatchingEngine.class, params.engine);
+		params.subpixelRefinement = parseEnum(properties, "subpixel", SubpixelRefinement.class, params.subpixelRefinement);
+		params.pyramidLevels = parseInt(properties, "pyramidLevels", params.pyramidLevels);
+		params.seaLevels = parseInt(properties, "seaLevels", params.seaLevels);
+		params.mode = parseEnum(properties, "mode", RegistrationMode.class, params.mode);
+		params.numThreads = parseInt(properties, "threads", params.numThreads);
+		params.outputFormat = parseEnum(properties, "format", OutputFormat.class, params.outputFormat);
+		params.stackCommitInterval = parseInt(properties, "stackCommitInterval", params.stackCommitInterval);
+		params.chunkSize = parseInt(properties, "chunkSize", params.chunkSize);
+		params.chunkCompression = parseEnum(properties, "chunkCompression", N5VolumeWriter.Compression.class, params.chunkCompression);
+
+		Files.createDirectories(outputFolder);
+		return params;
+	}
+
+	// Same as the wizard's input file selection, but sorted on file name so the slice order does not depend on the file system.
+	private static List<Path> listFiles(Path folder, String filePattern) throws IOException
+	{
+		PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + filePattern);
+		try (Stream<Path> paths = Files.walk(folder, 1))
+		{
+			return paths.filter(Files::isRegularFile)
+			            .filter(p -> matcher.matches(p.getFileName()))
+			            .sorted()
+			            .collect(Collectors.toList());
+		}
+	}
+
+	private static String required(Properties properties, String key)
+	{
+		String value = properties.getProperty(key);
+		if (value == null || value.isEmpty())
+			throw new IllegalArgumentException("Parameter '" + key + "' is missing");
+		return value;
+	}
+
+	private static int parseInt(Properties properties, String key, int defaultValue)
+	{
+		String value = properties.getProperty(key);
+		try
+		{
+			return (value == null) ? defaultValue : Integer.parseInt(value);
+		}
+		catch (NumberFormatException e)
+		{
+			throw new IllegalArgumentException("Parameter '" + key + "' must be an integer, not '" + value + "'");
+		}
+	}
+
+	private static double parseDouble(Properties properties, String key)
+	{
+		String value = properties.getProperty(key);
+		try
+		{
+			return Double.parseDouble(value);
+		}
+		catch (NumberFormatException e)
+		{
+			throw new IllegalArgumentException("Parameter '" + key + "' must be a number, not '" + value + "'");
+		}
+	}
+
+	private static <E extends Enum<E>> E parseEnum(Properties properties, String key, Class<E> type, E defaultValue)
+	{
+		String value = properties.getProperty(key);
+		if (value == null)
+			return defaultValue;
+		for (E constant : type.getEnumConstants())
+			if (constant.name().equalsIgnoreCase(value))
+				return constant;
+		throw new IllegalArgumentException("Parameter '" + key + "' must be one of " + names(type.getEnumConstants()) + ", not '" + value + "'");
+	}
+
+	// x,y,width,height
+	private static Rectangle parseRectangle(String value)
+	{
+		String[] fields = value.split(",");
+		try
+		{
+			if (fields.length == 4)
+				return new Rectangle(Integer.parseInt(fields[0].trim()), Integer.parseInt(fields[1].trim()), Integer.parseInt(fields[2].trim()), Integer.parseInt(fields[3].trim()));
+		}
+		catch (NumberFormatException e)
+		{
+		}
+		throw new IllegalArgumentException("Parameter 'patch' must be x,y,width,height, not '" + value + "'");
+	}
+
+	private static void usage()
+	{
+		System.err.println("Usage: RegistrationBatch [parameter file]... [key=value]...");
+		System.err.println("Required:");
+		System.err.println("  input=<folder>                 folder with the slices");
+		System.err.println("  output=<folder>                folder for the registered slices (created if needed)");
+		System.err.println("  patch=x,y,width,height         reference patch in the first slice, in pixels");
+		System.err.println("Optional:");
+		System.err.println("  pattern=<glob>                 input file name pattern (default *.tif)");
+		System.err.println("  maxShiftX=<n>, maxShiftY=<n>   maximum shift between slices, in pixels (default 25)");
+		System.err.println("  sliceThickness=<nm>            if given, slices are resampled to this thickness");
+		System.err.println("  preserveSliceOrder=true|false  (default true)");
+		System.err.println("  autoCrop=true|false|union|intersection");
+		System.err.println("                                 remove the black border of the slices, as found in the first slice (true),");
+		System.err.println("                                 or the union or intersection of the non-black regions of all slices (default true)");
+		System.err.println("  nonblackStep=<k>               find the non-black region of every k-th slice before registering, and skip");
+		System.err.println("                                 candidate positions in the black border (default 10 for union|intersection, else 0 = off)");
+		System.err.println("  engine=" + names(MatchingEngine.values()) + " (default QUASAR)");
+		System.err.println("  subpixel=" + names(SubpixelRefinement.values()) + " (default NONE)");
+		System.err.println("  mode=" + names(RegistrationMode.values()) + " (default PIPELINED)");
+		System.err.println("  threads=<n>                    worker threads (default: number of processors)");
+		System.err.println("  format=" + names(OutputFormat.values()) + " (default SLICE_FILES)");
+		System.err.println("  pyramidLevels, seaLevels, stackCommitInterval, chunkSize, chunkCompression=RAW|GZIP");
+		System.err.println("  priority=<n>                   jobs with a higher priority go first (default 0)");
+		System.err.println("Command line only:");
+		System.err.println("  phase=estimate|reconcile|apply|local, shards=<n>, shard=<k>, overlap=<n>");
+		System.err.println("                                 sharded registration of one stack by several processes (see ShardedRegistration);");
+		System.err.println("                                 'local' runs all phases with one local process per shard (default overlap 3)");
+		System.err.println("  jobs=<n>                       number of jobs that run at the same time (default 2)");
+		System.err.println("  budgetMB=<n>                   memory for slices in flight, shared by the running jobs (default 1/4 of the heap)");
+	}
+
+	private static String names(Enum<?>[] constants)
+	{
+		return Arrays.stream(constants).map(Enum::name).collect(Collectors.joining("|"));
+	}
+}
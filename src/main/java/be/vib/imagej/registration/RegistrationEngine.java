@@ -0,0 +1,30 @@
+package be.vib.imagej.registration;
+
+import java.util.concurrent.Callable;
+
+import ij.process.ImageProcessor;
+
+// A RegistrationEngine looks for the position of the reference patch inside a (cropped) search window.
+// Candidate positions are the top-left corners (x, y) with xmin <= x <= xmax and ymin <= y <= ymax,
+// relative to the top-left corner of the search window. The best position is returned as a RegistrationResult.
+public interface RegistrationEngine extends Callable<RegistrationResult>
+{
+	public void setParameters(ImageProcessor image, ImageProcessor referencePatch, int xmin, int xmax, int ymin, int ymax);
+	
+	// Tells the engine where the reference patch is expected to be (relative to the top-left corner of the search window),
+	// typically its position in the previous slice. Call it after setParameters(), which forgets any earlier prediction.
+	// Engines that do not benefit from a prediction ignore it.
+	default public void setPredictedPosition(int x, int y)
+	{
+	}
+	
+	// Returns true if call() must be run on the Quasar thread (via QExecutor),
+	// false if it can be called directly from any thread.
+	public boolean runsOnQuasarThread();
+	
+	// Releases resources the engine kept between slices (e.g. Quasar objects). Call it once after the last slice,
+	// on the Quasar thread if runsOnQuasarThread() is true. The engine must not be used afterwards.
+	default public void dispose()
+	{
+	}
+}
@@ -0,0 +1,360 @@
+package be.vib.imagej.registration;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// RegistrationMetrics collects what a registration run spends its time and memory on, so one can tell afterwards
+// (or while it runs) whether it was limited by the disk, the CPU or the GPU:
+//   - a latency histogram per stage: load, crop (of the search window), match, translate (resampling for subpixel shifts;
+//     integer shifts are applied while saving) and save,
+//   - bytes read and written, candidate positions searched, queue depths and heap in use.
+// While the run is active the metrics are published as a JMX MBean (see RegistrationMetricsMBean), and a line per slice
+// is appended to METRICS_FILE in the output folder as soon as the slice is done.
+// All methods may be called from several threads at the same time.
+public class RegistrationMetrics implements RegistrationMetricsMBean
+{
+	public static final String METRICS_FILE = "metrics.csv";
+
+	public enum Stage
+	{
+		LOAD,
+		CROP,
+		MATCH,
+		TRANSLATE,
+		SAVE
+	}
+
+	private static final String HEADER = "slice,inputFile,loadMs,cropMs,matchMs,translateMs,saveMs,bytesRead,bytesWritten,candidates,loadedQueue,registeredQueue,bytesInFlightMB,heapUsedMB";
+
+	// Latencies in buckets of powers of 2 microseconds: bucket b holds latencies in [2^(b-1), 2^b) us, bucket 0 those below 1 us.
+	private static class Histogram
+	{
+		private static final int NUM_BUCKETS = 48;
+
+		private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+		private final LongAdder count = new LongAdder();
+		private final LongAdder totalNs = new LongAdder();
+		private final AtomicLong maxNs = new AtomicLong();
+
+		public void record(long ns)
+		{
+			final long us = ns / 1000;
+			counts.incrementAndGet(Math.min(NUM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(us)));
+			count.increment();
+			totalNs.add(ns);
+			maxNs.accumulateAndGet(ns, Math::max);
+		}
+
+		public long count()
+		{
+			return count.sum();
+		}
+
+		public double meanMillis()
+		{
+			final long n = count.sum();
+			return (n == 0) ? Double.NaN : totalNs.sum() / 1e6 / n;
+		}
+
+		// The upper bound of the bucket that holds the given percentile, so accurate to within a factor 2
+		public double percentileMillis(double percentile)
+		{
+			final long n = count.sum();
+			if (n == 0)
+				return Double.NaN;
+			final long rank = Math.max(1, (long)Math.ceil(percentile / 100.0 * n));
+			long seen = 0;
+			for (int b = 0; b < NUM_BUCKETS; b++)
+			{
+				seen += counts.get(b);
+				if (seen >= rank)
+					return Math.min((1L << b) / 1000.0, maxMillis());
+			}
+			return maxMillis();
+		}
+
+		public double maxMillis()
+		{
+			return maxNs.get() / 1e6;
+		}
+
+		public double totalSeconds()
+		{
+			return totalNs.sum() / 1e9;
+		}
+	}
+
+	// What we know about one slice that is not done yet
+	private static class SliceRow
+	{
+		public Path inputFile;
+		public final long[] stageNs = new long[Stage.values().length];
+		public long bytesRead;
+		public long bytesWritten;
+		public long candidates;
+	}
+
+	private final Path outputFolder;
+	private final Histogram[] histograms = new Histogram[Stage.values().length];
+	private final LongAdder slicesDone = new LongAdder();
+	private final LongAdder bytesRead = new LongAdder();
+	private final LongAdder bytesWritten = new LongAdder();
+	private final LongAdder candidates = new LongAdder();
+	private final ConcurrentHashMap<Integer, SliceRow> rows = new ConcurrentHashMap<Integer, SliceRow>();
+	private volatile IntSupplier loadedQueue;       // null if unknown
+	private volatile IntSupplier registeredQueue;   // null if unknown
+	private volatile LongSupplier bytesInFlight;    // null if unknown
+	private BufferedWriter csv;
+	private ObjectName name;  // null if not registered with JMX
+
+	// Starts collecting metrics for a run that writes to the given output folder:
+	// replaces METRICS_FILE there and registers the MBean. Call close() when the run is over.
+	public static RegistrationMetrics start(Path outputFolder) throws IOException
+	{
+		RegistrationMetrics metrics = new RegistrationMetrics(outputFolder);
+		metrics.csv = Files.newBufferedWriter(outputFolder.resolve(METRICS_FILE), StandardCharsets.UTF_8);
+		metrics.csv.write(HEADER);
+		metrics.csv.newLine();
+		metrics.csv.flush();
+
+		try
+		{
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName("be.vib.imagej.registration:type=RegistrationMetrics,name=" + ObjectName.quote(outputFolder.toString()));
+			server.registerMBean(metrics, name);
+			metrics.name = name;
+		}
+		catch (InstanceAlreadyExistsException e)
+		{
+			System.out.println("Another registration into " + outputFolder + " is running, metrics of this run are not published via JMX");
+		}
+		catch (Exception e)
+		{
+			System.out.println("Failed to publish the registration metrics via JMX: " + e);
+		}
+		return metrics;
+	}
+
+	private RegistrationMetrics(Path outputFolder)
+	{
+		this.outputFolder = outputFolder;
+		for (Stage stage : Stage.values())
+			histograms[stage.ordinal()] = new Histogram();
+	}
+
+	// Tells where the queue depths and the size of the slices in flight can be found; any of them may be null.
+	public void setQueues(IntSupplier loadedQueue, IntSupplier registeredQueue, LongSupplier bytesInFlight)
+	{
+		this.loadedQueue = loadedQueue;
+		this.registeredQueue = registeredQueue;
+		this.bytesInFlight = bytesInFlight;
+	}
+
+	public void record(int slice, Path inputFile, Stage stage, long ns)
+	{
+		histograms[stage.ordinal()].record(ns);
+		SliceRow row = row(slice, inputFile);
+		synchronized (row)
+		{
+			row.stageNs[stage.ordinal()] += ns;
+		}
+	}
+
+	public void addBytesRead(int slice, Path inputFile, long bytes)
+	{
+		bytesRead.add(bytes);
+		SliceRow row = row(slice, inputFile);
+		synchronized (row)
+		{
+			row.bytesRead += bytes;
+		}
+	}
+
+	public void addBytesWritten(int slice, Path inputFile, long bytes)
+	{
+		bytesWritten.add(bytes);
+		SliceRow row = row(slice, inputFile);
+		synchronized (row)
+		{
+			row.bytesWritten += bytes;
+		}
+	}
+
+	public void addCandidates(int slice, Path inputFile, long numCandidates)
+	{
+		candidates.add(numCandidates);
+		SliceRow row = row(slice, inputFile);
+		synchronized (row)
+		{
+			row.candidates += numCandidates;
+		}
+	}
+
+	// Writes the line of a slice that is saved (or skipped) to METRICS_FILE.
+	// Slices for which nothing was recorded (e.g. skipped when resuming a run) get no line.
+	public void sliceDone(int slice) throws IOException
+	{
+		SliceRow row = rows.remove(slice);
+		if (row == null)
+			return;
+		slicesDone.increment();
+
+		String line;
+		synchronized (row)
+		{
+			line = String.format(Locale.ROOT, "%d,%s,%.3f,%.3f,%.3f,%.3f,%.3f,%d,%d,%d,%d,%d,%d,%d", slice, quote(row.inputFile.toString()),
+			                     row.stageNs[0] / 1e6, row.stageNs[1] / 1e6, row.stageNs[2] / 1e6, row.stageNs[3] / 1e6, row.stageNs[4] / 1e6,
+			                     row.bytesRead, row.bytesWritten, row.candidates,
+			                     getLoadedQueueDepth(), getRegisteredQueueDepth(), getBytesInFlight() >> 20, getHeapUsedBytes() >> 20);
+		}
+		synchronized (this)
+		{
+			csv.write(line);
+			csv.newLine();
+			csv.flush();  // so the file can be inspected while the run is in progress
+		}
+	}
+
+	// Unregisters the MBean, closes METRICS_FILE and prints a summary of the stages.
+	public synchronized void close() throws IOException
+	{
+		if (name != null)
+		{
+			try
+			{
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+			}
+			catch (Exception e)
+			{
+				System.out.println("Failed to unregister the registration metrics from JMX: " + e);
+			}
+			name = null;
+		}
+		csv.close();
+
+		for (String summary : getStageSummaries())
+			System.out.println("Metrics: " + summary);
+		System.out.println(String.format("Metrics: %d slices, %d MB read, %d MB written, %d candidate positions searched", getSlicesDone(), getBytesRead() >> 20, getBytesWritten() >> 20, getCandidatesEvaluated()));
+	}
+
+	@Override
+	public String getOutputFolder()
+	{
+		return outputFolder.toString();
+	}
+
+	@Override
+	public long getSlicesDone()
+	{
+		return slicesDone.sum();
+	}
+
+	@Override
+	public long getBytesRead()
+	{
+		return bytesRead.sum();
+	}
+
+	@Override
+	public long getBytesWritten()
+	{
+		return bytesWritten.sum();
+	}
+
+	// The number of candidate positions in the search windows. Engines that prune (e.g. SEA, SPIRAL) compute
+	// the full cost for fewer of them.
+	@Override
+	public long getCandidatesEvaluated()
+	{
+		return candidates.sum();
+	}
+
+	@Override
+	public long getHeapUsedBytes()
+	{
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	@Override
+	public int getLoadedQueueDepth()
+	{
+		IntSupplier queue = loadedQueue;
+		return (queue == null) ? -1 : queue.getAsInt();
+	}
+
+	@Override
+	public int getRegisteredQueueDepth()
+	{
+		IntSupplier queue = registeredQueue;
+		return (queue == null) ? -1 : queue.getAsInt();
+	}
+
+	@Override
+	public long getBytesInFlight()
+	{
+		LongSupplier bytes = bytesInFlight;
+		return (bytes == null) ? -1 : bytes.getAsLong();
+	}
+
+	@Override
+	public String[] getStageSummaries()
+	{
+		String[] summaries = new String[Stage.values().length];
+		for (Stage stage : Stage.values())
+		{
+			Histogram h = histograms[stage.ordinal()];
+			summaries[stage.ordinal()] = String.format(Locale.ROOT, "%-9s %6d x, mean %8.2f ms, p50 < %8.2f ms, p99 < %8.2f ms, max %8.2f ms, total %8.1f s",
+			                                           stage.name().toLowerCase(), h.count(), h.meanMillis(), h.percentileMillis(50), h.percentileMillis(99), h.maxMillis(), h.totalSeconds());
+		}
+		return summaries;
+	}
+
+	// The total time spent in the stage so far (summed over all threads)
+	public double totalSeconds(Stage stage)
+	{
+		return histograms[stage.ordinal()].totalSeconds();
+	}
+
+	@Override
+	public double meanMillis(String stage)
+	{
+		return histograms[Stage.valueOf(stage.trim().toUpperCase()).ordinal()].meanMillis();
+	}
+
+	@Override
+	public double percentileMillis(String stage, double percentile)
+	{
+		return histograms[Stage.valueOf(stage.trim().toUpperCase()).ordinal()].percentileMillis(percentile);
+	}
+
+	private SliceRow row(int slice, Path inputFile)
+	{
+		SliceRow row = rows.computeIfAbsent(slice, s -> new SliceRow());
+		synchronized (row)
+		{
+			if (row.inputFile == null)
+				row.inputFile = inputFile;
+		}
+		return row;
+	}
+
+	private static String quote(String s)
+	{
+		return (s.indexOf(',') < 0 && s.indexOf('"') < 0) ? s : "\"" + s.replace("\"", "\"\"") + "\"";
+	}
+}
@@ -0,0 +1,33 @@
+package be.vib.imagej.registration;
+
+// The JMX view (e.g. in JConsole or VisualVM) of the RegistrationMetrics of a run that is in progress.
+public interface RegistrationMetricsMBean
+{
+	public String getOutputFolder();
+
+	public long getSlicesDone();
+
+	public long getBytesRead();
+
+	public long getBytesWritten();
+
+	public long getCandidatesEvaluated();
+
+	public long getHeapUsedBytes();
+
+	// Slices loaded but not registered yet, registered but not saved yet, and the size of all slices in flight;
+	// -1 if the registration mode has no such queue.
+	public int getLoadedQueueDepth();
+
+	public int getRegisteredQueueDepth();
+
+	public long getBytesInFlight();
+
+	// One line per stage, with the number of slices, the mean, median, 99th percentile and maximum latency and the total time
+	public String[] getStageSummaries();
+
+	// The mean resp. a percentile (0-100) of the latency of a stage ("load", "crop", "match", "translate" or "save"), in milliseconds
+	public double meanMillis(String stage);
+
+	public double percentileMillis(String stage, double percentile);
+}
@@ -0,0 +1,22 @@
+package be.vib.imagej.registration;
+
+// How the work of a registration run is organized over threads.
+public enum RegistrationMode
+{
+	SEQUENTIAL("One slice at a time"),                                // load, register, translate and save each slice before starting the next one
+	PIPELINED("Pipelined"),                                           // load the next slices and save the previous ones while registering (see RegistrationPipeline)
+	TWO_PASS("Two passes: shifts first, then translate in parallel"); // see TwoPassRegistration
+	
+	private final String description;  // shown to the user
+	
+	private RegistrationMode(String description)
+	{
+		this.description = description;
+	}
+	
+	@Override
+	public String toString()
+	{
+		return description;
+	}
+}
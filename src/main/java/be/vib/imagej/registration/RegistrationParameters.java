@@ -18,6 +18,26 @@ public class RegistrationParameters
 	public boolean preserveSliceOrder; // if false, nearest neighbor sampling with pick the slice with the closest z (even if this results in out-of-order slices because of neagtive slice thicknesses reported by the EM microscope); if true, isotonic regression will be performed on the reported z values, resulting in in-order slice sampling (this is more realistic)
 	
 	public Rectangle autoCropRect;  // if null, then no auto-crop is performed
+	public AutoCropMode autoCropMode = AutoCropMode.REFERENCE;  // if not REFERENCE, autoCropRect is replaced by one derived from the NonblackRegionIndex when the run starts; only relevant if autoCropRect != null
+	public int nonblackSampleStep = 0;  // if > 0, the non-black region of every so many slices is found before registering (see NonblackRegionIndex), and candidate positions in the black border are skipped; needed if autoCropMode != REFERENCE
+	
+	public MatchingEngine engine = MatchingEngine.QUASAR;  // the implementation used for finding the reference patch in each slice
+	
+	public SubpixelRefinement subpixelRefinement = SubpixelRefinement.NONE;  // if not NONE, slices are shifted by fractional amounts (with bilinear interpolation)
+	
+	public int pyramidLevels = 3;  // number of 2x downsampled levels; only relevant if engine == MatchingEngine.PYRAMID
+	public PyramidRegisterer.FinalRefinement pyramidFinalRefinement = PyramidRegisterer.FinalRefinement.EXHAUSTIVE;  // only relevant if engine == MatchingEngine.PYRAMID
+	
+	public int seaLevels = 3;  // number of successive elimination bounds (1x1, 2x2, 4x4, ... sub-blocks); only relevant if engine == MatchingEngine.SEA
+	
+	public RegistrationMode mode = RegistrationMode.PIPELINED;
+	public long pipelineBudgetBytes = Runtime.getRuntime().maxMemory() / 4;  // maximum size of the slices in flight (being loaded, registered or saved); only relevant if mode != SEQUENTIAL
+	public int numThreads = Runtime.getRuntime().availableProcessors();  // number of slices translated and saved in parallel if mode == TWO_PASS, and of chunks written in parallel if outputFormat == N5_VOLUME
+	
+	public OutputFormat outputFormat = OutputFormat.SLICE_FILES;
+	public int stackCommitInterval = 16;  // the stack file is made durable (and new pages become visible) every so many slices; only relevant if outputFormat == BIGTIFF_STACK
+	public int chunkSize = 128;  // edge length of the cubic chunks of the volume; a layer of chunkSize slices is kept in memory until it is complete. Only relevant if outputFormat == N5_VOLUME
+	public N5VolumeWriter.Compression chunkCompression = N5VolumeWriter.Compression.GZIP;  // only relevant if outputFormat == N5_VOLUME
 	
 	public RegistrationParameters(List<Path> inputFiles, Path outputFolder, Rectangle templatePatchRect, int maxShiftX, int maxShiftY, boolean sliceThicknessCorrection, double sliceThicknessNM, boolean preserveSliceOrder, Rectangle autoCropRect)
 	{
@@ -0,0 +1,282 @@
+package be.vib.imagej.registration;
+
+import java.awt.Rectangle;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntConsumer;
+
+import ij.ImagePlus;
+
+// RegistrationPipeline registers a stack of slices in three concurrent stages:
+//   reader thread:  load (and auto-crop) slices ahead of time
+//   calling thread: find the shift of each slice (this must be sequential because each search starts from the previous slice's position)
+//   writer thread:  translate the slices and save them (with a SliceWriter), in order
+// The stages are connected by queues. The total size of the slices in flight (loaded but not yet saved)
+// is limited by a ByteBudget, so large 16 bit slices cannot exhaust the heap: the reader waits
+// when the budget is used up. This way disk I/O overlaps with the shift computations.
+// With an executor (see setExecutor()) the reader and writer threads only hand out the loading and saving,
+// one slice at a time, to the executor and wait for it; they never make its threads wait for the budget.
+public class RegistrationPipeline
+{
+	private ShiftEstimator estimator;
+	private ShiftTable shiftTable;
+	private Rectangle autoCropRect;  // null means don't auto-crop
+	private SliceWriter output;
+	private ByteBudget budget;
+	private RegistrationMetrics metrics;  // null if no metrics are collected
+	private Executor executor;  // loads and saves the slices; null means the reader and writer threads do it themselves
+
+	// One slice travelling through the pipeline
+	private static class Slice
+	{
+		public int index;  // 0-based position in the list of input files
+		public Path path;
+		public ImagePlus image;
+		public long bytes;  // acquired from the budget
+		public long loadNs;
+		public long registerNs;
+		public SliceShift shift;  // null if registration failed
+		public Exception loadError;  // not null if the slice failed to load (then image is null)
+	}
+
+	private static final Slice END = new Slice();  // marks the end of a queue
+
+	private BlockingQueue<Slice> loaded = new LinkedBlockingQueue<Slice>();
+	private BlockingQueue<Slice> registered = new LinkedBlockingQueue<Slice>();
+	private volatile Exception failure = null;
+	private Thread reader;
+	private Thread writer;
+
+	public RegistrationPipeline(ShiftEstimator estimator, ShiftTable shiftTable, Rectangle autoCropRect, SliceWriter output, long budgetBytes)
+	{
+		this.estimator = estimator;
+		this.shiftTable = shiftTable;
+		this.autoCropRect = autoCropRect;
+		this.output = output;
+		this.budget = new ByteBudget(budgetBytes);
+	}
+
+	// Loads and saves the slices on the given executor (e.g. shared with other registrations, see RegistrationScheduler)
+	// instead of on the reader and writer threads.
+	public void setExecutor(Executor executor)
+	{
+		this.executor = executor;
+	}
+
+	// Records the load times and bytes read, the queue depths and the memory in flight in the given metrics.
+	// (The shift estimation is measured by the ShiftEstimator, the saving by a MeasuredSliceWriter.)
+	public void setMetrics(RegistrationMetrics metrics)
+	{
+		this.metrics = metrics;
+		metrics.setQueues(loaded::size, registered::size, budget::inUse);
+	}
+
+	// Registers the input files from firstSlice on (the earlier ones were done by a previous, interrupted run).
+	// slicesDone is called (on the writer thread) with the number of slices done so far, including the first firstSlice ones.
+	// Slices that fail to load or register are recorded in the shift table and skipped.
+	// Throws the first exception that occurred in any of the stages.
+	public void run(List<Path> inputFiles, int firstSlice, BooleanSupplier isCancelled, IntConsumer slicesDone) throws Exception
+	{
+		reader = new Thread(() -> read(inputFiles, firstSlice, isCancelled), "EM registration reader");
+		writer = new Thread(() -> write(inputFiles.size(), slicesDone), "EM registration writer");
+		reader.setDaemon(true);
+		writer.setDaemon(true);
+		reader.start();
+		writer.start();
+
+		try
+		{
+			while (true)
+			{
+				Slice slice = loaded.take();
+				if (slice == END || isCancelled.getAsBoolean() || failure != null)
+					break;
+
+				long registerStart = System.nanoTime();
+				final ImagePlus image = slice.image;
+				if (slice.loadError != null)
+					shiftTable.recordFailure(slice.index, slice.path, slice.loadError);  // slice.shift stays null, so the writer skips it
+				else
+					slice.shift = shiftTable.record(slice.index, slice.path, () -> estimator.estimate(slice.index, slice.path, image.getProcessor()));
+				slice.registerNs = System.nanoTime() - registerStart;
+
+				registered.put(slice);
+			}
+		}
+		catch (Exception e)
+		{
+			fail(e);
+		}
+		finally
+		{
+			registered.offer(END);
+			reader.interrupt();  // stop reading ahead if we stopped early (cancelled or failed)
+			reader.join();
+			writer.join();
+		}
+
+		System.out.println("Pipeline: peak " + (budget.peak() >> 20) + " MB of slices in flight");
+
+		if (failure != null)
+			throw failure;
+	}
+
+	private void read(List<Path> inputFiles, int firstSlice, BooleanSupplier isCancelled)
+	{
+		try
+		{
+			for (int index = firstSlice; index < inputFiles.size(); index++)
+			{
+				Path inputFile = inputFiles.get(index);
+				if (isCancelled.getAsBoolean() || failure != null)
+					break;
+
+				Slice slice = new Slice();
+				slice.index = index;
+				slice.path = inputFile;
+
+				// We don't know the size of the pixel data until the image is loaded,
+				// so we reserve the file size (close enough for the uncompressed TIFFs from the microscope) and correct it afterwards.
+				long estimate = 0;
+				try
+				{
+					estimate = Files.size(inputFile);
+					budget.acquire(estimate);
+					onExecutor(() -> { load(slice); return null; });
+				}
+				catch (InterruptedException e)
+				{
+					throw e;
+				}
+				catch (Exception e)
+				{
+					// Passed on to be recorded in the shift table (in order) and skipped.
+					slice.image = null;
+					slice.loadError = e;
+					budget.release(estimate);
+					loaded.put(slice);
+					continue;
+				}
+				if (metrics != null)
+				{
+					metrics.record(index, inputFile, RegistrationMetrics.Stage.LOAD, slice.loadNs);
+					metrics.addBytesRead(index, inputFile, SliceFiles.pixelBytes(slice.image));
+				}
+
+				slice.bytes = SliceFiles.pixelBytes(slice.image);
+				if (slice.bytes > estimate)
+					budget.acquireMore(estimate, slice.bytes - estimate);
+				else
+					budget.release(estimate - slice.bytes);
+
+				loaded.put(slice);
+			}
+		}
+		catch (InterruptedException e)
+		{
+			// We were asked to stop early.
+		}
+		catch (Exception e)
+		{
+			fail(e);
+		}
+		finally
+		{
+			loaded.offer(END);
+		}
+	}
+
+	private void load(Slice slice) throws Exception
+	{
+		long loadStart = System.nanoTime();
+		StageEvent loadEvent = FlightRecording.begin(RegistrationMetrics.Stage.LOAD);
+		slice.image = SliceFiles.loadImage(slice.path.toString(), autoCropRect);
+		if (slice.image.getProcessor() == null)
+			throw new RuntimeException("Failed to get ImageProcessor for image " + slice.path.toString());
+		slice.loadNs = System.nanoTime() - loadStart;
+		loadEvent.commit(slice.index, slice.path, SliceFiles.pixelBytes(slice.image));
+	}
+
+	private void write(int numSlices, IntConsumer slicesDone)
+	{
+		try
+		{
+			while (true)
+			{
+				Slice slice = registered.take();
+				if (slice == END)
+					break;
+
+				if (slice.shift == null)
+				{
+					// Registration failed, there is nothing to save.
+					output.skip(slice.index);
+					slice.image = null;
+					budget.release(slice.bytes);
+					slicesDone.accept(slice.index + 1);
+					continue;
+				}
+
+				long saveNs = onExecutor(() -> {
+					long saveStart = System.nanoTime();
+					output.write(slice.index, slice.path, slice.image, slice.shift);
+					return System.nanoTime() - saveStart;
+				});
+
+				slice.image = null;
+				budget.release(slice.bytes);
+
+				System.out.println(String.format("Image %d/%d : %s: load %d, register %d, translate+save %d (ms), %d MB in flight", slice.index + 1, numSlices, slice.path, slice.loadNs / 1000000, slice.registerNs / 1000000, saveNs / 1000000, budget.inUse() >> 20));
+
+				slicesDone.accept(slice.index + 1);
+			}
+		}
+		catch (Exception e)
+		{
+			fail(e);
+		}
+	}
+
+	// Runs the task on the executor and waits for it, or runs it on the calling thread if there is no executor.
+	private <T> T onExecutor(Callable<T> task) throws Exception
+	{
+		if (executor == null)
+			return task.call();
+
+		FutureTask<T> future = new FutureTask<T>(task);
+		executor.execute(future);
+		try
+		{
+			return future.get();
+		}
+		catch (ExecutionException e)
+		{
+			throw (e.getCause() instanceof Exception) ? (Exception)e.getCause() : e;
+		}
+		finally
+		{
+			future.cancel(true);  // if we were interrupted while waiting: don't leave the task in a shared executor
+		}
+	}
+
+	// Records the first failure and makes all stages stop.
+	private void fail(Exception e)
+	{
+		synchronized (this)
+		{
+			if (failure == null)
+				failure = e;
+		}
+		reader.interrupt();
+		loaded.offer(END);
+		registered.offer(END);
+	}
+}
@@ -0,0 +1,79 @@
+package be.vib.imagej.registration;
+
+import java.util.Locale;
+
+// A snapshot of the progress of a registration run, as passed to the progress listener of StackRegistration.run().
+// The rates are smoothed, and the ETA is based on the number of bytes still to be processed
+// (rather than the number of slices), so it is not thrown off by stacks whose slices differ in size.
+public class RegistrationProgress
+{
+	public final double percentage;        // of all the work of the run
+	public final int slicesDone;           // slices saved (or skipped), including those done by an earlier, interrupted run
+	public final int totalSlices;
+	public final long bytesDone;           // input bytes of the slices done by this run
+	public final long totalBytes;          // input bytes of all slices this run has to do
+	public final double slicesPerSecond;   // smoothed, of the whole run (in two-pass mode each pass counts for half a slice); NaN until the first slice is done
+	public final double bytesPerSecond;    // like slicesPerSecond
+	public final double etaSeconds;        // NaN if unknown
+	public final RegistrationMetrics.Stage bottleneck;  // the stage that took the most time so far, null if unknown
+	public final double[] stageSeconds;    // total time per stage so far, indexed by RegistrationMetrics.Stage.ordinal()
+
+	public RegistrationProgress(double percentage, int slicesDone, int totalSlices, long bytesDone, long totalBytes,
+	                            double slicesPerSecond, double bytesPerSecond, double etaSeconds, RegistrationMetrics.Stage bottleneck, double[] stageSeconds)
+	{
+		this.percentage = percentage;
+		this.slicesDone = slicesDone;
+		this.totalSlices = totalSlices;
+		this.bytesDone = bytesDone;
+		this.totalBytes = totalBytes;
+		this.slicesPerSecond = slicesPerSecond;
+		this.bytesPerSecond = bytesPerSecond;
+		this.etaSeconds = etaSeconds;
+		this.bottleneck = bottleneck;
+		this.stageSeconds = stageSeconds;
+	}
+
+	// E.g. "120/2000 slices, 3.1 slices/s (52.4 MB/s), ETA 10 min 2 sec, bottleneck: load"
+	@Override
+	public String toString()
+	{
+		StringBuilder s = new StringBuilder(slicesDone + "/" + totalSlices + " slices");
+		if (!Double.isNaN(slicesPerSecond))
+			s.append(String.format(Locale.ROOT, ", %.1f slices/s (%.1f MB/s)", slicesPerSecond, bytesPerSecond / 1e6));
+		if (!Double.isNaN(etaSeconds))
+			s.append(", ETA ").append(humanReadableDuration(etaSeconds));
+		if (bottleneck != null)
+			s.append(", bottleneck: ").append(bottleneck.name().toLowerCase());
+		return s.toString();
+	}
+
+	// humanReadableDuration() turns a duration in seconds into a human readable string
+	// with hours, minutes and seconds. If the duration is shorter than
+	// an hour resp. a minute, only minutes and seconds resp. only seconds
+	// are used in the string.
+	public static String humanReadableDuration(double duration)
+	{
+		long seconds = Math.round(duration);
+		long minutes = 0;
+		long hours = 0;
+
+		hours = seconds / 3600;
+		seconds -= 3600 * hours;
+
+		minutes = seconds / 60;
+		seconds -= 60 * minutes;
+
+		if (hours > 0)
+		{
+			return hours + " h " + minutes + " min " + seconds + " sec";
+		}
+		else if (minutes > 0)
+		{
+			return minutes + " min " + seconds + " sec";
+		}
+		else
+		{
+			return seconds + " sec";
+		}
+	}
+}
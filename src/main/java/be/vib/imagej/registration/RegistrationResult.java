@@ -5,9 +5,29 @@ public class RegistrationResult
 	public int posX;
 	public int posY;
 	
+	// Optional subpixel refinement of the position: the best position is (posX + subX, posY + subY).
+	// subX and subY are 0 if no subpixel refinement was done.
+	public double subX;
+	public double subY;
+	
+	// How distinct the cost minimum is: 0 for a flat cost surface, approaching 1 for a very sharp minimum.
+	// NaN if not estimated.
+	public double peakSharpness;
+	
+	// The matching cost (e.g. SAD or SSD) at (posX, posY), in the engine's own units. NaN if the engine does not report it.
+	public double cost = Double.NaN;
+	
 	public RegistrationResult(int posX, int posY)
+	{
+		this(posX, posY, 0.0, 0.0, Double.NaN);
+	}
+	
+	public RegistrationResult(int posX, int posY, double subX, double subY, double peakSharpness)
 	{
 		this.posX = posX;
 		this.posY = posY;
+		this.subX = subX;
+		this.subY = subY;
+		this.peakSharpness = peakSharpness;
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,290 @@
+package be.vib.imagej.registration;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// RegistrationScheduler registers several stacks (jobs) at the same time, so the CPU, GPU and disk stay busy
+// while one job is waiting for I/O and another one is computing.
+// Jobs wait in a queue until one of the maxConcurrentJobs job slots is free; the job with the highest priority
+// goes first, jobs with the same priority in the order in which they were submitted.
+// The loading and saving of slices of the running jobs (in pipelined and two-pass mode, see RegistrationPipeline
+// and TwoPassRegistration) is done by one shared pool of worker threads. Its tasks are handed out by job priority,
+// and round robin between jobs with the same priority, so a job with thousands of slices does not hold up the others.
+// A job in SEQUENTIAL mode does all of its work on its own job thread, so it only takes up a job slot.
+// The memory budget for slices in flight is split evenly over the job slots.
+// Note that GPU work is done on Quasar's single thread (QExecutor), so there the jobs simply take turns.
+public class RegistrationScheduler
+{
+	public enum State
+	{
+		QUEUED,
+		RUNNING,
+		DONE,
+		FAILED,
+		CANCELLED
+	}
+
+	public class Job
+	{
+		private final RegistrationParameters params;
+		private final int priority;
+		private final long sequenceNr;  // submission order
+		private volatile State state = State.QUEUED;
+		private volatile double progress = 0.0;  // percentage
+		private volatile RegistrationProgress latestProgress;  // null until the job reports progress
+		private volatile String error;  // null unless state == FAILED
+		private volatile boolean cancelRequested = false;
+		private volatile List<Path> slices;  // known once the job is running
+		private volatile long startNs;
+		private volatile long endNs;
+		private long nextRound = 0;  // round robin position of the next worker task of this job, guarded by the scheduler
+
+		private Job(RegistrationParameters params, int priority, long sequenceNr)
+		{
+			this.params = params;
+			this.priority = priority;
+			this.sequenceNr = sequenceNr;
+		}
+
+		public RegistrationParameters getParameters()
+		{
+			return params;
+		}
+
+		public int getPriority()
+		{
+			return priority;
+		}
+
+		public State getState()
+		{
+			return state;
+		}
+
+		public double getProgress()
+		{
+			return progress;
+		}
+
+		// Slices done, throughput, ETA, ... (null until the first slice is done)
+		public RegistrationProgress getLatestProgress()
+		{
+			return latestProgress;
+		}
+		
+		public String getError()
+		{
+			return error;
+		}
+
+		// The slices that the job registers (null while it is queued)
+		public List<Path> getSlices()
+		{
+			return slices;
+		}
+
+		// Time spent running, in seconds
+		public double getSeconds()
+		{
+			if (state == State.QUEUED)
+				return 0.0;
+			return ((isFinished() ? endNs : System.nanoTime()) - startNs) / 1e9;
+		}
+
+		public boolean isFinished()
+		{
+			return state == State.DONE || state == State.FAILED || state == State.CANCELLED;
+		}
+
+		// A queued job is removed from the queue, a running job stops after the slice it is working on.
+		public void cancel()
+		{
+			cancelRequested = true;
+			boolean dequeued;
+			synchronized (RegistrationScheduler.this)
+			{
+				dequeued = queue.remove(this);
+				if (dequeued)
+				{
+					state = State.CANCELLED;
+					RegistrationScheduler.this.notifyAll();
+				}
+			}
+			if (dequeued)
+				changed(this);
+		}
+
+		@Override
+		public String toString()
+		{
+			return params.outputFolder.toString();
+		}
+	}
+
+	// A task of a job, for the shared worker pool
+	private class WorkerTask implements Runnable, Comparable<WorkerTask>
+	{
+		private final Runnable runnable;
+		private final int priority;
+		private final long round;
+		private final long sequenceNr;
+
+		public WorkerTask(Runnable runnable, int priority, long round, long sequenceNr)
+		{
+			this.runnable = runnable;
+			this.priority = priority;
+			this.round = round;
+			this.sequenceNr = sequenceNr;
+		}
+
+		@Override
+		public void run()
+		{
+			started(this);
+			runnable.run();
+		}
+
+		@Override
+		public int compareTo(WorkerTask other)
+		{
+			if (priority != other.priority)
+				return Integer.compare(other.priority, priority);  // higher priority first
+			if (round != other.round)
+				return Long.compare(round, other.round);
+			return Long.compare(sequenceNr, other.sequenceNr);
+		}
+	}
+
+	private final int maxConcurrentJobs;
+	private final long budgetBytes;
+	private final Consumer<Job> listener;
+	private final ThreadPoolExecutor workers;
+
+	private final PriorityQueue<Job> queue = new PriorityQueue<Job>(Comparator.comparingInt((Job job) -> -job.priority).thenComparingLong(job -> job.sequenceNr));
+	private final List<Job> jobs = new ArrayList<Job>();
+	private int numRunning = 0;
+	private long numSubmitted = 0;
+	private long numTasks = 0;
+	private long currentRound = 0;  // round of the last worker task that was started
+
+	// listener is called (on a job thread) whenever the state or progress of a job changes; it may be null.
+	public RegistrationScheduler(int maxConcurrentJobs, int numWorkerThreads, long budgetBytes, Consumer<Job> listener)
+	{
+		this.maxConcurrentJobs = maxConcurrentJobs;
+		this.budgetBytes = budgetBytes;
+		this.listener = listener;
+		this.workers = new ThreadPoolExecutor(numWorkerThreads, numWorkerThreads, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>());
+	}
+
+	// Queues a job; jobs with a higher priority are started (and get worker threads) first.
+	public synchronized Job submit(RegistrationParameters params, int priority)
+	{
+		Job job = new Job(params, priority, numSubmitted++);
+		jobs.add(job);
+		queue.add(job);
+		startJobs();
+		return job;
+	}
+
+	public synchronized List<Job> getJobs()
+	{
+		return new ArrayList<Job>(jobs);
+	}
+
+	// Waits until all submitted jobs have finished.
+	public synchronized void awaitAll() throws InterruptedException
+	{
+		while (!queue.isEmpty() || numRunning > 0)
+			wait();
+	}
+
+	// Stops the worker threads. Call after awaitAll().
+	public void shutdown()
+	{
+		workers.shutdown();
+	}
+
+	private synchronized void startJobs()
+	{
+		while (numRunning < maxConcurrentJobs && !queue.isEmpty())
+		{
+			Job job = queue.poll();
+			job.state = State.RUNNING;
+			job.startNs = System.nanoTime();
+			numRunning++;
+
+			Thread thread = new Thread(() -> run(job), "EM registration job " + job.sequenceNr);
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	private void run(Job job)
+	{
+		changed(job);
+		State state;
+		try
+		{
+			RegistrationParameters params = job.params;
+			params.pipelineBudgetBytes = Math.min(params.pipelineBudgetBytes, budgetBytes / maxConcurrentJobs);
+
+			StackRegistration registration = new StackRegistration(params);
+			registration.setExecutor(runnable -> execute(job, runnable));
+			registration.run(() -> job.cancelRequested, progress -> {
+				job.slices = registration.getSlices();
+				job.latestProgress = progress;
+				job.progress = progress.percentage;
+				changed(job);
+			});
+			job.slices = registration.getSlices();
+			state = job.cancelRequested ? State.CANCELLED : State.DONE;
+		}
+		catch (Throwable e)
+		{
+			e.printStackTrace();
+			job.error = (e.getMessage() != null) ? e.getMessage() : e.toString();
+			state = State.FAILED;
+		}
+		job.endNs = System.nanoTime();
+		job.state = state;
+		changed(job);
+
+		synchronized (this)
+		{
+			numRunning--;
+			startJobs();
+			notifyAll();
+		}
+	}
+
+	// Queues a task of a job in the shared worker pool. A job that has been idle for a while
+	// joins in at the current round, so it does not get the workers all to itself until it has caught up.
+	private void execute(Job job, Runnable runnable)
+	{
+		WorkerTask task;
+		synchronized (this)
+		{
+			job.nextRound = Math.max(job.nextRound, currentRound);
+			task = new WorkerTask(runnable, job.priority, job.nextRound++, numTasks++);
+		}
+		workers.execute(task);
+	}
+
+	private synchronized void started(WorkerTask task)
+	{
+		currentRound = Math.max(currentRound, task.round);
+	}
+
+	private void changed(Job job)
+	{
+		if (listener != null)
+			listener.accept(job);
+	}
+}
@@ -0,0 +1,161 @@
+package be.vib.imagej.registration;
+
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+// SEARegisterer adds the successive elimination algorithm (SEA) to the spiral search with
+// partial distortion elimination of SpiralRegisterer. It only supports the sum of absolute differences.
+//
+// For any two patches, |sum(patch) - sum(candidate)| <= sum(|patch - candidate|) = SAD.
+// With a summed-area table (integral image) of the search window the sum over a candidate is
+// available in O(1), so this lower bound on the SAD lets us reject most candidates without
+// touching their pixels. Splitting the patch into 2x2, 4x4, ... sub-blocks and summing the bounds
+// of the sub-blocks gives successively tighter (but more expensive) bounds; these are tried in turn
+// before the full SAD is computed.
+//
+// A candidate is only rejected if its bound is strictly larger than the best cost so far, so the
+// result is bit-identical to the exhaustive search.
+public class SEARegisterer extends SpiralRegisterer
+{
+	private int levels;  // level k splits the patch in 2^k x 2^k sub-blocks, for k = 0 .. levels-1
+
+	// Only valid during call()
+	private long[] table;  // summed-area table of the search window, (width+1) x (height+1)
+	private int tableWidth;
+	private int[][] blockX;  // blockX[k] holds the 2^k + 1 x-coordinates (relative to the patch) of the sub-block boundaries at level k
+	private int[][] blockY;
+	private long[][] patchBlockSums;  // patchBlockSums[k][j * 2^k + i] is the sum of the reference patch pixels in sub-block (i, j) at level k
+
+	public SEARegisterer(int levels)
+	{
+		super(CostFunction.SAD);
+		if (levels < 1)
+			throw new IllegalArgumentException("SEA needs at least one level of bounds.");
+		this.levels = levels;
+	}
+
+	@Override
+	public RegistrationResult call()
+	{
+		table = summedAreaTable(image);
+		tableWidth = image.getWidth() + 1;
+
+		long[] patchTable = summedAreaTable(referencePatch);
+		final int patchTableWidth = referencePatch.getWidth() + 1;
+
+		// Sub-blocks cannot be smaller than a single pixel
+		int numLevels = 1;
+		while (numLevels < levels && (1 << numLevels) <= Math.min(referencePatch.getWidth(), referencePatch.getHeight()))
+			numLevels++;
+
+		blockX = new int[numLevels][];
+		blockY = new int[numLevels][];
+		patchBlockSums = new long[numLevels][];
+		for (int k = 0; k < numLevels; k++)
+		{
+			final int n = 1 << k;
+			blockX[k] = new int[n + 1];
+			blockY[k] = new int[n + 1];
+			for (int i = 0; i <= n; i++)
+			{
+				blockX[k][i] = i * referencePatch.getWidth() / n;
+				blockY[k][i] = i * referencePatch.getHeight() / n;
+			}
+
+			patchBlockSums[k] = new long[n * n];
+			for (int j = 0; j < n; j++)
+				for (int i = 0; i < n; i++)
+					patchBlockSums[k][j * n + i] = boxSum(patchTable, patchTableWidth, blockX[k][i], blockY[k][j], blockX[k][i + 1], blockY[k][j + 1]);
+		}
+
+		try
+		{
+			return super.call();
+		}
+		finally
+		{
+			table = null;
+		}
+	}
+
+	@Override
+	protected void consider(CostKernel kernel, int x, int y)
+	{
+		for (int k = 0; k < blockX.length; k++)
+		{
+			if (lowerBound(k, x, y) > bestCost)
+				return;  // cannot beat (or tie with) the best candidate
+		}
+		super.consider(kernel, x, y);
+	}
+
+	// Returns sum over all sub-blocks at level k of |sum(patch sub-block) - sum(candidate sub-block)|
+	// for the candidate with top-left corner (x, y). This is a lower bound for the SAD of the candidate.
+	private long lowerBound(int k, int x, int y)
+	{
+		final int n = 1 << k;
+		final int[] bx = blockX[k];
+		final int[] by = blockY[k];
+		final long[] patchSums = patchBlockSums[k];
+
+		long bound = 0;
+		for (int j = 0; j < n; j++)
+		{
+			for (int i = 0; i < n; i++)
+			{
+				long candidateSum = boxSum(table, tableWidth, x + bx[i], y + by[j], x + bx[i + 1], y + by[j + 1]);
+				bound += Math.abs(candidateSum - patchSums[j * n + i]);
+			}
+		}
+		return bound;
+	}
+
+	// Returns the sum of the pixels with x0 <= x < x1 and y0 <= y < y1, from a summed-area table.
+	private static long boxSum(long[] table, int tableWidth, int x0, int y0, int x1, int y1)
+	{
+		return table[y1 * tableWidth + x1] - table[y0 * tableWidth + x1] - table[y1 * tableWidth + x0] + table[y0 * tableWidth + x0];
+	}
+
+	// Returns the (width+1) x (height+1) summed-area table of the image:
+	// table[y * (width+1) + x] is the sum of all pixels above and to the left of (x, y), exclusive.
+	private static long[] summedAreaTable(ImageProcessor image)
+	{
+		final int width = image.getWidth();
+		final int height = image.getHeight();
+		final int tw = width + 1;
+		long[] table = new long[tw * (height + 1)];
+
+		if (image instanceof ByteProcessor)
+		{
+			byte[] pixels = (byte[])image.getPixels();
+			for (int y = 0; y < height; y++)
+			{
+				long rowSum = 0;
+				for (int x = 0; x < width; x++)
+				{
+					rowSum += pixels[y * width + x] & 0xff;
+					table[(y + 1) * tw + x + 1] = table[y * tw + x + 1] + rowSum;
+				}
+			}
+		}
+		else if (image instanceof ShortProcessor)
+		{
+			short[] pixels = (short[])image.getPixels();
+			for (int y = 0; y < height; y++)
+			{
+				long rowSum = 0;
+				for (int x = 0; x < width; x++)
+				{
+					rowSum += pixels[y * width + x] & 0xffff;
+					table[(y + 1) * tw + x + 1] = table[y * tw + x + 1] + rowSum;
+				}
+			}
+		}
+		else
+		{
+			throw new RuntimeException("Only 8 bit/pixel and 16 bit/pixel grayscale images are supported.");
+		}
+		return table;
+	}
+}
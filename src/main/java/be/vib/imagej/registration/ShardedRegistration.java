@@ -0,0 +1,226 @@
+package be.vib.imagej.registration;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+// ShardedRegistration registers a very large stack with several processes, on one or more nodes that share
+// the output folder. The stack is cut into numShards contiguous shards, and registration happens in three phases:
+//   estimate:  for every shard (one process each, all at the same time) find the shifts of its slices with respect
+//              to its own first slice, matching a reference patch cut from that slice. A shard also registers the last
+//              `overlap` slices of the previous shard. The shifts go into a (resumable) shift table in outputFolder/shards/shard-<k>.
+//   reconcile: (one process, fast) the overlapping slices have a shift in two neighbouring shards; the median of their
+//              differences is taken as the offset between the reference slices of those shards. Adding up these offsets
+//              turns the shifts of every shard into shifts with respect to the first slice of the stack.
+//              They are written to the shift table in the output folder.
+//   apply:     for every shard (one process each) translate and save its own slices with the reconciled shifts.
+// The result is an approximation of a sequential run: every shard matches its own reference patch, so its shifts
+// can differ from the ones a sequential run finds with the patch of the first slice, and every reconciled offset
+// may add an error that carries over to all later shards.
+// The final shift table is written with the parameters of a sequential run, so such a run afterwards does not
+// register the stack again; it only saves slices that are missing, with the reconciled shifts.
+// The auto-crop rectangle is the non-black region of the first slice: a NonblackRegionIndex is not built,
+// so auto-cropping to the union or intersection of the non-black regions of all slices is not supported.
+public class ShardedRegistration
+{
+	public static final String SHARDS_FOLDER = "shards";
+
+	private RegistrationParameters params;
+	private int numShards;
+	private int overlap;
+	private StackRegistration registration;
+	private List<Path> slices;
+
+	public ShardedRegistration(RegistrationParameters params, int numShards, int overlap)
+	{
+		if (params.outputFormat != OutputFormat.SLICE_FILES)
+			throw new IllegalArgumentException("Sharded registration can only save one file per slice, since several processes write the output at the same time");
+		if (params.autoCropMode != AutoCropMode.REFERENCE || params.nonblackSampleStep > 0)
+			throw new IllegalArgumentException("Sharded registration does not find the non-black regions of all slices; it can only auto-crop to the non-black region of the first slice (autoCrop=true or false, without nonblackStep)");
+
+		this.params = params;
+		this.numShards = numShards;
+		this.overlap = overlap;
+		this.registration = new StackRegistration(params);
+		this.slices = StackRegistration.getSlicesForRegistration(params);
+
+		if (slices.size() / numShards <= overlap)
+			throw new IllegalArgumentException("The shards (" + slices.size() / numShards + " slices) must be larger than their overlap (" + overlap + " slices)");
+	}
+
+	public int getNumSlices()
+	{
+		return slices.size();
+	}
+
+	// Phase 1: finds the shifts of the slices of the shard, and of the slices it overlaps with the previous shard,
+	// with respect to the first of those slices. Continues where an interrupted run for the same shard stopped.
+	public void estimate(int shard, BooleanSupplier isCancelled) throws Exception
+	{
+		List<Path> shardSlices = slices.subList(estimationStart(shard), end(shard));
+		Path folder = shardFolder(shard);
+		Files.createDirectories(folder);
+
+		System.out.println("Shard " + shard + ": registering slices " + estimationStart(shard) + " to " + (end(shard) - 1));
+		ShiftEstimator estimator = registration.createEstimator(shardSlices.get(0), params.templatePatchRect, params.maxShiftX, params.maxShiftY, params.autoCropRect);
+		ShiftTable shiftTable = ShiftTable.open(folder, describe(shard, shardSlices));
+		try
+		{
+			final int firstSlice = shiftTable.numRecorded();
+			SliceShift lastShift = shiftTable.lastShift();
+			if (lastShift != null)
+				estimator.restore(lastShift);
+
+			TwoPassRegistration twoPass = new TwoPassRegistration(estimator, shiftTable, params.autoCropRect, null, params.pipelineBudgetBytes, params.numThreads);
+			twoPass.estimateShifts(shardSlices, firstSlice, isCancelled, n -> {});
+		}
+		finally
+		{
+			estimator.dispose();
+			shiftTable.close();
+		}
+	}
+
+	// Phase 2: combines the shift tables of all shards into the shift table of the whole stack.
+	public void reconcile() throws IOException
+	{
+		List<ShiftTable.Entry> entries = new ArrayList<ShiftTable.Entry>(slices.size());
+		for (int shard = 0; shard < numShards; shard++)
+		{
+			final int start = estimationStart(shard);
+			List<Path> shardSlices = slices.subList(start, end(shard));
+			List<ShiftTable.Entry> shardEntries = ShiftTable.read(shardFolder(shard), describe(shard, shardSlices));
+			if (shardEntries.size() != shardSlices.size())
+				throw new IOException("Shard " + shard + " has not been registered completely (" + shardEntries.size() + " of " + shardSlices.size() + " slices)");
+
+			// Offset of this shard's reference slice with respect to the first slice of the stack:
+			// the median difference between the shifts of the overlapping slices in both shards.
+			double offsetX = 0.0;
+			double offsetY = 0.0;
+			if (shard > 0)
+			{
+				List<Double> dx = new ArrayList<Double>();
+				List<Double> dy = new ArrayList<Double>();
+				for (int i = start; i < begin(shard); i++)
+				{
+					SliceShift global = entries.get(i).shift;
+					SliceShift local = shardEntries.get(i - start).shift;
+					if (global != null && local != null)
+					{
+						dx.add((global.shiftX + global.subX) - (local.shiftX + local.subX));
+						dy.add((global.shiftY + global.subY) - (local.shiftY + local.subY));
+					}
+				}
+				if (dx.isEmpty())
+					throw new IOException("Shards " + (shard - 1) + " and " + shard + " cannot be reconciled: none of the slices they overlap was registered in both");
+
+				offsetX = median(dx);
+				offsetY = median(dy);
+				System.out.println(String.format("Shard %d: offset dx=%.2f dy=%.2f (from %d overlapping slices, dx %.2f..%.2f, dy %.2f..%.2f)", shard, offsetX, offsetY, dx.size(),
+				                                 Collections.min(dx), Collections.max(dx), Collections.min(dy), Collections.max(dy)));
+			}
+
+			for (int i = begin(shard); i < end(shard); i++)
+			{
+				ShiftTable.Entry local = shardEntries.get(i - start);
+				ShiftTable.Entry entry = new ShiftTable.Entry();
+				entry.slice = i;
+				entry.inputFile = local.inputFile;
+				entry.registerMs = local.registerMs;
+				entry.error = local.error;
+				entry.shift = (local.shift != null) ? offset(local.shift, offsetX, offsetY) : null;
+				entries.add(entry);
+			}
+		}
+
+		// Replace whatever shift table there was.
+		Files.deleteIfExists(params.outputFolder.resolve(ShiftTable.FILENAME));
+		ShiftTable shiftTable = ShiftTable.open(params.outputFolder, ShiftTable.describe(params, slices));
+		try
+		{
+			for (ShiftTable.Entry entry : entries)
+				shiftTable.append(entry);
+		}
+		finally
+		{
+			shiftTable.close();
+		}
+		System.out.println("Reconciled the shifts of " + numShards + " shards into " + shiftTable.getFile());
+	}
+
+	// Phase 3: translates and saves the slices of the shard (without the overlap) with the reconciled shifts.
+	// Slices that were saved already are skipped.
+	public void apply(int shard, BooleanSupplier isCancelled) throws Exception
+	{
+		List<ShiftTable.Entry> entries = ShiftTable.read(params.outputFolder, ShiftTable.describe(params, slices));
+		if (entries.size() != slices.size())
+			throw new IOException("The shifts of the shards have not been reconciled yet");
+
+		SliceWriter output = registration.createSliceWriter(params.outputFolder, slices.size(), true, null);
+		try
+		{
+			SliceShift[] shifts = new SliceShift[slices.size()];
+			for (int i = begin(shard); i < end(shard); i++)
+				if (!output.contains(i, slices.get(i)))
+					shifts[i] = entries.get(i).shift;
+
+			System.out.println("Shard " + shard + ": saving slices " + begin(shard) + " to " + (end(shard) - 1));
+			TwoPassRegistration twoPass = new TwoPassRegistration(null, null, params.autoCropRect, output, params.pipelineBudgetBytes, params.numThreads);
+			twoPass.applyShifts(slices, shifts, begin(shard), end(shard), isCancelled, n -> {});
+		}
+		finally
+		{
+			output.close();
+		}
+	}
+
+	// First slice of the shard
+	private int begin(int shard)
+	{
+		return (int)((long)shard * slices.size() / numShards);
+	}
+
+	// One past the last slice of the shard
+	private int end(int shard)
+	{
+		return begin(shard + 1);
+	}
+
+	// First slice that the shard registers
+	private int estimationStart(int shard)
+	{
+		return (shard == 0) ? 0 : begin(shard) - overlap;
+	}
+
+	private Path shardFolder(int shard)
+	{
+		return params.outputFolder.resolve(SHARDS_FOLDER).resolve("shard-" + shard);
+	}
+
+	private String describe(int shard, List<Path> shardSlices)
+	{
+		return ShiftTable.describe(params, shardSlices) + " shard=" + shard + "/" + numShards + " overlap=" + overlap;
+	}
+
+	private static SliceShift offset(SliceShift shift, double offsetX, double offsetY)
+	{
+		final double x = shift.shiftX + shift.subX + offsetX;
+		final double y = shift.shiftY + shift.subY + offsetY;
+		final int shiftX = (int)Math.round(x);
+		final int shiftY = (int)Math.round(y);
+		SliceShift result = new SliceShift(shiftX, shiftY, x - shiftX, y - shiftY, shift.peakSharpness);
+		result.cost = shift.cost;
+		return result;
+	}
+
+	private static double median(List<Double> values)
+	{
+		List<Double> sorted = new ArrayList<Double>(values);
+		Collections.sort(sorted);
+		return sorted.get(sorted.size() / 2);
+	}
+}
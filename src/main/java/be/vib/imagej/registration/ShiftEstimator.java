@@ -0,0 +1,225 @@
+package be.vib.imagej.registration;
+
+import java.awt.Rectangle;
+import java.nio.file.Path;
+
+import be.vib.bits.QExecutor;
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+// ShiftEstimator finds the shift of successive slices with respect to the first slice.
+// It searches for the reference patch in a window of +/- maxShiftX by maxShiftY pixels around the
+// position where the patch was found in the previous slice, so slices must be passed in stack order.
+// This chaining is inherently sequential; everything else (loading, translating, saving slices)
+// can happen concurrently.
+public class ShiftEstimator
+{
+	private RegistrationEngine registerer;
+	private String engineName;  // for the flight recorder events
+	private ImageProcessor referencePatch;
+	private int maxShiftX;
+	private int maxShiftY;
+	
+	// Coordinates of the top-left corner of the reference patch in the first slice
+	private final int initialX;
+	private final int initialY;
+	
+	// Most recent position of the best matching patch,
+	// we use its position as an estimate for the location of the patch in the next image.
+	private int prevX;
+	private int prevY;
+	
+	private RegistrationMetrics metrics;  // null if no metrics are collected
+	
+	private NonblackRegionIndex nonblackRegions;  // null if the whole search window is searched
+	private int autoCropX;  // top-left corner of the auto-crop rectangle, to convert the non-black regions to image coordinates
+	private int autoCropY;
+	
+	public ShiftEstimator(RegistrationEngine registerer, String engineName, ImageProcessor referencePatch, int initialX, int initialY, int maxShiftX, int maxShiftY)
+	{
+		this.registerer = registerer;
+		this.engineName = engineName;
+		this.referencePatch = referencePatch;
+		this.initialX = initialX;
+		this.initialY = initialY;
+		this.maxShiftX = maxShiftX;
+		this.maxShiftY = maxShiftY;
+		this.prevX = initialX;
+		this.prevY = initialY;
+	}
+	
+	// Records the crop and match times and the number of candidate positions of every slice in the given metrics.
+	public void setMetrics(RegistrationMetrics metrics)
+	{
+		this.metrics = metrics;
+	}
+	
+	// Skips the candidate positions where the reference patch would cover part of the black border of a slice,
+	// according to the given index. autoCropRect (in original image coordinates) is null if the slices are not auto-cropped.
+	public void setNonblackRegions(NonblackRegionIndex nonblackRegions, Rectangle autoCropRect)
+	{
+		this.nonblackRegions = nonblackRegions;
+		this.autoCropX = (autoCropRect != null) ? autoCropRect.x : 0;
+		this.autoCropY = (autoCropRect != null) ? autoCropRect.y : 0;
+	}
+	
+	// Returns the shift of the given slice (with index sliceIndex in the stack) with respect to the first slice,
+	// and remembers where the patch was found.
+	public SliceShift estimate(int sliceIndex, Path inputFile, ImageProcessor image) throws Exception
+	{
+		long start = System.nanoTime();
+		StageEvent cropEvent = FlightRecording.begin(RegistrationMetrics.Stage.CROP);
+		Rectangle cropRect = searchWindow(sliceIndex, image.getWidth(), image.getHeight());
+		
+		Rectangle origRoi = image.getRoi();
+		image.setRoi(cropRect);
+		ImageProcessor croppedImage = image.crop();
+		image.setRoi(origRoi);
+		cropEvent.commit(sliceIndex, inputFile, bytes(croppedImage));
+		if (metrics != null)
+			metrics.record(sliceIndex, inputFile, RegistrationMetrics.Stage.CROP, System.nanoTime() - start);
+		
+		return estimate(sliceIndex, inputFile, croppedImage, cropRect);
+	}
+	
+	// Same as estimate(int, Path, ImageProcessor), but only reads the search window from the slice file if it is a TIFF
+	// that allows this (see TiffRegionReader). The file is only decoded completely if it does not.
+	// autoCropRect (in original image coordinates) is null if the slices are not auto-cropped.
+	// Reading the search window counts as loading the slice.
+	public SliceShift estimate(int sliceIndex, Path file, Rectangle autoCropRect) throws Exception
+	{
+		long start = System.nanoTime();
+		StageEvent loadEvent = FlightRecording.begin(RegistrationMetrics.Stage.LOAD);
+		try (TiffRegionReader tiff = TiffRegionReader.open(file))
+		{
+			if (tiff == null)
+			{
+				ImagePlus image = SliceFiles.loadImage(file.toString(), autoCropRect);
+				loadEvent.commit(sliceIndex, file, SliceFiles.pixelBytes(image));
+				if (metrics != null)
+				{
+					metrics.record(sliceIndex, file, RegistrationMetrics.Stage.LOAD, System.nanoTime() - start);
+					metrics.addBytesRead(sliceIndex, file, SliceFiles.pixelBytes(image));
+				}
+				return estimate(sliceIndex, file, image.getProcessor());
+			}
+			
+			// The (auto-cropped) image as we would have loaded it, in original image coordinates
+			Rectangle imageRect = new Rectangle(0, 0, tiff.getWidth(), tiff.getHeight());
+			if (autoCropRect != null)
+				imageRect = imageRect.intersection(autoCropRect);
+			
+			Rectangle cropRect = searchWindow(sliceIndex, imageRect.width, imageRect.height);
+			Rectangle fileRect = new Rectangle(cropRect.x + imageRect.x, cropRect.y + imageRect.y, cropRect.width, cropRect.height);
+			
+			ImageProcessor searchWindow = tiff.readRegion(fileRect);
+			loadEvent.commit(sliceIndex, file, bytes(searchWindow));
+			if (metrics != null)
+			{
+				metrics.record(sliceIndex, file, RegistrationMetrics.Stage.LOAD, System.nanoTime() - start);
+				metrics.addBytesRead(sliceIndex, file, bytes(searchWindow));
+			}
+			return estimate(sliceIndex, file, searchWindow, cropRect);
+		}
+	}
+	
+	// Returns the region of a (possibly auto-cropped) slice of the given size where we will look for the patch:
+	// the patch position in the previous slice, extended by the maximum shift.
+	public Rectangle searchWindow(int imageWidth, int imageHeight)
+	{
+		// Find coordinates (with respect to the full image) of the region where we will look for the patch.
+		// So this rectangular crop of the image needs to be sent to the registration engine.
+		int cropTopLeftX = Math.max(0, prevX - maxShiftX);
+		int cropTopLeftY = Math.max(0, prevY - maxShiftY);
+		int cropBottomRightX = Math.min(prevX + maxShiftX + referencePatch.getWidth(), imageWidth -  1);
+		int cropBottomRightY = Math.min(prevY + maxShiftY + referencePatch.getHeight(), imageHeight - 1);
+		
+		return new Rectangle(cropTopLeftX, cropTopLeftY, cropBottomRightX - cropTopLeftX, cropBottomRightY - cropTopLeftY);
+	}
+	
+	// Returns the search window of the given slice: searchWindow(), without the part of the slice's black border
+	// (see setNonblackRegions()) where the reference patch cannot lie entirely, so fewer candidate positions are tried
+	// and less of the slice is read. If the patch does not fit in the non-black part of the window, the whole window is searched.
+	private Rectangle searchWindow(int sliceIndex, int imageWidth, int imageHeight)
+	{
+		Rectangle window = searchWindow(imageWidth, imageHeight);
+		if (nonblackRegions == null)
+			return window;
+		
+		Rectangle nonblack = nonblackRegions.regionOf(sliceIndex);
+		nonblack.translate(-autoCropX, -autoCropY);  // to (auto-cropped) image coordinates
+		Rectangle clipped = window.intersection(nonblack);
+		if (clipped.width < referencePatch.getWidth() || clipped.height < referencePatch.getHeight())
+			return window;
+		return clipped;
+	}
+	
+	// Finds the patch in croppedImage, which is the region cropRect (as returned by searchWindow()) of the slice.
+	private SliceShift estimate(int sliceIndex, Path inputFile, ImageProcessor croppedImage, Rectangle cropRect) throws Exception
+	{
+		int cropTopLeftX = cropRect.x;
+		int cropTopLeftY = cropRect.y;
+		int cropBottomRightX = cropRect.x + cropRect.width;
+		int cropBottomRightY = cropRect.y + cropRect.height;
+		
+  		//IJ.save(new ImagePlus("to register", croppedImage), "e:\\emreg_toregister"+sliceNr+".png");
+		
+		// Calculate the shift required to register this slice to the previous one.
+	    final int xmax = (cropBottomRightX - cropTopLeftX) - referencePatch.getWidth();
+	    final int ymax = (cropBottomRightY - cropTopLeftY) - referencePatch.getHeight();
+	    registerer.setParameters(croppedImage, referencePatch, 0, xmax, 0, ymax);
+	    registerer.setPredictedPosition(prevX - cropTopLeftX, prevY - cropTopLeftY);  // the patch is expected close to where it was in the previous slice
+
+	    final long numCandidates = (long)(Math.max(0, xmax) + 1) * (Math.max(0, ymax) + 1);
+	    long matchStart = System.nanoTime();
+	    StageEvent matchEvent = FlightRecording.begin(RegistrationMetrics.Stage.MATCH);
+	    RegistrationResult result;
+	    if (registerer.runsOnQuasarThread())
+	    	result = QExecutor.getInstance().submit(registerer).get(); // TODO: check what happens to quasar::exception_t if thrown from C++ during the registration task.
+	    else
+	    	result = registerer.call();
+	    matchEvent.setSearch(croppedImage.getWidth(), croppedImage.getHeight(), numCandidates, engineName);
+	    matchEvent.commit(sliceIndex, inputFile, bytes(croppedImage));
+	    if (metrics != null)
+	    {
+	    	metrics.record(sliceIndex, inputFile, RegistrationMetrics.Stage.MATCH, System.nanoTime() - matchStart);
+	    	metrics.addCandidates(sliceIndex, inputFile, numCandidates);
+	    }
+		
+		// Convert coordinates returned from the engine (which are of the reference patch with respect to the cropped image)
+		// to coordinates in the full original image.  (CHECKME: is comment correct if autoCropRect != null ?)
+		int bestPosX = cropTopLeftX + result.posX;
+		int bestPosY = cropTopLeftY + result.posY;
+		
+		SliceShift shift = new SliceShift(bestPosX - initialX, bestPosY - initialY, result.subX, result.subY, result.peakSharpness);
+		shift.cost = result.cost;
+		System.out.println("Shift: " + shift + " compared to first slice; dx=" + (bestPosX - prevX) +" dy=" + (bestPosY - prevY) + " compared to previous slice");
+		
+		prevX = bestPosX;
+		prevY = bestPosY;
+		
+		return shift;
+	}
+	
+	// Continues from a slice whose shift was found earlier (e.g. by an interrupted run):
+	// the next slice will be searched around the position the patch had in that slice.
+	public void restore(SliceShift shift)
+	{
+		prevX = initialX + shift.shiftX;
+		prevY = initialY + shift.shiftY;
+	}
+	
+	private static long bytes(ImageProcessor image)
+	{
+		return (long)image.getPixelCount() * ((image.getBitDepth() + 7) / 8);
+	}
+	
+	// Releases what the registration engine kept between slices. Call it when all slices are done.
+	public void dispose() throws Exception
+	{
+	    if (registerer.runsOnQuasarThread())
+	    	QExecutor.getInstance().submit(() -> { registerer.dispose(); return null; }).get();
+	    else
+	    	registerer.dispose();
+	}
+}
@@ -0,0 +1,239 @@
+package be.vib.imagej.registration;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+// ShiftTable is the on-disk record of a registration run: one tab-separated line per slice,
+// appended to a file in the output folder as soon as the shift of the slice is known.
+// If a run is interrupted (crash, cancel, ...) a new run with the same parameters reads the table back
+// and continues after the last recorded slice instead of starting all over again.
+// Slices whose registration failed are recorded as such, and skipped (no output is written for them).
+public class ShiftTable
+{
+	public static final String FILENAME = "shifts.tsv";
+
+	private static final String HEADER = "# slice\tstatus\tshiftX\tshiftY\tsubX\tsubY\tpeakSharpness\tcost\tregisterMs\tinputFile\terror";
+	private static final String OK = "OK";
+	private static final String FAILED = "FAILED";
+
+	public static class Entry
+	{
+		public int slice;
+		public Path inputFile;
+		public SliceShift shift;  // null if registration of the slice failed
+		public long registerMs;
+		public String error;      // null if registration succeeded
+	}
+
+	private final Path file;
+	private final List<Entry> entries = new ArrayList<Entry>();  // entries.get(i).slice == i
+	private BufferedWriter writer;
+
+	// Opens the shift table in the given output folder. If it was written by a run with the same parameters
+	// (as described by parametersDescription), its entries are kept so the run can be resumed,
+	// otherwise it is replaced by an empty table.
+	public static ShiftTable open(Path outputFolder, String parametersDescription) throws IOException
+	{
+		ShiftTable table = new ShiftTable(outputFolder.resolve(FILENAME));
+
+		table.entries.addAll(read(outputFolder, parametersDescription));
+
+		// Rewrite the table with only the valid entries (dropping e.g. a half-written last line), then keep appending to it.
+		Path tempFile = table.file.resolveSibling(FILENAME + ".part");
+		try (BufferedWriter out = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8))
+		{
+			out.write("# parameters: " + parametersDescription);
+			out.newLine();
+			out.write(HEADER);
+			out.newLine();
+			for (Entry entry : table.entries)
+			{
+				out.write(format(entry));
+				out.newLine();
+			}
+		}
+		Files.move(tempFile, table.file, StandardCopyOption.REPLACE_EXISTING);
+
+		table.writer = Files.newBufferedWriter(table.file, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+		return table;
+	}
+
+	// Returns the entries of the shift table in the given folder without opening it for writing, so several processes
+	// can read it at the same time. The result is empty if there is no table written with the same parameters.
+	public static List<Entry> read(Path outputFolder, String parametersDescription) throws IOException
+	{
+		ShiftTable table = new ShiftTable(outputFolder.resolve(FILENAME));
+		if (Files.exists(table.file))
+		{
+			List<String> lines = Files.readAllLines(table.file, StandardCharsets.UTF_8);
+			if (lines.size() >= 2 && lines.get(0).equals("# parameters: " + parametersDescription))
+				table.parseEntries(lines.subList(2, lines.size()));
+		}
+		return table.entries;
+	}
+
+	// Returns a description of the parameters that determine the shifts, for recognizing a table from the same run.
+	public static String describe(RegistrationParameters params, List<Path> slices)
+	{
+		return String.format("engine=%s subpixel=%s patch=%d,%d,%d,%d maxShift=%d,%d autoCrop=%s pyramid=%d,%s sea=%d slices=%d,%08x",
+				params.engine.name(), params.subpixelRefinement.name(),
+				params.templatePatchRect.x, params.templatePatchRect.y, params.templatePatchRect.width, params.templatePatchRect.height,
+				params.maxShiftX, params.maxShiftY,
+				params.autoCropRect == null ? "none" : params.autoCropRect.x + "," + params.autoCropRect.y + "," + params.autoCropRect.width + "," + params.autoCropRect.height,
+				params.pyramidLevels, params.pyramidFinalRefinement.name(), params.seaLevels,
+				slices.size(), slices.hashCode())
+			+ (params.nonblackSampleStep > 0 ? " nonblack=" + params.nonblackSampleStep + "," + params.autoCropMode.name() : "");
+	}
+
+	private ShiftTable(Path file)
+	{
+		this.file = file;
+	}
+
+	public Path getFile()
+	{
+		return file;
+	}
+
+	// Returns the number of slices recorded so far (slices 0 up to numRecorded()-1).
+	public synchronized int numRecorded()
+	{
+		return entries.size();
+	}
+
+	public synchronized Entry get(int slice)
+	{
+		return entries.get(slice);
+	}
+
+	// Returns the shift of the last slice that was registered successfully, or null if there is none.
+	public synchronized SliceShift lastShift()
+	{
+		for (int i = entries.size() - 1; i >= 0; i--)
+			if (entries.get(i).shift != null)
+				return entries.get(i).shift;
+		return null;
+	}
+
+	// Runs the given shift estimation for a slice and records its outcome.
+	// Slices must be recorded in order. If the estimation fails, the failure is recorded and null is returned,
+	// so the caller can skip the slice and continue with the next one.
+	public SliceShift record(int slice, Path inputFile, Callable<SliceShift> estimation) throws IOException, InterruptedException
+	{
+		Entry entry = new Entry();
+		entry.slice = slice;
+		entry.inputFile = inputFile;
+
+		long start = System.nanoTime();
+		try
+		{
+			entry.shift = estimation.call();
+		}
+		catch (InterruptedException e)
+		{
+			throw e;
+		}
+		catch (Exception e)
+		{
+			entry.error = failed(slice, inputFile, e);
+		}
+		entry.registerMs = (System.nanoTime() - start) / 1000000;
+
+		append(entry);
+		return entry.shift;
+	}
+
+	// Records that a slice could not be registered for another reason than a failed estimation (e.g. it failed to load),
+	// so the caller can skip it. Slices must be recorded in order.
+	public void recordFailure(int slice, Path inputFile, Exception e) throws IOException
+	{
+		Entry entry = new Entry();
+		entry.slice = slice;
+		entry.inputFile = inputFile;
+		entry.error = failed(slice, inputFile, e);
+		append(entry);
+	}
+
+	// Logs the failure of a slice and returns the error message to record.
+	private static String failed(int slice, Path inputFile, Exception e)
+	{
+		String error = (e.getMessage() != null) ? e.getMessage() : e.toString();
+		System.err.println("Registration of slice " + (slice + 1) + " (" + inputFile + ") failed, skipping it: " + e.getClass().getSimpleName() + ": " + error);
+		return error;
+	}
+
+	public synchronized void close() throws IOException
+	{
+		writer.close();
+	}
+
+	// Records an entry that is known already (e.g. copied from another table). Entries must be appended in slice order.
+	public synchronized void append(Entry entry) throws IOException
+	{
+		if (entry.slice != entries.size())
+			throw new IllegalStateException("Slice " + entry.slice + " recorded out of order; expected slice " + entries.size());
+
+		writer.write(format(entry));
+		writer.newLine();
+		writer.flush();
+		entries.add(entry);
+	}
+
+	private static String format(Entry entry)
+	{
+		SliceShift s = entry.shift;
+		if (s != null)
+			return String.join("\t", Integer.toString(entry.slice), OK, Integer.toString(s.shiftX), Integer.toString(s.shiftY), Double.toString(s.subX), Double.toString(s.subY), Double.toString(s.peakSharpness), Double.toString(s.cost), Long.toString(entry.registerMs), entry.inputFile.toString(), "");
+		else
+			return String.join("\t", Integer.toString(entry.slice), FAILED, "", "", "", "", "", "", Long.toString(entry.registerMs), entry.inputFile.toString(), entry.error.replaceAll("\\s+", " "));
+	}
+
+	// Parses the entry lines, stopping at the first line that is not the entry for the next slice.
+	private void parseEntries(List<String> lines)
+	{
+		for (String line : lines)
+		{
+			String[] fields = line.split("\t", -1);
+			if (fields.length != 11)
+				break;
+
+			try
+			{
+				Entry entry = new Entry();
+				entry.slice = Integer.parseInt(fields[0]);
+				entry.registerMs = Long.parseLong(fields[8]);
+				entry.inputFile = Paths.get(fields[9]);
+				if (fields[1].equals(OK))
+				{
+					entry.shift = new SliceShift(Integer.parseInt(fields[2]), Integer.parseInt(fields[3]), Double.parseDouble(fields[4]), Double.parseDouble(fields[5]), Double.parseDouble(fields[6]));
+					entry.shift.cost = Double.parseDouble(fields[7]);
+				}
+				else if (fields[1].equals(FAILED))
+				{
+					entry.error = fields[10];
+				}
+				else
+				{
+					break;
+				}
+
+				if (entry.slice != entries.size())
+					break;
+				entries.add(entry);
+			}
+			catch (NumberFormatException e)
+			{
+				break;
+			}
+		}
+	}
+}
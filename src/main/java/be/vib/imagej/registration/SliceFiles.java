@@ -0,0 +1,114 @@
+package be.vib.imagej.registration;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+import ij.ImagePlus;
+import ij.io.FileSaver;
+import ij.io.Opener;
+import ij.process.ImageProcessor;
+
+// Loading, cropping and saving of the individual slices of a stack.
+public class SliceFiles
+{
+	public static ImagePlus loadImage(String filename, Rectangle cropRect) throws Exception
+	// if cropRect is non-null the image gets cropped to it after loading,
+	// if cropRect is null the loaded image is returned as-is.
+	// (should never return null)
+	{
+		Opener opener = new Opener();
+		ImagePlus imagePlus = opener.openImage(filename);
+		if (imagePlus == null)
+		{
+			throw new RuntimeException("Failed to load image " + filename);
+		}
+		
+		if (cropRect == null)
+		{
+			return imagePlus;
+		}
+		else
+		{
+			imagePlus.setRoi(cropRect);
+			return imagePlus.crop();
+		}
+	}
+	
+	// Saves the image as a TIFF file. The file is written under a temporary name first and then renamed,
+	// so if path exists it is complete (which is what resuming an interrupted run relies on).
+	public static void saveImage(ImagePlus imagePlus, Path path) throws IOException
+	{
+		Path tempPath = path.resolveSibling(path.getFileName() + ".part");
+		FileSaver saver = new FileSaver(imagePlus);
+		if (!saver.saveAsTiff(tempPath.toString()))
+			throw new RuntimeException("Failed to save image " + path);
+		Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING);
+	}
+	
+	// Translates the image by minus the given shift and saves it as a TIFF file.
+	// Integer shifts are applied while writing the file (see TranslatedTiffWriter), subpixel shifts
+	// need resampling and are done by ImageJ. Note that in the latter case imagePlus itself is translated too.
+	public static void saveTranslated(ImagePlus imagePlus, SliceShift shift, Path path) throws IOException
+	{
+		if (!shift.isSubpixel() && TranslatedTiffWriter.canWrite(imagePlus))
+		{
+			TranslatedTiffWriter.write(imagePlus, shift.shiftX, shift.shiftY, path);
+		}
+		else
+		{
+			shift.apply(imagePlus.getProcessor());
+			saveImage(imagePlus, path);
+		}
+	}
+	
+	// Returns a copy of the given image cropped to a rectangular region of interest.
+	public static ImageProcessor cropImage(ImagePlus imagePlus, Rectangle rect)
+	{
+		ImageProcessor imp = imagePlus.getProcessor();
+		Rectangle origRoi = imp.getRoi();
+		
+		imp.setRoi(rect);
+		ImageProcessor crop = imp.crop();
+		imp.setRoi(origRoi);
+		
+		return crop;
+	}
+	
+	// Returns the number of bytes in the pixel data of the given image.
+	public static long pixelBytes(ImagePlus imagePlus)
+	{
+		return (long)imagePlus.getWidth() * imagePlus.getHeight() * ((imagePlus.getBitDepth() + 7) / 8);
+	}
+	
+	// Returns an output file path like this:
+	// desired output folder + slice nr + original filename (without extension) + _registered + original extension (if any)
+	// IMPROVEME:
+	// If we corrected for thickness, we probably want an indication of the sampled z and the closest original z (but we don't have that information available here)
+	// (for now we added a counter prefix so that (1) if we correct for slice thickness and use the same input file multiple times, at least we get unique filenames;
+	// and (2) if we re-order input files (because the input z's are not monotonically increasing, the registered output files reflect that different order!)
+	// but this issue needs some more thought)
+	public static Path suggestOutputFilename(int sliceNr, Path inputFilePath, Path outputFolder)
+	{
+		String prefix = String.format("%05d", sliceNr) + "_";
+		String suffix = "_registered";	
+		String filename = inputFilePath.getName(inputFilePath.getNameCount() - 1).toString(); // filename part only (including extension, if any)
+		
+	    int dotIndex = filename.toString().lastIndexOf('.');
+	    if (dotIndex == -1)
+	    {
+	    	// Original file has no extension, just append the suffix.
+	    	return Paths.get(outputFolder.toString(), prefix + filename + suffix);
+	    }
+	    else
+	    {
+	    	// Original file has an extension, insert the suffix just before the extension in the original filename
+	    	String filenameWithoutExtension = filename.substring(0, dotIndex);
+	    	String extension = filename.substring(dotIndex);
+	    	return Paths.get(outputFolder.toString(), prefix + filenameWithoutExtension + suffix + extension);
+	    }
+	}
+}
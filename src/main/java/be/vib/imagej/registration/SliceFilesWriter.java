@@ -0,0 +1,41 @@
+package be.vib.imagej.registration;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import ij.ImagePlus;
+
+// Writes every registered slice to its own TIFF file in the output folder (see SliceFiles.suggestOutputFilename()).
+public class SliceFilesWriter implements SliceWriter
+{
+	private Path outputFolder;
+	
+	public SliceFilesWriter(Path outputFolder)
+	{
+		this.outputFolder = outputFolder;
+	}
+	
+	@Override
+	public void write(int slice, Path inputFile, ImagePlus image, SliceShift shift) throws IOException
+	{
+		SliceFiles.saveTranslated(image, shift, SliceFiles.suggestOutputFilename(slice, inputFile, outputFolder));
+	}
+	
+	@Override
+	public void skip(int slice)
+	{
+	}
+	
+	@Override
+	public boolean contains(int slice, Path inputFile)
+	{
+		// Output files are written under a temporary name and renamed when complete, so if it exists it is complete.
+		return Files.exists(SliceFiles.suggestOutputFilename(slice, inputFile, outputFolder));
+	}
+	
+	@Override
+	public void close()
+	{
+	}
+}
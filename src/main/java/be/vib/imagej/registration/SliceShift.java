@@ -0,0 +1,54 @@
+package be.vib.imagej.registration;
+
+import ij.process.ImageProcessor;
+
+// The shift that registers a slice to the first slice of the stack.
+// (shiftX + subX, shiftY + subY) is where the reference patch was found, relative to its position in the first slice;
+// the slice needs to be translated by minus that amount.
+public class SliceShift
+{
+	public int shiftX;
+	public int shiftY;
+	public double subX;  // subpixel part of the shift, 0 if no subpixel refinement was done
+	public double subY;
+	public double peakSharpness;  // NaN if unknown
+	public double cost = Double.NaN;  // matching cost at the best position, NaN if unknown
+	
+	public SliceShift(int shiftX, int shiftY, double subX, double subY, double peakSharpness)
+	{
+		this.shiftX = shiftX;
+		this.shiftY = shiftY;
+		this.subX = subX;
+		this.subY = subY;
+		this.peakSharpness = peakSharpness;
+	}
+	
+	public boolean isSubpixel()
+	{
+		return subX != 0.0 || subY != 0.0;
+	}
+	
+	// Translates the image in place to register it.
+	public void apply(ImageProcessor image)
+	{
+		if (isSubpixel())
+		{
+			// Subpixel shift, the image gets resampled.
+			image.setInterpolationMethod(ImageProcessor.BILINEAR);
+			image.translate(-(shiftX + subX), -(shiftY + subY));
+		}
+		else
+		{
+			image.translate(-shiftX, -shiftY);
+		}
+	}
+	
+	@Override
+	public String toString()
+	{
+		if (isSubpixel())
+			return String.format("dx=%.2f dy=%.2f", shiftX + subX, shiftY + subY);
+		else
+			return "dx=" + shiftX + " dy=" + shiftY;
+	}
+}
@@ -0,0 +1,27 @@
+package be.vib.imagej.registration;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import ij.ImagePlus;
+
+// A SliceWriter stores the registered slices of a run, e.g. as one file per slice or as a single stack file.
+// Slices are identified by their index in the list of slices being registered.
+// write() and skip() may be called from several threads at the same time, and in any order.
+public interface SliceWriter
+{
+	// Translates the slice by minus the shift and stores it.
+	// The image may be modified.
+	public void write(int slice, Path inputFile, ImagePlus image, SliceShift shift) throws IOException;
+	
+	// Tells the writer that there will be no output for the slice (because its registration failed).
+	// Has no effect if the slice was written or skipped already.
+	public void skip(int slice) throws IOException;
+	
+	// Returns true if the output of the slice was stored completely by an earlier (interrupted) run,
+	// so it does not need to be written again when the run is resumed.
+	public boolean contains(int slice, Path inputFile) throws IOException;
+	
+	// Finishes the output. No slices can be written afterwards.
+	public void close() throws IOException;
+}
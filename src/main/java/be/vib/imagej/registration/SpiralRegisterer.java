@@ -0,0 +1,124 @@
+package be.vib.imagej.registration;
+
+import ij.process.ImageProcessor;
+
+// SpiralRegisterer finds the same best position as an exhaustive search, but usually much faster.
+// It visits the candidates in a square spiral around the predicted position (typically the
+// position of the reference patch in the previous slice), and uses partial distortion elimination:
+// the cost of a candidate is accumulated row by row, and the candidate is abandoned as soon as its
+// partial cost exceeds the best cost found so far. Since the drift between consecutive EM slices is
+// usually only a few pixels, a very good candidate is found early on, and most other candidates
+// are rejected after only a handful of rows.
+//
+// The result is identical to the exhaustive search (including the tie-breaking of the Quasar code:
+// for equal costs the candidate with smallest y, then smallest x wins), because a candidate is only
+// rejected if its cost is strictly larger than the best cost.
+public class SpiralRegisterer implements RegistrationEngine
+{
+	protected ImageProcessor referencePatch;
+	protected ImageProcessor image;
+	private int xmin;
+	private int ymin;
+	private int xmax;
+	private int ymax;
+	private int predictedX;
+	private int predictedY;
+
+	private CostFunction costFunction;
+
+	public SpiralRegisterer(CostFunction costFunction)
+	{
+		this.costFunction = costFunction;
+		this.xmin = this.ymin = this.xmax = this.ymax = 0;
+	}
+
+	@Override
+	public void setParameters(ImageProcessor image, ImageProcessor referencePatch, int xmin, int xmax, int ymin, int ymax)
+	{
+		this.image = image;
+		this.referencePatch = referencePatch;
+		this.xmin = xmin;
+		this.ymin = ymin;
+		this.xmax = xmax;
+		this.ymax = ymax;
+
+		// Without a prediction we start in the middle of the search range.
+		this.predictedX = (xmin + xmax) / 2;
+		this.predictedY = (ymin + ymax) / 2;
+	}
+
+	@Override
+	public void setPredictedPosition(int x, int y)
+	{
+		this.predictedX = Math.max(xmin, Math.min(xmax, x));
+		this.predictedY = Math.max(ymin, Math.min(ymax, y));
+	}
+
+	@Override
+	public boolean runsOnQuasarThread()
+	{
+		return false;
+	}
+
+	@Override
+	public RegistrationResult call()
+	{
+		if (xmin > xmax || ymin > ymax)
+			throw new IllegalArgumentException("The search window is too small to contain the reference patch.");
+
+		if (xmax + referencePatch.getWidth() > image.getWidth() || ymax + referencePatch.getHeight() > image.getHeight() || xmin < 0 || ymin < 0)
+			throw new IllegalArgumentException("The search range for the reference patch extends beyond the image.");
+
+		CostKernel kernel = CostKernels.create(costFunction, image, referencePatch);
+
+		bestX = predictedX;
+		bestY = predictedY;
+		bestCost = kernel.cost(predictedX, predictedY);
+
+		// Visit square rings at increasing distance (in the maximum norm) around the prediction,
+		// until the rings no longer intersect the search range.
+		final int maxRadius = Math.max(Math.max(predictedX - xmin, xmax - predictedX), Math.max(predictedY - ymin, ymax - predictedY));
+		for (int r = 1; r <= maxRadius; r++)
+		{
+			final int left = predictedX - r;
+			final int right = predictedX + r;
+			final int top = predictedY - r;
+			final int bottom = predictedY + r;
+
+			// Top and bottom edges of the ring (including the corners)
+			for (int x = Math.max(left, xmin); x <= Math.min(right, xmax); x++)
+			{
+				if (top >= ymin) consider(kernel, x, top);
+				if (bottom <= ymax) consider(kernel, x, bottom);
+			}
+
+			// Left and right edges of the ring (excluding the corners)
+			for (int y = Math.max(top + 1, ymin); y <= Math.min(bottom - 1, ymax); y++)
+			{
+				if (left >= xmin) consider(kernel, left, y);
+				if (right <= xmax) consider(kernel, right, y);
+			}
+		}
+
+		RegistrationResult result = new RegistrationResult(bestX, bestY);
+		result.cost = bestCost;
+		return result;
+	}
+
+	// Best candidate found so far during call()
+	protected int bestX;
+	protected int bestY;
+	protected long bestCost;
+
+	// Evaluates the candidate at (x, y) and makes it the best candidate if it is better.
+	protected void consider(CostKernel kernel, int x, int y)
+	{
+		long cost = kernel.cost(x, y, bestCost);
+		if (cost < bestCost || (cost == bestCost && (y < bestY || (y == bestY && x < bestX))))
+		{
+			bestCost = cost;
+			bestX = x;
+			bestY = y;
+		}
+	}
+}
@@ -0,0 +1,353 @@
+package be.vib.imagej.registration;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+import ij.ImagePlus;
+
+// An end-to-end benchmark: it writes a synthetic FIB-SEM stack (see SyntheticStack) to local disk,
+// registers it like RegistrationBatch would (auto-crop, slice thickness correction, registration, saving),
+// and reports the throughput of every stage, the peak heap usage and the total wall time. The load, crop, match,
+// translate and save times are those of the RegistrationMetrics of the run, summed over the threads that do them;
+// in the parallel modes their sum can be larger than the wall time.
+// It also checks the shifts that were found against the planted ones.
+// The results are written as JSON (by default to benchmark.json in the benchmark folder), so that runs
+// of different versions, or on different hardware, can be compared. Parameters are key=value arguments, e.g.
+//   java -cp build\classes be.vib.imagej.registration.StackBenchmark folder=D:\bench slices=500 width=4096 height=4096 bitDepth=16 engine=SEA mode=TWO_PASS
+// Run it via stack.bat (after building the classes); it exits with status 1 if slices were registered with a wrong shift.
+public class StackBenchmark
+{
+	private static final String[] keys = { "folder", "json", "width", "height", "slices", "bitDepth", "border", "driftStep", "sliceThickness", "sliceThicknessCorrection",
+	                                       "seed", "patch", "maxShift", "engine", "subpixel", "mode", "threads", "format" };
+
+	public static void main(String[] args)
+	{
+		try
+		{
+			Properties properties = new Properties();
+			for (String arg : args)
+			{
+				int equals = arg.indexOf('=');
+				if (equals <= 0)
+					throw new IllegalArgumentException("Expected key=value instead of '" + arg + "'");
+				properties.setProperty(arg.substring(0, equals), arg.substring(equals + 1));
+			}
+			for (String key : properties.stringPropertyNames())
+				if (!Arrays.asList(keys).contains(key))
+					throw new IllegalArgumentException("Unknown parameter '" + key + "', expected one of " + String.join(", ", keys));
+
+			System.exit(run(properties) ? 0 : 1);
+		}
+		catch (IllegalArgumentException e)
+		{
+			System.err.println(e.getMessage());
+			System.exit(2);
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	private static boolean run(Properties properties) throws Exception
+	{
+		Path folder = Paths.get(properties.getProperty("folder", Paths.get(System.getProperty("java.io.tmpdir"), "em-registration-benchmark").toString()));
+		Path stackFolder = folder.resolve("stack");
+		Path outputFolder = folder.resolve("registered");
+		Path jsonFile = Paths.get(properties.getProperty("json", folder.resolve("benchmark.json").toString()));
+
+		SyntheticStack stack = new SyntheticStack();
+		stack.width = parseInt(properties, "width", stack.width);
+		stack.height = parseInt(properties, "height", stack.height);
+		stack.numSlices = parseInt(properties, "slices", stack.numSlices);
+		stack.bitDepth = parseInt(properties, "bitDepth", stack.bitDepth);
+		stack.border = parseInt(properties, "border", stack.border);
+		stack.maxDriftStep = parseInt(properties, "driftStep", stack.maxDriftStep);
+		stack.sliceThicknessNM = Double.parseDouble(properties.getProperty("sliceThickness", Double.toString(stack.sliceThicknessNM)));
+		stack.seed = Long.parseLong(properties.getProperty("seed", Long.toString(stack.seed)));
+		if (stack.bitDepth != 8 && stack.bitDepth != 16)
+			throw new IllegalArgumentException("bitDepth must be 8 or 16");
+
+		final int patchSize = parseInt(properties, "patch", 256);
+		final int maxShift = parseInt(properties, "maxShift", 4 * stack.maxDriftStep + 4);  // thickness correction may skip a slice or two
+		final boolean sliceThicknessCorrection = Boolean.parseBoolean(properties.getProperty("sliceThicknessCorrection", "true"));
+
+		Map<String, Object> json = new LinkedHashMap<String, Object>();
+		json.put("timestamp", Instant.now().toString());
+		json.put("system", system());
+
+		Map<String, Object> stackJson = new LinkedHashMap<String, Object>();
+		stackJson.put("width", stack.width);
+		stackJson.put("height", stack.height);
+		stackJson.put("slices", stack.numSlices);
+		stackJson.put("bitDepth", stack.bitDepth);
+		stackJson.put("border", stack.border);
+		stackJson.put("driftStep", stack.maxDriftStep);
+		stackJson.put("sliceThicknessNM", stack.sliceThicknessNM);
+		stackJson.put("seed", stack.seed);
+		json.put("stack", stackJson);
+
+		Map<String, Object> stages = new LinkedHashMap<String, Object>();
+		final long sliceBytes = (long)stack.width * stack.height * (stack.bitDepth / 8);
+		final long stackBytes = sliceBytes * stack.numSlices;
+
+		// Generate the stack (a fresh one every run, so the results never depend on leftovers of an earlier run)
+		System.out.println("Writing a synthetic stack of " + stack.numSlices + " slices of " + stack.width + "x" + stack.height + " pixels, " + stack.bitDepth + " bit, to " + stackFolder);
+		deleteRecursively(stackFolder);
+		deleteRecursively(outputFolder);
+		Files.createDirectories(stackFolder);
+		Files.createDirectories(outputFolder);
+		long start = System.nanoTime();
+		List<Path> inputFiles = stack.write(stackFolder);
+		stages.put("generate", stage(System.nanoTime() - start, stack.numSlices, stackBytes));
+
+		// From here on it is the registration path of RegistrationBatch.
+		resetPeakHeap();
+		final long gcStart = gcMillis();
+		final long wallStart = System.nanoTime();
+
+		start = System.nanoTime();
+		ImagePlus firstImage = SliceFiles.loadImage(inputFiles.get(0).toString(), null);
+		Rectangle autoCropRect = AutoCropper.getNonblackRegion(firstImage);
+		stages.put("autoCrop", stage(System.nanoTime() - start, 1, sliceBytes));
+
+		Rectangle templatePatchRect = new Rectangle((stack.width - patchSize) / 2, (stack.height - patchSize) / 2, patchSize, patchSize);
+		RegistrationParameters params = new RegistrationParameters(inputFiles, outputFolder, templatePatchRect, maxShift, maxShift,
+		                                                           sliceThicknessCorrection, stack.sliceThicknessNM, true, autoCropRect);
+		params.engine = parseEnum(properties, "engine", MatchingEngine.class, MatchingEngine.JAVA);
+		params.subpixelRefinement = parseEnum(properties, "subpixel", SubpixelRefinement.class, params.subpixelRefinement);
+		params.mode = parseEnum(properties, "mode", RegistrationMode.class, params.mode);
+		params.numThreads = parseInt(properties, "threads", params.numThreads);
+		params.outputFormat = parseEnum(properties, "format", OutputFormat.class, params.outputFormat);
+
+		if (params.engine == MatchingEngine.QUASAR)
+			QuasarStartup.start();
+
+		start = System.nanoTime();
+		List<Path> slices = StackRegistration.getSlicesForRegistration(params);
+		stages.put("sliceThicknessCorrection", stage(System.nanoTime() - start, inputFiles.size(), 0));
+
+		StackRegistration registration = new StackRegistration(params);
+		registration.run(() -> false, progress -> {});
+
+		final long wallNs = System.nanoTime() - wallStart;
+		final long peakHeap = peakHeap();
+		final long gcMs = gcMillis() - gcStart;
+
+		RegistrationMetrics metrics = registration.getMetrics();
+		for (RegistrationMetrics.Stage stage : RegistrationMetrics.Stage.values())
+		{
+			if (metrics.totalSeconds(stage) == 0)
+				continue;  // not measured in this mode
+			final long bytes = (stage == RegistrationMetrics.Stage.LOAD) ? metrics.getBytesRead() : (stage == RegistrationMetrics.Stage.SAVE) ? metrics.getBytesWritten() : 0;
+			stages.put(stage.name().toLowerCase(), stage((long)(metrics.totalSeconds(stage) * 1e9), slices.size(), bytes));
+		}
+		json.put("stages", stages);
+
+		List<ShiftTable.Entry> entries = ShiftTable.read(outputFolder, ShiftTable.describe(params, slices));
+
+		Map<String, Object> registrationJson = new LinkedHashMap<String, Object>();
+		registrationJson.put("engine", params.engine.name());
+		registrationJson.put("mode", params.mode.name());
+		registrationJson.put("outputFormat", params.outputFormat.name());
+		registrationJson.put("subpixelRefinement", params.subpixelRefinement.name());
+		registrationJson.put("threads", params.numThreads);
+		registrationJson.put("patch", patchSize);
+		registrationJson.put("maxShift", maxShift);
+		registrationJson.put("sliceThicknessCorrection", sliceThicknessCorrection);
+		registrationJson.put("autoCrop", autoCropRect.x + "," + autoCropRect.y + "," + autoCropRect.width + "," + autoCropRect.height);
+		registrationJson.put("registeredSlices", slices.size());
+		json.put("registration", registrationJson);
+
+		final int numWrong = checkShifts(entries, inputFiles, SyntheticStack.readPlantedShifts(stackFolder));
+
+		Map<String, Object> results = new LinkedHashMap<String, Object>();
+		results.put("wallSeconds", wallNs / 1e9);
+		results.put("slicesPerSecond", slices.size() / (wallNs / 1e9));
+		results.put("peakHeapMB", peakHeap / (1024.0 * 1024.0));
+		results.put("gcSeconds", gcMs / 1000.0);
+		results.put("wrongShifts", numWrong);
+		json.put("results", results);
+
+		String text = toJson(json, "");
+		Files.createDirectories(jsonFile.toAbsolutePath().getParent());
+		Files.write(jsonFile, (text + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+		System.out.println(text);
+		System.out.println("Results written to " + jsonFile);
+
+		System.out.println(numWrong == 0 ? "SUCCESS: all slices were registered with the planted shift" : "FAILED: " + numWrong + " slices were registered with a wrong shift");
+		return numWrong == 0;
+	}
+
+	// Counts the slices whose shift with respect to the first registered slice differs from the planted one.
+	private static int checkShifts(List<ShiftTable.Entry> entries, List<Path> inputFiles, int[][] planted)
+	{
+		Map<Path, Integer> sliceNr = new HashMap<Path, Integer>();
+		for (int i = 0; i < inputFiles.size(); i++)
+			sliceNr.put(inputFiles.get(i), i);
+
+		int numWrong = 0;
+		int[] reference = planted[sliceNr.get(entries.get(0).inputFile)];
+		for (ShiftTable.Entry entry : entries)
+		{
+			int[] expected = planted[sliceNr.get(entry.inputFile)];
+			final int expectedX = expected[0] - reference[0];
+			final int expectedY = expected[1] - reference[1];
+			SliceShift shift = entry.shift;
+			if (shift == null || Math.round(shift.shiftX + shift.subX) != expectedX || Math.round(shift.shiftY + shift.subY) != expectedY)
+			{
+				System.out.println("Wrong shift for slice " + entry.slice + " (" + entry.inputFile.getFileName() + "): " +
+				                   (shift == null ? entry.error : String.format(Locale.ROOT, "(%.2f, %.2f)", shift.shiftX + shift.subX, shift.shiftY + shift.subY)) +
+				                   " instead of (" + expectedX + ", " + expectedY + ")");
+				numWrong++;
+			}
+		}
+		return numWrong;
+	}
+
+	private static Map<String, Object> stage(long durationNs, int numSlices, long numBytes)
+	{
+		final double seconds = durationNs / 1e9;
+		Map<String, Object> stage = new LinkedHashMap<String, Object>();
+		stage.put("seconds", seconds);
+		stage.put("slicesPerSecond", numSlices / seconds);
+		if (numBytes > 0)
+			stage.put("MBPerSecond", numBytes / (1024.0 * 1024.0) / seconds);
+		return stage;
+	}
+
+	private static Map<String, Object> system()
+	{
+		Map<String, Object> system = new LinkedHashMap<String, Object>();
+		system.put("javaVersion", System.getProperty("java.version"));
+		system.put("javaVm", System.getProperty("java.vm.name"));
+		system.put("os", System.getProperty("os.name") + " " + System.getProperty("os.version"));
+		system.put("arch", System.getProperty("os.arch"));
+		system.put("processors", Runtime.getRuntime().availableProcessors());
+		system.put("maxHeapMB", Runtime.getRuntime().maxMemory() / (1024.0 * 1024.0));
+		return system;
+	}
+
+	private static void resetPeakHeap()
+	{
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+			if (pool.getType() == MemoryType.HEAP)
+				pool.resetPeakUsage();
+	}
+
+	// The sum of the peaks of the heap memory pools since resetPeakHeap(). The pools do not peak at the same moment,
+	// so this is an upper bound of the actual peak heap usage.
+	private static long peakHeap()
+	{
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+			if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null)
+				peak += pool.getPeakUsage().getUsed();
+		return peak;
+	}
+
+	private static long gcMillis()
+	{
+		long millis = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+			millis += Math.max(0, gc.getCollectionTime());
+		return millis;
+	}
+
+	// Nested maps, strings, booleans and numbers only
+	@SuppressWarnings("unchecked")
+	private static String toJson(Object value, String indent)
+	{
+		if (value instanceof Map)
+		{
+			StringBuilder json = new StringBuilder("{");
+			String separator = "";
+			for (Map.Entry<String, Object> entry : ((Map<String, Object>)value).entrySet())
+			{
+				json.append(separator).append(System.lineSeparator()).append(indent).append("  ");
+				json.append(quote(entry.getKey())).append(": ").append(toJson(entry.getValue(), indent + "  "));
+				separator = ",";
+			}
+			return json.append(System.lineSeparator()).append(indent).append("}").toString();
+		}
+		if (value instanceof Double)
+		{
+			final double d = (Double)value;
+			return (Double.isNaN(d) || Double.isInfinite(d)) ? "null" : String.format(Locale.ROOT, "%.4f", d);
+		}
+		if (value instanceof Number || value instanceof Boolean)
+			return value.toString();
+		return quote(value.toString());
+	}
+
+	private static String quote(String s)
+	{
+		StringBuilder quoted = new StringBuilder("\"");
+		for (char c : s.toCharArray())
+		{
+			if (c == '"' || c == '\\')
+				quoted.append('\\').append(c);
+			else if (c < ' ')
+				quoted.append(String.format("\\u%04x", (int)c));
+			else
+				quoted.append(c);
+		}
+		return quoted.append('"').toString();
+	}
+
+	private static void deleteRecursively(Path path) throws IOException
+	{
+		if (!Files.exists(path))
+			return;
+		try (Stream<Path> paths = Files.walk(path))
+		{
+			for (Path p : (Iterable<Path>)paths.sorted(Comparator.reverseOrder())::iterator)
+				Files.delete(p);
+		}
+	}
+
+	private static int parseInt(Properties properties, String key, int defaultValue)
+	{
+		String value = properties.getProperty(key);
+		try
+		{
+			return (value == null) ? defaultValue : Integer.parseInt(value.trim());
+		}
+		catch (NumberFormatException e)
+		{
+			throw new IllegalArgumentException("Parameter '" + key + "' must be an integer, not '" + value + "'");
+		}
+	}
+
+	private static <E extends Enum<E>> E parseEnum(Properties properties, String key, Class<E> type, E defaultValue)
+	{
+		String value = properties.getProperty(key);
+		try
+		{
+			return (value == null) ? defaultValue : Enum.valueOf(type, value.trim().toUpperCase());
+		}
+		catch (IllegalArgumentException e)
+		{
+			throw new IllegalArgumentException("Parameter '" + key + "' cannot be '" + value + "'");
+		}
+	}
+}
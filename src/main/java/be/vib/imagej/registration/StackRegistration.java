@@ -0,0 +1,328 @@
+package be.vib.imagej.registration;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+// import ij.IJ; // For debugging, e.g. to save imageProcessor to TIFF
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+// StackRegistration registers a complete stack as described by the RegistrationParameters:
+// it iterates over the images (=z-slices) in the input folder and registers them one by one with their predecessor slice.
+// It does not depend on Swing, so it is used both by the wizard (via RegistrationSwingWorker)
+// and by the headless RegistrationBatch.
+public class StackRegistration
+{
+	private RegistrationParameters params;
+	private RegistrationEngine registerer;
+	private List<Path> slices;  // the slices being registered, known once run() has started
+	private NonblackRegionIndex nonblackRegions;  // null if params.nonblackSampleStep == 0
+	private Executor executor;  // for loading and saving slices (see TwoPassRegistration and RegistrationPipeline); null means they use threads of their own
+	private RegistrationMetrics metrics;  // of the last run, null before run() was called
+	
+	public StackRegistration(RegistrationParameters params)
+	{
+		this.params = params;
+		this.registerer = params.engine.create(params);
+	}
+	
+	// Lets the parallel work of this registration run on the given executor, e.g. shared with other registrations.
+	public void setExecutor(Executor executor)
+	{
+		this.executor = executor;
+	}
+	
+	// Registers the stack. The registration stops early (without an exception) as soon as isCancelled returns true.
+	// progress is called (from any of the threads of the registration) whenever a slice is done.
+	public void run(BooleanSupplier isCancelled, Consumer<RegistrationProgress> progress) throws Exception
+	{
+		slices = getSlicesForRegistration(params);
+		
+		if (params.autoCropRect != null && params.autoCropMode != AutoCropMode.REFERENCE && params.nonblackSampleStep <= 0)
+			throw new IllegalArgumentException("Auto-cropping to the " + params.autoCropMode.name().toLowerCase() + " of the non-black regions of the slices needs nonblackSampleStep > 0");
+		
+		if (params.nonblackSampleStep > 0)
+		{
+			// Find out where the black border of the slices is before registering them.
+			nonblackRegions = NonblackRegionIndex.open(params.outputFolder, slices, params.nonblackSampleStep, executor, params.numThreads, isCancelled);
+			if (nonblackRegions == null)
+				return;  // cancelled
+			
+			if (params.autoCropRect != null && params.autoCropMode != AutoCropMode.REFERENCE)
+			{
+				Rectangle crop = (params.autoCropMode == AutoCropMode.UNION) ? nonblackRegions.union() : nonblackRegions.intersection();
+				if (crop.isEmpty())
+					throw new RuntimeException("The " + params.autoCropMode.name().toLowerCase() + " of the non-black regions of the slices is empty, so there is nothing left to register after auto-cropping.");
+				params.autoCropRect = crop;  // also what the shift table records
+			}
+		}
+		
+		register(slices, params.outputFolder, params.templatePatchRect, params.maxShiftX, params.maxShiftY, params.autoCropRect, isCancelled, progress);
+	}
+	
+	// Returns the slices that run() registers (null before run() was called).
+	public List<Path> getSlices()
+	{
+		return slices;
+	}
+	
+	// Returns the metrics of the last run (null before run() was called); they can still be read after the run is over.
+	public RegistrationMetrics getMetrics()
+	{
+		return metrics;
+	}
+	
+	// Returns the slices to register, in order: the input files, or a resampled selection of them if slice thickness correction is requested.
+	static List<Path> getSlicesForRegistration(RegistrationParameters params)
+	{
+		List<Path> slices = null;
+		
+		if (params.sliceThicknessCorrection)
+		{
+			ResampleInfo[] resampleInfo = SliceThicknessCorrection.nearestNeighborResample(params.inputFiles, params.sliceThicknessNM, params.preserveSliceOrder);
+			SliceThicknessCorrection.printResampleInfo(resampleInfo);
+			slices = SliceThicknessCorrection.getResampledFiles(resampleInfo);
+		}
+		else
+		{
+			slices = params.inputFiles;
+		}
+		return slices;
+	}
+	
+	private void register(List<Path> inputFiles, Path outputFolder, Rectangle templatePatchRect, int maxShiftX, int maxShiftY, Rectangle autoCropRect, BooleanSupplier isCancelled, Consumer<RegistrationProgress> listener) throws Exception  
+	// autoCropRect==null means don't auto-crop
+	{
+		ShiftEstimator estimator = createEstimator(inputFiles.get(0), templatePatchRect, maxShiftX, maxShiftY, autoCropRect);
+		if (nonblackRegions != null)
+			estimator.setNonblackRegions(nonblackRegions, autoCropRect);
+		
+		// The shifts are recorded in the output folder as we go. If an earlier run with the same parameters
+		// was interrupted, we continue where it stopped.
+		ShiftTable shiftTable = ShiftTable.open(outputFolder, ShiftTable.describe(params, inputFiles));
+		final int firstSlice = shiftTable.numRecorded();
+		
+		// Per-stage timings etc. go to a CSV file in the output folder, and can be watched via JMX while we run.
+		RegistrationMetrics metrics = null;
+		SliceWriter output = null;
+		try
+		{
+			metrics = RegistrationMetrics.start(outputFolder);
+			this.metrics = metrics;
+			estimator.setMetrics(metrics);
+			ProgressTracker progress = new ProgressTracker(inputFiles, firstSlice, (params.mode == RegistrationMode.TWO_PASS) ? 2 : 1, metrics, listener);
+			output = new MeasuredSliceWriter(createSliceWriter(outputFolder, inputFiles.size(), firstSlice > 0, shiftTable), metrics, progress);
+			
+			if (firstSlice > 0)
+				resume(inputFiles, output, shiftTable, estimator, autoCropRect, isCancelled);
+			
+			final int numSlices = inputFiles.size();
+			switch (params.mode)
+			{
+				case PIPELINED:
+					// Load the next slices and save the previous ones while the current one is being registered.
+					RegistrationPipeline pipeline = new RegistrationPipeline(estimator, shiftTable, autoCropRect, output, params.pipelineBudgetBytes);
+					pipeline.setExecutor(executor);
+					pipeline.setMetrics(metrics);
+					pipeline.run(inputFiles, firstSlice, isCancelled, slicesDone -> progress.progress((100.0 * slicesDone) / numSlices));
+					break;
+				case TWO_PASS:
+					// First find all shifts (reading only search windows), then translate and save the slices in parallel.
+					TwoPassRegistration twoPass = new TwoPassRegistration(estimator, shiftTable, autoCropRect, output, params.pipelineBudgetBytes, params.numThreads);
+					twoPass.setExecutor(executor);
+					twoPass.setMetrics(metrics);
+					twoPass.setProgress(progress);
+					twoPass.run(inputFiles, firstSlice, isCancelled, stepsDone -> progress.progress((100.0 * stepsDone) / (2 * (numSlices - firstSlice))));
+					break;
+				default:
+					registerSequentially(inputFiles, firstSlice, output, shiftTable, estimator, autoCropRect, metrics, isCancelled, progress);
+					break;
+			}
+		}
+		finally
+		{
+			estimator.dispose();  // the engine keeps e.g. the reference patch in Quasar between slices
+			shiftTable.close();
+			if (output != null)
+				output.close();
+			if (metrics != null)
+				metrics.close();
+		}
+	}
+	
+	// Returns a ShiftEstimator that finds the shifts of slices with respect to the given reference slice,
+	// using the reference patch at templatePatchRect in it.
+	ShiftEstimator createEstimator(Path referenceFile, Rectangle templatePatchRect, int maxShiftX, int maxShiftY, Rectangle autoCropRect) throws Exception
+	// autoCropRect==null means don't auto-crop
+	{
+		// Show info on reference patch
+		System.out.println(String.format("Reference patch: top-left corner x=%d y=%d, width=%d height=%d", templatePatchRect.x, templatePatchRect.y, templatePatchRect.width, templatePatchRect.height));
+		System.out.println("Maximum shift in pixels: X=" + maxShiftX + " Y=" + maxShiftY);
+		
+		if (autoCropRect != null)
+		{
+			System.out.println("Autocropping to " + autoCropRect);
+						
+			Rectangle newTemplatePatchRect = autoCropRect.intersection(templatePatchRect);
+			if (newTemplatePatchRect.isEmpty())
+				throw new RuntimeException("The auto-crop rectangle and the user-defined template patch do not overlap. After cropping there is no template patch to use for registration anymore. Please select a template patch that overlaps with the non-black region of the image.");
+			
+			newTemplatePatchRect.x = newTemplatePatchRect.x - autoCropRect.x;
+			newTemplatePatchRect.y = newTemplatePatchRect.y - autoCropRect.y;
+			
+			templatePatchRect = newTemplatePatchRect;
+			System.out.println("New template patch rect coordinates, with respect to autocropped image: " + templatePatchRect);
+		}
+
+		// Coordinates of the top-left corner of the reference patch (in the original image if autoCropRect is null, relative to TL corner of autoCropRect otherwise)
+		final int initialX = templatePatchRect.x;
+		final int initialY = templatePatchRect.y;
+		
+		// Extract reference patch from the reference slice
+		ImagePlus firstImage = SliceFiles.loadImage(referenceFile.toString(), autoCropRect);
+		
+		ImageProcessor referencePatch = SliceFiles.cropImage(firstImage, templatePatchRect);
+  		//IJ.save(new ImagePlus("reference patch", referencePatch), "e:\\emreg_refpatch.png");
+
+		return new ShiftEstimator(registerer, params.engine.name(), referencePatch, initialX, initialY, maxShiftX, maxShiftY);
+	}
+	
+	// shiftTable is the table of the run, or null if all shifts are known already (as when saving a shard).
+	SliceWriter createSliceWriter(Path outputFolder, int numSlices, boolean resume, ShiftTable shiftTable) throws IOException
+	{
+		switch (params.outputFormat)
+		{
+			case BIGTIFF_STACK:
+				// Slices go into the stack in the order of the list of slices, so for a slice thickness corrected run
+				// this is the resampled order (which params.preserveSliceOrder determines).
+				return BigTiffStackWriter.open(outputFolder.resolve(BigTiffStackWriter.FILENAME), resume, params.stackCommitInterval);
+			case N5_VOLUME:
+				N5VolumeWriter volume = new N5VolumeWriter(outputFolder, numSlices, params.chunkSize, params.chunkCompression, params.numThreads, resume);
+				volume.setShiftTable(shiftTable);
+				return volume;
+			default:
+				return new SliceFilesWriter(outputFolder);
+		}
+	}
+	
+	// Prepares for continuing an interrupted run: the slices in the shift table have been registered already,
+	// but some of them may not have been saved (or, if their registration failed, skipped) yet. Those are saved
+	// and skipped now, and the search for the next slice will start from the last registered position.
+	// The slices after the shift table are not touched: they are registered after this.
+	private void resume(List<Path> inputFiles, SliceWriter output, ShiftTable shiftTable, ShiftEstimator estimator, Rectangle autoCropRect, BooleanSupplier isCancelled) throws Exception
+	{
+		final int numRecorded = shiftTable.numRecorded();
+		System.out.println("Resuming registration after slice " + numRecorded + " (found " + shiftTable.getFile() + ")");
+		
+		SliceShift[] unsaved = new SliceShift[inputFiles.size()];
+		int numUnsaved = 0;
+		for (int i = 0; i < numRecorded; i++)
+		{
+			SliceShift shift = shiftTable.get(i).shift;
+			if (shift != null && !output.contains(i, inputFiles.get(i)))
+			{
+				unsaved[i] = shift;
+				numUnsaved++;
+			}
+		}
+		
+		if (numUnsaved > 0)
+			System.out.println("Saving " + numUnsaved + " registered slices that were not saved yet");
+		TwoPassRegistration twoPass = new TwoPassRegistration(estimator, shiftTable, autoCropRect, output, params.pipelineBudgetBytes, params.numThreads);
+		twoPass.setExecutor(executor);
+		twoPass.applyShifts(inputFiles, unsaved, 0, numRecorded, isCancelled, n -> {});
+		
+		SliceShift lastShift = shiftTable.lastShift();
+		if (lastShift != null)
+			estimator.restore(lastShift);
+	}
+	
+	// Processes the images in the input folder from firstSlice on, one after the other.
+	private void registerSequentially(List<Path> inputFiles, int firstSlice, SliceWriter output, ShiftTable shiftTable, ShiftEstimator estimator, Rectangle autoCropRect, RegistrationMetrics metrics, BooleanSupplier isCancelled, ProgressTracker progress) throws Exception
+	{
+		final int numSlices = inputFiles.size();
+		for (int sliceNr = firstSlice + 1; sliceNr <= numSlices; sliceNr++)
+		{
+			if (isCancelled.getAsBoolean())
+				break;
+			
+			final int sliceIndex = sliceNr - 1;
+			Path inputFile = inputFiles.get(sliceIndex);
+			
+			// For timing
+			long loadStart = 0;
+			long loadEnd = 0;
+			long registerStart = 0;
+			long registerEnd = 0;
+			long saveStart = 0;
+			long saveEnd = 0;
+			
+			System.out.println("Image " + sliceNr + "/" + numSlices + " : " + inputFile.toString() + "...");
+			loadStart = System.nanoTime();
+			ImagePlus imagePlus;
+			try
+			{
+				StageEvent loadEvent = FlightRecording.begin(RegistrationMetrics.Stage.LOAD);
+				imagePlus = SliceFiles.loadImage(inputFile.toString(), autoCropRect);
+				if (imagePlus.getProcessor() == null)
+					throw new RuntimeException("Failed to get ImageProcessor for image " + inputFile.toString());
+				loadEvent.commit(sliceIndex, inputFile, SliceFiles.pixelBytes(imagePlus));
+			}
+			catch (InterruptedException e)
+			{
+				throw e;
+			}
+			catch (Exception e)
+			{
+				// Like a failed registration: recorded in the shift table, and we continue with the next slice.
+				shiftTable.recordFailure(sliceIndex, inputFile, e);
+				output.skip(sliceIndex);
+				progress.progress((100.0 * sliceNr) / numSlices);
+				continue;
+			}
+
+			loadEnd = System.nanoTime();
+			metrics.record(sliceIndex, inputFile, RegistrationMetrics.Stage.LOAD, loadEnd - loadStart);
+			metrics.addBytesRead(sliceIndex, inputFile, SliceFiles.pixelBytes(imagePlus));
+			
+			ImageProcessor image = imagePlus.getProcessor();
+
+			// Calculate the shift required to register this slice to the previous one.
+			// If that fails, the failure is recorded in the shift table and we continue with the next slice.
+			registerStart = System.nanoTime();
+			SliceShift shift = shiftTable.record(sliceNr - 1, inputFile, () -> estimator.estimate(sliceIndex, inputFile, image));
+			registerEnd = System.nanoTime();
+			if (shift == null)
+			{
+				output.skip(sliceNr - 1);
+				progress.progress((100.0 * sliceNr) / numSlices);
+				continue;
+			}
+			
+			// Shift the image to register it, and save the registered image to the output folder
+			saveStart = System.nanoTime();
+			output.write(sliceNr - 1, inputFile, imagePlus, shift);
+			saveEnd = System.nanoTime();
+	
+			// Show some timing statistics
+			printStatistics(loadStart, loadEnd, registerStart, registerEnd, saveStart, saveEnd);
+			
+			// Progress feedback (with a smoothed rate and ETA, see ProgressTracker)
+			progress.progress((100.0 * sliceNr) / numSlices);
+		}
+	}
+	
+	// Print some timing statistics
+	private static void printStatistics(long readFileStart, long readFileEnd, long registrationStart, long registrationEnd, long saveStart, long saveEnd) // time stamps in nanoseconds
+	{
+		long readTimeMilliSec = (readFileEnd - readFileStart) / 1000000;
+		long registrationTimeMilliSec = (registrationEnd - registrationStart) / 1000000;
+		long saveTimeMilliSec = (saveEnd - saveStart) / 1000000;
+		System.out.println(String.format("Load %d, register %d, save %d (ms)", readTimeMilliSec, registrationTimeMilliSec, saveTimeMilliSec));
+	}
+}
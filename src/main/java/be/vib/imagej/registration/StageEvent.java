@@ -0,0 +1,17 @@
+package be.vib.imagej.registration;
+
+import java.nio.file.Path;
+
+// A Java Flight Recorder event for one stage of the registration of a slice, see FlightRecording.
+// It starts when it is created and ends at commit().
+public interface StageEvent
+{
+	// Ends the event and records it, if a flight recording is running.
+	// bytes is the size of the pixel data the stage read, cropped, translated or wrote.
+	public void commit(int slice, Path inputFile, long bytes);
+
+	// The search of a match event; call it before commit(). Other events ignore it.
+	default public void setSearch(int windowWidth, int windowHeight, long candidates, String engine)
+	{
+	}
+}
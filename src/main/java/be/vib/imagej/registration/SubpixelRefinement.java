@@ -0,0 +1,104 @@
+package be.vib.imagej.registration;
+
+// Methods for estimating the position of the cost minimum with subpixel accuracy,
+// from the costs of the best integer position and its neighbors.
+// This is much cheaper than upsampling the whole search window.
+public enum SubpixelRefinement
+{
+	NONE("None"),
+	PARABOLA("Parabola fit"),                  // fits a parabola through the costs, separately in x and y
+	GAUSSIAN("Gaussian fit"),                  // fits a Gaussian through the similarities 1/(1+cost), separately in x and y
+	UPSAMPLED_DFT("Local DFT upsampling");     // evaluates the cost on a fine grid around the minimum, with the cross-correlation interpolated in the frequency domain (FFT engines only; other engines use a parabola fit instead)
+
+	private final String description;  // shown to the user
+
+	private SubpixelRefinement(String description)
+	{
+		this.description = description;
+	}
+
+	@Override
+	public String toString()
+	{
+		return description;
+	}
+
+	// Refines result from the 3x3 costs around the best integer position (row-major, costs[4] is the cost at the best position).
+	// Neighbors for which no cost is available (because they fall outside the image) must be NaN;
+	// no refinement is done along an axis with a missing neighbor.
+	// Fills in result.subX, result.subY and result.peakSharpness.
+	public void refine(RegistrationResult result, double[] costs)
+	{
+		assert(costs.length == 9);
+
+		final double center = costs[4];
+		final double left = costs[3], right = costs[5];
+		final double up = costs[1], down = costs[7];
+
+		result.peakSharpness = peakSharpness(center, left, right, up, down);
+
+		if (this == NONE)
+		{
+			result.subX = 0.0;
+			result.subY = 0.0;
+		}
+		else if (this == GAUSSIAN)
+		{
+			result.subX = gaussianOffset(left, center, right);
+			result.subY = gaussianOffset(up, center, down);
+		}
+		else
+		{
+			result.subX = parabolaOffset(left, center, right);
+			result.subY = parabolaOffset(up, center, down);
+		}
+	}
+
+	// Returns the position of the minimum of the parabola through (-1, a), (0, b) and (1, c),
+	// or 0 if there is no proper minimum.
+	static double parabolaOffset(double a, double b, double c)
+	{
+		final double curvature = a - 2.0 * b + c;
+		if (Double.isNaN(curvature) || curvature <= 0.0)
+			return 0.0;
+		return clampOffset(0.5 * (a - c) / curvature);
+	}
+
+	// Returns the position of the peak of the Gaussian through the similarities 1/(1+cost) at -1, 0, 1.
+	// (ln of the similarity is a parabola; costs are shifted so they are positive.)
+	static double gaussianOffset(double a, double b, double c)
+	{
+		final double shift = Math.min(0.0, Math.min(a, Math.min(b, c)));  // NCC costs can be negative
+		return parabolaOffset(Math.log1p(a - shift), Math.log1p(b - shift), Math.log1p(c - shift));
+	}
+
+	// The minimum must be within half a pixel of the best integer position, otherwise the neighbor would have been the best.
+	private static double clampOffset(double offset)
+	{
+		return Math.max(-0.5, Math.min(0.5, offset));
+	}
+
+	// Mean second difference of the cost in x and y, relative to the cost at the minimum:
+	// 0 for a flat cost surface, close to 1 if the cost rises steeply from a near-zero minimum.
+	static double peakSharpness(double center, double left, double right, double up, double down)
+	{
+		double sum = 0.0;
+		int n = 0;
+		if (!Double.isNaN(left) && !Double.isNaN(right))
+		{
+			sum += Math.max(0.0, left - 2.0 * center + right);
+			n++;
+		}
+		if (!Double.isNaN(up) && !Double.isNaN(down))
+		{
+			sum += Math.max(0.0, up - 2.0 * center + down);
+			n++;
+		}
+		if (n == 0)
+			return Double.NaN;
+
+		final double curvature = sum / n;
+		final double denominator = Math.abs(center) + curvature;
+		return (denominator > 0.0) ? curvature / denominator : 0.0;
+	}
+}
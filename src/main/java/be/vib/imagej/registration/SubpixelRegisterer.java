@@ -0,0 +1,74 @@
+package be.vib.imagej.registration;
+
+import ij.process.ImageProcessor;
+
+// SubpixelRegisterer wraps another RegistrationEngine and refines the integer position it finds
+// to subpixel accuracy. It computes the sum of squared differences at the best position and its
+// 8 neighbors and fits a parabola or Gaussian through them (see SubpixelRefinement).
+// We use SSD rather than SAD for the fit because SSD is approximately quadratic around its minimum.
+// (Local DFT upsampling needs the cross-correlation spectrum, so it is only available in FFTRegisterer;
+// here it falls back to a parabola fit.)
+public class SubpixelRegisterer implements RegistrationEngine
+{
+	private RegistrationEngine engine;
+	private SubpixelRefinement refinement;
+	private ImageProcessor image;
+	private ImageProcessor referencePatch;
+
+	public SubpixelRegisterer(RegistrationEngine engine, SubpixelRefinement refinement)
+	{
+		this.engine = engine;
+		this.refinement = refinement;
+	}
+
+	@Override
+	public void setParameters(ImageProcessor image, ImageProcessor referencePatch, int xmin, int xmax, int ymin, int ymax)
+	{
+		this.image = image;
+		this.referencePatch = referencePatch;
+		engine.setParameters(image, referencePatch, xmin, xmax, ymin, ymax);
+	}
+
+	@Override
+	public void setPredictedPosition(int x, int y)
+	{
+		engine.setPredictedPosition(x, y);
+	}
+
+	@Override
+	public boolean runsOnQuasarThread()
+	{
+		return engine.runsOnQuasarThread();
+	}
+	
+	@Override
+	public void dispose()
+	{
+		engine.dispose();
+	}
+
+	@Override
+	public RegistrationResult call() throws Exception
+	{
+		RegistrationResult result = engine.call();
+
+		CostKernel kernel = CostKernels.create(CostFunction.SSD, image, referencePatch);
+		final int maxX = image.getWidth() - referencePatch.getWidth();
+		final int maxY = image.getHeight() - referencePatch.getHeight();
+
+		double[] costs = new double[9];
+		for (int dy = -1; dy <= 1; dy++)
+		{
+			for (int dx = -1; dx <= 1; dx++)
+			{
+				final int x = result.posX + dx;
+				final int y = result.posY + dy;
+				final boolean inside = (x >= 0 && x <= maxX && y >= 0 && y <= maxY);
+				costs[(dy + 1) * 3 + (dx + 1)] = inside ? kernel.cost(x, y) : Double.NaN;
+			}
+		}
+
+		refinement.refine(result, costs);
+		return result;
+	}
+}
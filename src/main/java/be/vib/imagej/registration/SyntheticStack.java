@@ -0,0 +1,172 @@
+package be.vib.imagej.registration;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+// SyntheticStack writes a stack of synthetic FIB-SEM-like slices to disk, for benchmarking (see StackBenchmark) and testing.
+// The slices show a grainy texture with larger structures that slowly change from slice to slice, plus noise,
+// inside a black border (for AutoCropper). From slice to slice the content drifts by a random walk of a few pixels;
+// the planted shifts are written to PLANTED_SHIFTS in the stack folder. The files are named like
+// "slice_00025_z=0.2908um.tif", as SliceThicknessCorrection expects, with z values that have the error a real microscope
+// reports, so now and then z decreases from one slice to the next.
+public class SyntheticStack
+{
+	public static final String PLANTED_SHIFTS = "planted_shifts.tsv";
+
+	public int width = 2048;
+	public int height = 2048;
+	public int numSlices = 100;
+	public int bitDepth = 8;             // 8 or 16
+	public int border = 64;              // width of the black border, in pixels
+	public int maxDriftStep = 3;         // maximum drift between successive slices, in pixels (in x and in y)
+	public int maxDrift = 40;            // the drift stays within +/- maxDrift pixels of the first slice
+	public double sliceThicknessNM = 5.0;
+	public double zError = 0.5;          // standard deviation of the error on the reported z, relative to the slice thickness
+	public long seed = 1;
+
+	// Writes the slices to the folder (which must exist) and returns them in slice order.
+	// The shift of every slice with respect to the first one is written to PLANTED_SHIFTS.
+	public List<Path> write(Path folder) throws IOException
+	{
+		Random random = new Random(seed);
+		final int canvasWidth = width + 2 * maxDrift;
+		final int canvasHeight = height + 2 * maxDrift;
+		float[] canvas = texture(canvasWidth, canvasHeight, random);
+
+		List<Path> files = new ArrayList<Path>(numSlices);
+		try (BufferedWriter planted = Files.newBufferedWriter(folder.resolve(PLANTED_SHIFTS), StandardCharsets.UTF_8))
+		{
+			planted.write("# slice\tshiftX\tshiftY\tz(um)\tfile");
+			planted.newLine();
+
+			int driftX = 0;
+			int driftY = 0;
+			for (int i = 0; i < numSlices; i++)
+			{
+				if (i > 0)
+				{
+					driftX = Math.max(-maxDrift, Math.min(maxDrift, driftX + random.nextInt(2 * maxDriftStep + 1) - maxDriftStep));
+					driftY = Math.max(-maxDrift, Math.min(maxDrift, driftY + random.nextInt(2 * maxDriftStep + 1) - maxDriftStep));
+				}
+
+				final double z = (i + zError * random.nextGaussian()) * sliceThicknessNM / 1000.0;
+				Path file = folder.resolve(String.format(Locale.ROOT, "slice_%05d_z=%.4fum.tif", i, z));
+
+				ImageProcessor slice = slice(canvas, canvasWidth, maxDrift - driftX, maxDrift - driftY, i, random);
+				TranslatedTiffWriter.write(new ImagePlus(file.getFileName().toString(), slice), 0, 0, file);
+				files.add(file);
+
+				// The content moved by (driftX, driftY), so that is where the registration should find the reference patch.
+				planted.write(String.format(Locale.ROOT, "%d\t%d\t%d\t%.4f\t%s", i, driftX, driftY, z, file.getFileName()));
+				planted.newLine();
+			}
+		}
+		return files;
+	}
+
+	// Reads the planted shifts of a stack written by write(): [slice][0] is the x shift, [slice][1] the y shift.
+	public static int[][] readPlantedShifts(Path folder) throws IOException
+	{
+		List<int[]> shifts = new ArrayList<int[]>();
+		for (String line : Files.readAllLines(folder.resolve(PLANTED_SHIFTS), StandardCharsets.UTF_8))
+		{
+			if (line.startsWith("#"))
+				continue;
+			String[] fields = line.split("\t");
+			shifts.add(new int[] { Integer.parseInt(fields[1]), Integer.parseInt(fields[2]) });
+		}
+		return shifts.toArray(new int[0][]);
+	}
+
+	// The slice at (x0, y0) in the canvas, plus structures that change with the slice number, plus noise, inside a black border.
+	private ImageProcessor slice(float[] canvas, int canvasWidth, int x0, int y0, int sliceNr, Random random)
+	{
+		final int maxValue = (bitDepth == 8) ? 255 : 65535;
+		final double phase = 0.15 * sliceNr;
+		byte[] bytes = (bitDepth == 8) ? new byte[width * height] : null;
+		short[] shorts = (bitDepth == 8) ? null : new short[width * height];
+
+		for (int y = border; y < height - border; y++)
+			for (int x = border; x < width - border; x++)
+			{
+				final int cx = x0 + x, cy = y0 + y;
+				double value = canvas[cy * canvasWidth + cx] + 0.05 * Math.sin(0.013 * cx + 0.007 * cy + phase) + 0.03 * random.nextGaussian();
+				int v = Math.max(1, Math.min(maxValue, (int)Math.round(value * maxValue)));  // not 0, that is the border
+				if (bitDepth == 8)
+					bytes[y * width + x] = (byte)v;
+				else
+					shorts[y * width + x] = (short)v;
+			}
+
+		return (bitDepth == 8) ? new ByteProcessor(width, height, bytes) : new ShortProcessor(width, height, shorts, null);
+	}
+
+	// Grain (smoothed noise) on top of a few larger structures (sinusoids), with values around 0.5.
+	// (EngineBenchmark cuts its reference patches and search windows from it too.)
+	static float[] texture(int width, int height, Random random)
+	{
+		float[] grain = new float[width * height];
+		for (int i = 0; i < grain.length; i++)
+			grain[i] = random.nextFloat();
+		for (int pass = 0; pass < 2; pass++)
+			grain = boxBlur(grain, width, height, 2);
+
+		final int numWaves = 6;
+		double[] fx = new double[numWaves], fy = new double[numWaves], phase = new double[numWaves];
+		for (int w = 0; w < numWaves; w++)
+		{
+			fx[w] = (random.nextDouble() - 0.5) * 0.2;
+			fy[w] = (random.nextDouble() - 0.5) * 0.2;
+			phase[w] = random.nextDouble() * 2 * Math.PI;
+		}
+
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++)
+			{
+				double structure = 0;
+				for (int w = 0; w < numWaves; w++)
+					structure += Math.sin(fx[w] * x + fy[w] * y + phase[w]);
+				grain[y * width + x] = (float)(0.5 + 0.04 * structure + 1.5 * (grain[y * width + x] - 0.5));
+			}
+		return grain;
+	}
+
+	// Separable box blur with the given radius; the borders are blurred with the pixels that exist.
+	private static float[] boxBlur(float[] in, int width, int height, int radius)
+	{
+		float[] rows = new float[in.length];
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++)
+			{
+				float sum = 0;
+				int n = 0;
+				for (int xx = Math.max(0, x - radius); xx <= Math.min(width - 1, x + radius); xx++, n++)
+					sum += in[y * width + xx];
+				rows[y * width + x] = sum / n;
+			}
+
+		float[] out = new float[in.length];
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++)
+			{
+				float sum = 0;
+				int n = 0;
+				for (int yy = Math.max(0, y - radius); yy <= Math.min(height - 1, y + radius); yy++, n++)
+					sum += rows[yy * width + x];
+				out[y * width + x] = sum / n;
+			}
+		return out;
+	}
+}
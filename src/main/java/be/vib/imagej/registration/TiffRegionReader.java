@@ -0,0 +1,340 @@
+package be.vib.imagej.registration;
+
+import java.awt.Rectangle;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+// TiffRegionReader reads a rectangular region of the first image in a TIFF file,
+// reading only the parts of the strips or tiles that intersect the region.
+// For our large EM slices this is much less I/O than decoding the whole slice when we only need the search window.
+// Only the simple layout written by the microscope (and by ImageJ) is supported:
+// uncompressed, one 8 or 16 bit unsigned grayscale sample per pixel, black is zero, classic TIFF or BigTIFF.
+// open() returns null for anything else, and the caller should then decode the whole image the usual way.
+public class TiffRegionReader implements Closeable
+{
+	// TIFF tags
+	private static final int IMAGE_WIDTH = 256;
+	private static final int IMAGE_LENGTH = 257;
+	private static final int BITS_PER_SAMPLE = 258;
+	private static final int COMPRESSION = 259;
+	private static final int PHOTOMETRIC_INTERPRETATION = 262;
+	private static final int STRIP_OFFSETS = 273;
+	private static final int SAMPLES_PER_PIXEL = 277;
+	private static final int ROWS_PER_STRIP = 278;
+	private static final int STRIP_BYTE_COUNTS = 279;
+	private static final int PLANAR_CONFIGURATION = 284;
+	private static final int TILE_WIDTH = 322;
+	private static final int TILE_LENGTH = 323;
+	private static final int TILE_OFFSETS = 324;
+	private static final int TILE_BYTE_COUNTS = 325;
+	private static final int SAMPLE_FORMAT = 339;
+
+	private final FileChannel channel;
+	private ByteOrder byteOrder;
+	private boolean bigTiff;
+
+	private int width;
+	private int height;
+	private int bytesPerPixel;
+
+	// Strips are handled as tiles that are as wide as the image.
+	private int tileWidth;
+	private int tileHeight;
+	private long[] tileOffsets;
+	private long[] tileByteCounts;
+
+	private TiffRegionReader(FileChannel channel)
+	{
+		this.channel = channel;
+	}
+
+	// Returns a reader for the given file, or null if it is not a TIFF file with a layout that we can read regions from.
+	public static TiffRegionReader open(Path file) throws IOException
+	{
+		TiffRegionReader reader = new TiffRegionReader(FileChannel.open(file, StandardOpenOption.READ));
+		try
+		{
+			if (reader.readFirstIFD())
+				return reader;
+		}
+		catch (EOFException e)
+		{
+			// A truncated or otherwise corrupt file: leave it to the regular decoder to complain.
+		}
+		reader.close();
+		return null;
+	}
+
+	public int getWidth()
+	{
+		return width;
+	}
+
+	public int getHeight()
+	{
+		return height;
+	}
+
+	// Reads the given region (in image coordinates) into a new ByteProcessor or ShortProcessor.
+	// The region is clipped to the image.
+	public ImageProcessor readRegion(Rectangle region) throws IOException
+	{
+		Rectangle r = region.intersection(new Rectangle(0, 0, width, height));
+		if (r.isEmpty())
+			throw new IllegalArgumentException("The region " + region + " lies outside the image.");
+
+		byte[] bytes = new byte[r.width * r.height * bytesPerPixel];
+
+		final int tilesAcross = (width + tileWidth - 1) / tileWidth;
+		final int firstTileX = r.x / tileWidth;
+		final int lastTileX = (r.x + r.width - 1) / tileWidth;
+		final int firstTileY = r.y / tileHeight;
+		final int lastTileY = (r.y + r.height - 1) / tileHeight;
+
+		for (int tileY = firstTileY; tileY <= lastTileY; tileY++)
+		{
+			for (int tileX = firstTileX; tileX <= lastTileX; tileX++)
+			{
+				final int tile = tileY * tilesAcross + tileX;
+
+				// Part of the region that falls in this tile, in image coordinates
+				final int x0 = Math.max(r.x, tileX * tileWidth);
+				final int x1 = Math.min(r.x + r.width, (tileX + 1) * tileWidth);
+				final int y0 = Math.max(r.y, tileY * tileHeight);
+				final int y1 = Math.min(r.y + r.height, (tileY + 1) * tileHeight);
+
+				// Read one row segment at a time, straight into its place in the output.
+				ByteBuffer buffer = ByteBuffer.wrap(bytes);
+				for (int y = y0; y < y1; y++)
+				{
+					long position = tileOffsets[tile] + ((long)(y - tileY * tileHeight) * tileWidth + (x0 - tileX * tileWidth)) * bytesPerPixel;
+					int start = ((y - r.y) * r.width + (x0 - r.x)) * bytesPerPixel;
+					buffer.limit(start + (x1 - x0) * bytesPerPixel);
+					buffer.position(start);
+					readFully(buffer, position);
+				}
+			}
+		}
+
+		if (bytesPerPixel == 1)
+		{
+			return new ByteProcessor(r.width, r.height, bytes);
+		}
+		else
+		{
+			short[] pixels = new short[r.width * r.height];
+			ByteBuffer.wrap(bytes).order(byteOrder).asShortBuffer().get(pixels);
+			return new ShortProcessor(r.width, r.height, pixels, null);
+		}
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		channel.close();
+	}
+
+	// Parses the header and the first image file directory.
+	// Returns false if the file is not a TIFF, or if it uses features we don't support.
+	private boolean readFirstIFD() throws IOException
+	{
+		ByteBuffer header = read(0, 16);
+		short magic = header.getShort(0);
+		if (magic == 0x4949)       // "II"
+			byteOrder = ByteOrder.LITTLE_ENDIAN;
+		else if (magic == 0x4d4d)  // "MM"
+			byteOrder = ByteOrder.BIG_ENDIAN;
+		else
+			return false;
+		header.order(byteOrder);
+
+		int version = header.getShort(2) & 0xffff;
+		long ifdOffset;
+		if (version == 42)
+		{
+			bigTiff = false;
+			ifdOffset = header.getInt(4) & 0xffffffffL;
+		}
+		else if (version == 43)
+		{
+			bigTiff = true;
+			if (header.getShort(4) != 8)  // BigTIFF offsets are 8 bytes
+				return false;
+			ifdOffset = header.getLong(8);
+		}
+		else
+		{
+			return false;
+		}
+
+		final int countSize = bigTiff ? 8 : 2;
+		final int entrySize = bigTiff ? 20 : 12;
+
+		ByteBuffer countBuffer = read(ifdOffset, countSize);
+		long numEntries = bigTiff ? countBuffer.getLong(0) : (countBuffer.getShort(0) & 0xffff);
+		if (numEntries <= 0 || numEntries > 4096)
+			return false;
+
+		ByteBuffer entries = read(ifdOffset + countSize, (int)numEntries * entrySize);
+
+		int bitsPerSample = 1;
+		int compression = 1;
+		int photometric = 1;
+		int samplesPerPixel = 1;
+		int planarConfiguration = 1;
+		int sampleFormat = 1;
+		long rowsPerStrip = -1;
+		long[] stripOffsets = null;
+		long[] stripByteCounts = null;
+
+		for (int i = 0; i < numEntries; i++)
+		{
+			int entry = i * entrySize;
+			int tag = entries.getShort(entry) & 0xffff;
+			switch (tag)
+			{
+				case IMAGE_WIDTH:                width = (int)readValues(entries, entry)[0]; break;
+				case IMAGE_LENGTH:               height = (int)readValues(entries, entry)[0]; break;
+				case BITS_PER_SAMPLE:            bitsPerSample = (int)readValues(entries, entry)[0]; break;
+				case COMPRESSION:                compression = (int)readValues(entries, entry)[0]; break;
+				case PHOTOMETRIC_INTERPRETATION: photometric = (int)readValues(entries, entry)[0]; break;
+				case SAMPLES_PER_PIXEL:          samplesPerPixel = (int)readValues(entries, entry)[0]; break;
+				case ROWS_PER_STRIP:             rowsPerStrip = readValues(entries, entry)[0]; break;
+				case PLANAR_CONFIGURATION:       planarConfiguration = (int)readValues(entries, entry)[0]; break;
+				case SAMPLE_FORMAT:              sampleFormat = (int)readValues(entries, entry)[0]; break;
+				case STRIP_OFFSETS:              stripOffsets = readValues(entries, entry); break;
+				case STRIP_BYTE_COUNTS:          stripByteCounts = readValues(entries, entry); break;
+				case TILE_WIDTH:                 tileWidth = (int)readValues(entries, entry)[0]; break;
+				case TILE_LENGTH:                tileHeight = (int)readValues(entries, entry)[0]; break;
+				case TILE_OFFSETS:               tileOffsets = readValues(entries, entry); break;
+				case TILE_BYTE_COUNTS:           tileByteCounts = readValues(entries, entry); break;
+				default: break;
+			}
+		}
+
+		if (width <= 0 || height <= 0)
+			return false;
+
+		// Only uncompressed, unsigned, black-is-zero grayscale with 8 or 16 bits per pixel.
+		// (Other variants need value conversions that ImageJ's decoder does for us.)
+		if (compression != 1 || samplesPerPixel != 1 || planarConfiguration != 1 || sampleFormat != 1 || photometric != 1)
+			return false;
+		if (bitsPerSample != 8 && bitsPerSample != 16)
+			return false;
+		bytesPerPixel = bitsPerSample / 8;
+
+		if (tileOffsets == null)
+		{
+			// Strips
+			if (stripOffsets == null)
+				return false;
+			tileWidth = width;
+			tileHeight = (rowsPerStrip <= 0 || rowsPerStrip > height) ? height : (int)rowsPerStrip;
+			tileOffsets = stripOffsets;
+			tileByteCounts = stripByteCounts;
+		}
+		else if (tileWidth <= 0 || tileHeight <= 0)
+		{
+			return false;
+		}
+
+		// Make sure that every tile is stored completely, otherwise we cannot compute where pixels are.
+		final int tilesAcross = (width + tileWidth - 1) / tileWidth;
+		final int tilesDown = (height + tileHeight - 1) / tileHeight;
+		if (tileOffsets.length < tilesAcross * tilesDown)
+			return false;
+		for (int t = 0; t < tilesAcross * tilesDown; t++)
+		{
+			// The last strip may have fewer rows; tiles are always padded to the full tile size.
+			long rows = (tileWidth == width) ? Math.min(tileHeight, height - (t * (long)tileHeight)) : tileHeight;
+			long expectedBytes = rows * tileWidth * bytesPerPixel;
+			if (tileByteCounts != null && t < tileByteCounts.length && tileByteCounts[t] < expectedBytes)
+				return false;
+			if (tileOffsets[t] + expectedBytes > channel.size())
+				return false;
+		}
+
+		return true;
+	}
+
+	// Returns the values of the IFD entry at the given position in the entries buffer, as longs.
+	private long[] readValues(ByteBuffer entries, int entry) throws IOException
+	{
+		final int type = entries.getShort(entry + 2) & 0xffff;
+		final long count = bigTiff ? entries.getLong(entry + 4) : (entries.getInt(entry + 4) & 0xffffffffL);
+		final int valueField = entry + (bigTiff ? 12 : 8);
+		final int valueFieldSize = bigTiff ? 8 : 4;
+
+		final int size;
+		switch (type)
+		{
+			case 1:  size = 1; break;  // BYTE
+			case 3:  size = 2; break;  // SHORT
+			case 4:  size = 4; break;  // LONG
+			case 16: size = 8; break;  // LONG8 (BigTIFF)
+			default: throw new EOFException("Unsupported TIFF field type " + type);  // handled like a corrupt file
+		}
+
+		if (count <= 0 || count > Integer.MAX_VALUE / size)
+			throw new EOFException("Invalid TIFF field count " + count);
+
+		ByteBuffer values;
+		int base;
+		if (count * size <= valueFieldSize)
+		{
+			values = entries;
+			base = valueField;
+		}
+		else
+		{
+			long offset = bigTiff ? entries.getLong(valueField) : (entries.getInt(valueField) & 0xffffffffL);
+			values = read(offset, (int)count * size);
+			base = 0;
+		}
+
+		long[] result = new long[(int)count];
+		for (int i = 0; i < count; i++)
+		{
+			int p = base + i * size;
+			switch (size)
+			{
+				case 1:  result[i] = values.get(p) & 0xff; break;
+				case 2:  result[i] = values.getShort(p) & 0xffff; break;
+				case 4:  result[i] = values.getInt(p) & 0xffffffffL; break;
+				default: result[i] = values.getLong(p); break;
+			}
+		}
+		return result;
+	}
+
+	private ByteBuffer read(long position, int length) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		readFully(buffer, position);
+		buffer.flip();
+		if (byteOrder != null)
+			buffer.order(byteOrder);
+		return buffer;
+	}
+
+	private void readFully(ByteBuffer buffer, long position) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			int n = channel.read(buffer, position);
+			if (n < 0)
+				throw new EOFException("Unexpected end of TIFF file");
+			position += n;
+		}
+	}
+}
@@ -0,0 +1,225 @@
+package be.vib.imagej.registration;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import ij.ImagePlus;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+
+// TranslatedTiffWriter saves a slice translated by an integer shift, without translating it in memory first.
+// The shifted rows are copied from the original pixel array straight into large direct buffers that are
+// written to the file, and the borders that the shift exposes are written as zeros.
+// Compared to ImageProcessor.translate() followed by FileSaver this saves a full copy of the image
+// and ImageJ's generic TIFF encoding. The result is an uncompressed single-strip TIFF that ImageJ reads
+// with the same bit depth and spatial calibration as FileSaver would have written.
+// Only 8 and 16 bit grayscale images with a normal LUT and no calibration function are supported (see canWrite()).
+public class TranslatedTiffWriter
+{
+	private static final int BUFFER_SIZE = 8 << 20;
+	private static final byte[] zeros = new byte[64 << 10];
+
+	// Direct buffers are expensive to allocate, so every thread keeps its own.
+	private static final ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN));
+
+	// Size of the header, IFD and the values it refers to; the pixel data starts right after it.
+	private static final int METADATA_SIZE = 1024;
+	private static final int NUM_ENTRIES = 14;
+
+	// Images with an inverted LUT or a calibration function (e.g. signed 16 bit data) cannot be written:
+	// the file would say black is zero and have no calibration, so ImageJ would read them back with another meaning.
+	public static boolean canWrite(ImagePlus imagePlus)
+	{
+		ImageProcessor image = imagePlus.getProcessor();
+		Calibration calibration = imagePlus.getCalibration();
+		if (image.isInvertedLut() || (calibration != null && calibration.getFunction() != Calibration.NONE))
+			return false;
+
+		int bitDepth = image.getBitDepth();
+		long pixelBytes = (long)image.getWidth() * image.getHeight() * (bitDepth / 8);
+		return (bitDepth == 8 || bitDepth == 16) && METADATA_SIZE + pixelBytes <= 0xffffffffL;  // classic TIFF offsets are 32 bit
+	}
+
+	// Writes the image translated by (-shiftX, -shiftY) to a TIFF file,
+	// which has the same result as image.translate(-shiftX, -shiftY) followed by saving it.
+	// Like SliceFiles.saveImage() the file is written under a temporary name first.
+	public static void write(ImagePlus imagePlus, int shiftX, int shiftY, Path path) throws IOException
+	{
+		ImageProcessor image = imagePlus.getProcessor();
+		final int width = image.getWidth();
+		final int height = image.getHeight();
+		final int bytesPerPixel = image.getBitDepth() / 8;
+
+		Path tempPath = path.resolveSibling(path.getFileName() + ".part");
+		try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			final long pixelBytes = (long)width * height * bytesPerPixel;
+
+			// Reserve the space for the whole file up front.
+			channel.write(ByteBuffer.wrap(new byte[1]), METADATA_SIZE + pixelBytes - 1);
+
+			ByteBuffer buffer = buffers.get();
+			buffer.clear();
+			writeMetadata(buffer, imagePlus, width, height, bytesPerPixel);
+			writeFully(channel, buffer, 0);
+
+			writePixels(channel, METADATA_SIZE, image, shiftX, shiftY);
+		}
+		Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	// Writes the pixels of the image translated by (-shiftX, -shiftY) to the channel, starting at the given position,
+	// as width * height little-endian 8 or 16 bit values. Exposed pixels are zero.
+	// Several threads may call this at the same time for different parts of the same channel.
+	static void writePixels(FileChannel channel, long position, ImageProcessor image, int shiftX, int shiftY) throws IOException
+	{
+		final int width = image.getWidth();
+		final int height = image.getHeight();
+		final int bytesPerPixel = image.getBitDepth() / 8;
+
+		ByteBuffer buffer = buffers.get();
+		buffer.clear();
+		final int rowBytes = width * bytesPerPixel;
+		if (rowBytes > buffer.capacity())
+			throw new IOException("Image rows of " + rowBytes + " bytes are too long");  // > 4M pixels per row
+
+		// Source columns that end up inside the image, and where they go
+		final int srcX0 = Math.max(0, shiftX);
+		final int srcX1 = Math.min(width, width + shiftX);
+		final int dstX0 = srcX0 - shiftX;
+		final int numCopied = Math.max(0, srcX1 - srcX0);
+
+		final Object pixels = image.getPixels();
+		for (int y = 0; y < height; y++)
+		{
+			if (buffer.remaining() < rowBytes)
+			{
+				position += writeFully(channel, buffer, position);
+				buffer.clear();
+			}
+
+			final int srcY = y + shiftY;
+			final int rowStart = buffer.position();
+			if (srcY < 0 || srcY >= height || numCopied == 0)
+			{
+				fillZeros(buffer, rowBytes);
+			}
+			else
+			{
+				fillZeros(buffer, dstX0 * bytesPerPixel);
+				if (bytesPerPixel == 1)
+				{
+					buffer.put((byte[])pixels, srcY * width + srcX0, numCopied);
+				}
+				else
+				{
+					buffer.asShortBuffer().put((short[])pixels, srcY * width + srcX0, numCopied);
+					buffer.position(buffer.position() + numCopied * 2);
+				}
+				fillZeros(buffer, rowStart + rowBytes - buffer.position());
+			}
+		}
+		writeFully(channel, buffer, position);
+	}
+
+	// Writes the TIFF header and the image file directory into the first METADATA_SIZE bytes of buffer.
+	private static void writeMetadata(ByteBuffer buffer, ImagePlus imagePlus, int width, int height, int bytesPerPixel)
+	{
+		// Layout: header (8 bytes) | IFD | x resolution | y resolution | image description | zeros up to METADATA_SIZE
+		final int ifdOffset = 8;
+		final int ifdSize = 2 + NUM_ENTRIES * 12 + 4;
+		final int xResolutionOffset = ifdOffset + ifdSize;
+		final int yResolutionOffset = xResolutionOffset + 8;
+		final int descriptionOffset = yResolutionOffset + 8;
+
+		byte[] description = imageDescription(imagePlus);
+		if (descriptionOffset + description.length > METADATA_SIZE)
+			description = "ImageJ=1.51\n\0".getBytes(StandardCharsets.US_ASCII);  // an exotic, very long unit name: drop it
+
+		Calibration calibration = imagePlus.getCalibration();
+		final double xScale = (calibration != null && calibration.scaled()) ? 1.0 / calibration.pixelWidth : 1.0;
+		final double yScale = (calibration != null && calibration.scaled()) ? 1.0 / calibration.pixelHeight : 1.0;
+
+		buffer.put((byte)'I').put((byte)'I').putShort((short)42).putInt(ifdOffset);
+
+		buffer.putShort((short)NUM_ENTRIES);
+		putEntry(buffer, 254, 4, 1, 0);                                // NewSubfileType
+		putEntry(buffer, 256, 4, 1, width);                            // ImageWidth
+		putEntry(buffer, 257, 4, 1, height);                           // ImageLength
+		putEntry(buffer, 258, 3, 1, 8 * bytesPerPixel);                // BitsPerSample
+		putEntry(buffer, 259, 3, 1, 1);                                // Compression: none
+		putEntry(buffer, 262, 3, 1, 1);                                // PhotometricInterpretation: black is zero
+		putEntry(buffer, 270, 2, description.length, descriptionOffset); // ImageDescription (read by ImageJ)
+		putEntry(buffer, 273, 4, 1, METADATA_SIZE);                    // StripOffsets
+		putEntry(buffer, 277, 3, 1, 1);                                // SamplesPerPixel
+		putEntry(buffer, 278, 4, 1, height);                           // RowsPerStrip
+		putEntry(buffer, 279, 4, 1, (int)((long)width * height * bytesPerPixel)); // StripByteCounts
+		putEntry(buffer, 282, 5, 1, xResolutionOffset);                // XResolution
+		putEntry(buffer, 283, 5, 1, yResolutionOffset);                // YResolution
+		putEntry(buffer, 296, 3, 1, 1);                                // ResolutionUnit: none (ImageJ takes the unit from the description)
+		buffer.putInt(0);                                              // no next IFD
+
+		putRational(buffer, xScale);
+		putRational(buffer, yScale);
+		buffer.put(description);
+
+		fillZeros(buffer, METADATA_SIZE - buffer.position());
+	}
+
+	// The ImageJ-specific part of the metadata, as written by ImageJ itself.
+	static byte[] imageDescription(ImagePlus imagePlus)
+	{
+		StringBuilder description = new StringBuilder("ImageJ=1.51\n");
+		Calibration calibration = imagePlus.getCalibration();
+		if (calibration != null && calibration.scaled())
+			description.append("unit=").append(calibration.getUnit()).append('\n');
+		ImageProcessor image = imagePlus.getProcessor();
+		if (image.getBitDepth() == 16)
+			description.append("min=").append(image.getMin()).append("\nmax=").append(image.getMax()).append('\n');
+		description.append('\0');
+		return description.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static void putEntry(ByteBuffer buffer, int tag, int type, int count, int value)
+	{
+		buffer.putShort((short)tag).putShort((short)type).putInt(count);
+		if (type == 3 && count == 1)
+			buffer.putShort((short)value).putShort((short)0);  // a SHORT value is left-justified in the value field
+		else
+			buffer.putInt(value);
+	}
+
+	// Writes value as a TIFF RATIONAL, the way ImageJ does.
+	static void putRational(ByteBuffer buffer, double value)
+	{
+		final int denominator = 1000000;
+		long numerator = Math.round(value * denominator);
+		buffer.putInt((int)Math.max(1, Math.min(numerator, 0xffffffffL))).putInt(denominator);
+	}
+
+	private static void fillZeros(ByteBuffer buffer, int numBytes)
+	{
+		while (numBytes > 0)
+		{
+			int n = Math.min(numBytes, zeros.length);
+			buffer.put(zeros, 0, n);
+			numBytes -= n;
+		}
+	}
+
+	static long writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+	{
+		buffer.flip();
+		long written = 0;
+		while (buffer.hasRemaining())
+			written += channel.write(buffer, position + written);
+		return written;
+	}
+}
@@ -0,0 +1,235 @@
+package be.vib.imagej.registration;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntConsumer;
+
+import ij.ImagePlus;
+
+// TwoPassRegistration registers a stack in two passes:
+//   pass 1: find the shift of every slice. This is sequential (each search starts from the previous slice's position),
+//           but cheap: only the search window of each slice is read (see ShiftEstimator.estimate(int, Path, Rectangle)).
+//   pass 2: translate and save the slices. Since all shifts are known, the slices are independent
+//           and are processed by several threads, in any order.
+// The total size of the slices being translated at the same time is limited by a ByteBudget.
+public class TwoPassRegistration
+{
+	private ShiftEstimator estimator;
+	private ShiftTable shiftTable;
+	private Rectangle autoCropRect;  // null means don't auto-crop
+	private SliceWriter output;
+	private ByteBudget budget;
+	private int numThreads;
+	private Executor executor;  // runs the pass 2 tasks; null means a pool of numThreads threads of our own
+	private RegistrationMetrics metrics;  // null if no metrics are collected
+	private ProgressTracker progress;  // null if nobody tracks the progress of pass 1
+	
+	public TwoPassRegistration(ShiftEstimator estimator, ShiftTable shiftTable, Rectangle autoCropRect, SliceWriter output, long budgetBytes, int numThreads)
+	{
+		this.estimator = estimator;
+		this.shiftTable = shiftTable;
+		this.autoCropRect = autoCropRect;
+		this.output = output;
+		this.budget = new ByteBudget(budgetBytes);
+		this.numThreads = numThreads;
+	}
+	
+	// Runs the pass 2 tasks on the given executor (e.g. shared with other registrations, see RegistrationScheduler)
+	// instead of on a thread pool of our own.
+	public void setExecutor(Executor executor)
+	{
+		this.executor = executor;
+	}
+	
+	// Tells the given tracker about every slice that pass 1 is done with, so it can estimate the remaining time
+	// during pass 1 already. (The slices that pass 2 saves are reported to it by a MeasuredSliceWriter.)
+	public void setProgress(ProgressTracker progress)
+	{
+		this.progress = progress;
+	}
+	
+	// Records the load times and bytes read of pass 2, and the memory in flight, in the given metrics.
+	// (Pass 1 is measured by the ShiftEstimator, the saving by a MeasuredSliceWriter.)
+	public void setMetrics(RegistrationMetrics metrics)
+	{
+		this.metrics = metrics;
+		metrics.setQueues(null, null, budget::inUse);
+	}
+	
+	// Registers the input files from firstSlice on (the earlier ones were done by a previous, interrupted run).
+	// stepsDone is called with the number of steps done so far, out of 2 * (inputFiles.size() - firstSlice)
+	// (one step per slice per pass).
+	public void run(List<Path> inputFiles, int firstSlice, BooleanSupplier isCancelled, IntConsumer stepsDone) throws Exception
+	{
+		final int numSlices = inputFiles.size() - firstSlice;
+		
+		SliceShift[] shifts = estimateShifts(inputFiles, firstSlice, isCancelled, n -> stepsDone.accept(n - firstSlice));
+		if (shifts == null)
+			return;  // cancelled
+		
+		applyShifts(inputFiles, shifts, firstSlice, inputFiles.size(), isCancelled, n -> stepsDone.accept(numSlices + n));
+	}
+	
+	// Pass 1: returns the shift of each input file from firstSlice on, or null if cancelled.
+	// The shifts of the slices before firstSlice, and of slices that failed to register, are null.
+	// slicesDone is called with the number of slices done so far, including the first firstSlice ones.
+	public SliceShift[] estimateShifts(List<Path> inputFiles, int firstSlice, BooleanSupplier isCancelled, IntConsumer slicesDone) throws Exception
+	{
+		final int numSlices = inputFiles.size();
+		SliceShift[] shifts = new SliceShift[numSlices];
+		
+		for (int i = firstSlice; i < numSlices; i++)
+		{
+			if (isCancelled.getAsBoolean())
+				return null;
+			
+			final int sliceIndex = i;
+			Path inputFile = inputFiles.get(i);
+			
+			long start = System.nanoTime();
+			shifts[i] = shiftTable.record(i, inputFile, () -> estimator.estimate(sliceIndex, inputFile, autoCropRect));
+			long end = System.nanoTime();
+			if (progress != null)
+				progress.firstPassDone(i);
+			
+			System.out.println(String.format("Pass 1: image %d/%d : %s: register %d (ms)", i + 1, numSlices, inputFile, (end - start) / 1000000));
+			slicesDone.accept(i + 1);
+		}
+		
+		return shifts;
+	}
+	
+	// Pass 2: translates every input file in [from, to) that has a (non-null) shift and saves it with the SliceWriter.
+	// The writer is told to skip the others in that range; slices outside it are left alone, as they may still be registered.
+	// A slice that cannot be read now (although its shift was found) is skipped as well; its shift stays in the shift table,
+	// so resuming the run tries to save it again.
+	// slicesDone is called (from the worker threads) with the number of slices saved or skipped so far.
+	public void applyShifts(List<Path> inputFiles, SliceShift[] shifts, int from, int to, BooleanSupplier isCancelled, IntConsumer slicesDone) throws Exception
+	{
+		final int numSlices = inputFiles.size();
+		final AtomicInteger numDone = new AtomicInteger(0);
+		
+		ExecutorService ownPool = (executor == null) ? Executors.newFixedThreadPool(numThreads) : null;
+		Executor pool = (executor == null) ? ownPool : executor;
+		List<Future<?>> futures = new ArrayList<Future<?>>(to - from);
+		try
+		{
+			for (int i = from; i < to; i++)
+			{
+				if (shifts[i] == null)
+				{
+					output.skip(i);
+					slicesDone.accept(numDone.incrementAndGet());
+					continue;
+				}
+				
+				if (isCancelled.getAsBoolean())
+					break;
+				
+				final int sliceIndex = i;
+				final Path inputFile = inputFiles.get(sliceIndex);
+				final long bytes;
+				try
+				{
+					bytes = Files.size(inputFile);  // close enough to the size of the pixel data for uncompressed TIFFs
+				}
+				catch (IOException e)
+				{
+					skipUnreadable(sliceIndex, inputFile, e);
+					slicesDone.accept(numDone.incrementAndGet());
+					continue;
+				}
+				
+				// The budget is acquired here and released by the task, so a worker of a shared executor never waits for it
+				// (and cannot hold up the tasks of other registrations that way).
+				budget.acquire(bytes);
+				FutureTask<Void> task = new FutureTask<Void>(() -> {
+					try
+					{
+						if (isCancelled.getAsBoolean())
+							return null;
+						
+						long start = System.nanoTime();
+						StageEvent loadEvent = FlightRecording.begin(RegistrationMetrics.Stage.LOAD);
+						ImagePlus imagePlus;
+						try
+						{
+							imagePlus = SliceFiles.loadImage(inputFile.toString(), autoCropRect);
+							if (imagePlus.getProcessor() == null)
+								throw new RuntimeException("Failed to get ImageProcessor for image " + inputFile.toString());
+						}
+						catch (InterruptedException e)
+						{
+							throw e;
+						}
+						catch (Exception e)
+						{
+							skipUnreadable(sliceIndex, inputFile, e);
+							slicesDone.accept(numDone.incrementAndGet());
+							return null;
+						}
+						loadEvent.commit(sliceIndex, inputFile, SliceFiles.pixelBytes(imagePlus));
+						if (metrics != null)
+						{
+							metrics.record(sliceIndex, inputFile, RegistrationMetrics.Stage.LOAD, System.nanoTime() - start);
+							metrics.addBytesRead(sliceIndex, inputFile, SliceFiles.pixelBytes(imagePlus));
+						}
+						output.write(sliceIndex, inputFile, imagePlus, shifts[sliceIndex]);
+						long end = System.nanoTime();
+						
+						System.out.println(String.format("Pass 2: image %d/%d : %s: load+translate+save %d (ms)", sliceIndex + 1, numSlices, inputFile, (end - start) / 1000000));
+					}
+					finally
+					{
+						budget.release(bytes);
+					}
+					
+					slicesDone.accept(numDone.incrementAndGet());
+					return null;
+				});
+				futures.add(task);
+				pool.execute(task);
+			}
+			
+			for (Future<?> future : futures)
+			{
+				try
+				{
+					future.get();
+				}
+				catch (ExecutionException e)
+				{
+					throw (e.getCause() instanceof Exception) ? (Exception)e.getCause() : e;
+				}
+			}
+		}
+		finally
+		{
+			if (ownPool != null)
+				ownPool.shutdownNow();
+			else
+				for (Future<?> future : futures)
+					future.cancel(true);  // after a failure: don't leave our remaining tasks in the shared executor
+		}
+	}
+	
+	// Tells the writer to skip a slice that could not be read in pass 2.
+	private void skipUnreadable(int slice, Path inputFile, Exception e) throws IOException
+	{
+		String error = (e.getMessage() != null) ? e.getMessage() : e.toString();
+		System.err.println("Saving of slice " + (slice + 1) + " (" + inputFile + ") failed, skipping it: " + e.getClass().getSimpleName() + ": " + error);
+		output.skip(slice);
+	}
+}
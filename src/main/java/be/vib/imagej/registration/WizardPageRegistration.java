@@ -18,6 +18,7 @@ import javax.swing.border.EmptyBorder;
 public class WizardPageRegistration extends WizardPage
 {		
 	private MaxShiftPanel maxShiftPanel;
+	private MatchingEnginePanel matchingEnginePanel;
 	private SliceThicknessCorrectionPanel sliceThicknessCorrectionPanel;
 	private AutoCropPanel autoCropPanel;
 	private JButton startButton;
@@ -53,6 +54,8 @@ public class WizardPageRegistration extends WizardPage
 		});
 		
 		maxShiftPanel = new MaxShiftPanel();
+		
+		matchingEnginePanel = new MatchingEnginePanel();
 	
 		sliceThicknessCorrectionPanel = new SliceThicknessCorrectionPanel();
 		
@@ -75,11 +78,13 @@ public class WizardPageRegistration extends WizardPage
 		// Make sure all sub-panels fill the window horizontally.
 		// (It there no cleaner way to accomplish this?)
 		maxShiftPanel.setMaximumSize(new Dimension(Integer.MAX_VALUE, maxShiftPanel.getMaximumSize().height));
+		matchingEnginePanel.setMaximumSize(new Dimension(Integer.MAX_VALUE, matchingEnginePanel.getPreferredSize().height));
 		sliceThicknessCorrectionPanel.setMaximumSize(new Dimension(Integer.MAX_VALUE, sliceThicknessCorrectionPanel.getMaximumSize().height));
 		registrationPanel.setMaximumSize(new Dimension(Integer.MAX_VALUE, registrationPanel.getMaximumSize().height));
 		autoCropPanel.setMaximumSize(new Dimension(Integer.MAX_VALUE, registrationPanel.getMaximumSize().height));		
 
 		add(maxShiftPanel);
+		add(matchingEnginePanel);
 		add(sliceThicknessCorrectionPanel);
 		add(autoCropPanel);
 		add(registrationPanel);
@@ -99,6 +104,7 @@ public class WizardPageRegistration extends WizardPage
 		cancelButton.setVisible(true);
 				
 		maxShiftPanel.setEditable(false);
+		matchingEnginePanel.setEditable(false);
 		sliceThicknessCorrectionPanel.setEditable(false);
 
 		statusLabel.setText("Registering...");
@@ -128,8 +134,12 @@ public class WizardPageRegistration extends WizardPage
 																	   sliceThicknessCorrectionPanel.thicknessCorrection(), sliceThicknessCorrectionPanel.thicknessNM(),
 																	   sliceThicknessCorrectionPanel.preserveSliceOrder(), 
 																	   autoCropPanel.getNonblackRegion());
+		parameters.engine = matchingEnginePanel.getEngine();
+		parameters.subpixelRefinement = matchingEnginePanel.getSubpixelRefinement();
+		parameters.mode = matchingEnginePanel.getMode();
+		parameters.outputFormat = matchingEnginePanel.getOutputFormat();
 
-		worker = new RegistrationSwingWorker(parameters, progressBar, whenDone, whenError);
+		worker = new RegistrationSwingWorker(parameters, progressBar, statusLabel, whenDone, whenError);
 		
 		// Run the registration on a separate worker thread and return here immediately.
 		// Once registration has completed, the worker will automatically update the user interface to indicate this.
@@ -155,6 +165,7 @@ public class WizardPageRegistration extends WizardPage
 	private void setReadyToRegister()
 	{
 		maxShiftPanel.setEditable(true);
+		matchingEnginePanel.setEditable(true);
 		sliceThicknessCorrectionPanel.setEditable(true);
 		startButton.setVisible(true);
 		cancelButton.setVisible(false);
@@ -0,0 +1,4 @@
+echo Benchmark the whole registration of a synthetic FIB-SEM stack, results in JSON
+@rem ImageJ is taken from the jars folder of the Fiji installation that build.xml installs the plugin into (fiji.plugins.dir)
+if not defined FIJI_DIR set FIJI_DIR=E:\Fiji.app
+java -cp ".\build\classes;%FIJI_DIR%\jars\*" be.vib.imagej.registration.StackBenchmark %*